@@ -48,6 +48,18 @@ function jars() {
     jar cf voltexport.jar -C src org
 }
 
+# compile and run the unit tests: TESTCLASSPATH must hold the junit, hamcrest and h2 jars
+function tests() {
+    jars
+    mkdir -p obj/tests
+    javac -classpath voltexport.jar:$APPCLASSPATH:$TESTCLASSPATH -d obj/tests tests/org/voltdb/utils/voltexport/*.java
+    # stop if compilation fails
+    if [ $? != 0 ]; then exit; fi
+    java -classpath obj/tests:voltexport.jar:$APPCLASSPATH:$TESTCLASSPATH -Dlog4j.configuration=file:$LOG4J \
+        org.junit.runner.JUnitCore \
+        $(cd tests && find . -name 'Test*.java' | sed -e 's|^\./||' -e 's|\.java$||' -e 's|/|.|g')
+}
+
 # Generic scan 1 stream/partition
 # Usage: ./run.sh scan full_path_in_out_dir stream_name partition
 function scan() {
@@ -103,6 +115,7 @@ Usage: run.sh TARGET
 Targets:
     clean
     jars | jars-ifneeded | servercompile | clientcompile
+    tests
     server | init
     client
 "
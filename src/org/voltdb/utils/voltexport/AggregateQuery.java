@@ -0,0 +1,557 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2022 VoltDB Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with VoltDB.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.voltdb.utils.voltexport;
+
+import java.io.PrintStream;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang3.StringUtils;
+import org.voltdb.exportclient.ExportRow;
+import org.voltdb.types.TimestampType;
+
+/**
+ * Simple aggregates of the rows of a stream/partition, evaluated on the encoded rows with a
+ * {@link RawRowReader}, without decoding them.
+ * <p>
+ * The aggregates are parsed from a comma-separated list of {@code COUNT(*)}, {@code COUNT(col)},
+ * {@code MIN(col)}, {@code MAX(col)} and {@code SUM(col)}, and are grouped by the values of up to
+ * 2 columns. COUNT(col), MIN and MAX ignore the null values. SUM applies to the numeric columns: the
+ * sums of integers are exact, and continue as decimals if they overflow a BIGINT.
+ * <p>
+ * Each runner aggregates its stream/partition in its own instance, and the instances of the
+ * partitions of a stream are merged at the end of the run. The aggregates are bound to the columns
+ * of each schema the first time a row of that schema is aggregated. An instance is not thread-safe.
+ */
+public class AggregateQuery {
+    private static final Pattern AGGREGATE = Pattern.compile("\\s*(\\w+)\\s*\\(\\s*(\\*|\\w+)\\s*\\)\\s*");
+    private static final int MAX_GROUP_BY = 2;
+    // The maximum count of groups printed for a stream
+    private static final int QUERY_MAX_GROUPS = Integer.getInteger("QUERY_MAX_GROUPS", 1000);
+
+    enum Function {
+        COUNT, MIN, MAX, SUM
+    }
+
+    // The kind of the values of an aggregated column, which must not change with the schema
+    enum Kind {
+        LONG, TIMESTAMP, DOUBLE, DECIMAL, STRING
+    }
+
+    private static class Aggregate {
+        final Function m_function;
+        final String m_column;  // null for COUNT(*)
+        Kind m_kind;
+
+        // Bound to the current schema
+        int m_index = -1;
+
+        Aggregate(Function function, String column) {
+            m_function = function;
+            m_column = column;
+        }
+
+        void bind(RawRowReader reader) {
+            if (m_column == null) {
+                return;
+            }
+            m_index = reader.getColumnIndex(m_column);
+            if (m_index < 0) {
+                throw new IllegalArgumentException("Unknown column " + m_column + " in query");
+            }
+            if (m_function == Function.COUNT) {
+                return;
+            }
+            Kind kind = getKind(reader, m_index, m_function.name());
+            if (m_function == Function.SUM && (kind == Kind.TIMESTAMP || kind == Kind.STRING)) {
+                throw new IllegalArgumentException("Column " + m_column + " of type " + reader.getType(m_index)
+                        + " cannot be summed");
+            }
+            if (m_kind != null && m_kind != kind) {
+                throw new IllegalArgumentException("Column " + m_column + " changed type to " + reader.getType(m_index));
+            }
+            m_kind = kind;
+        }
+
+        @Override
+        public String toString() {
+            return m_function + "(" + (m_column == null ? "*" : m_column) + ")";
+        }
+    }
+
+    /**
+     * The value of an aggregate for one group. An integer sum which overflowed a BIGINT is the sum of
+     * m_decimal and m_long.
+     */
+    private static class Accumulator {
+        long m_count;
+        long m_long;
+        double m_double;
+        BigDecimal m_decimal;
+        String m_string;
+
+        void add(Aggregate agg, RawRowReader reader) {
+            if (agg.m_function == Function.COUNT) {
+                if (agg.m_index < 0 || reader.offset(agg.m_index) >= 0) {
+                    m_count++;
+                }
+                return;
+            }
+            if (reader.offset(agg.m_index) < 0) {
+                return;
+            }
+            switch (agg.m_kind) {
+            case LONG:
+            case TIMESTAMP:
+                addLong(agg.m_function, reader.getLong(agg.m_index));
+                break;
+            case DOUBLE:
+                addDouble(agg.m_function, reader.getDouble(agg.m_index));
+                break;
+            case DECIMAL:
+                addDecimal(agg.m_function, (BigDecimal) reader.decode(agg.m_index));
+                break;
+            default:
+                addString(agg.m_function, (String) reader.decode(agg.m_index));
+            }
+            m_count++;
+        }
+
+        private void addLong(Function function, long value) {
+            if (m_count == 0) {
+                m_long = value;
+            }
+            else if (function == Function.MIN) {
+                m_long = Math.min(m_long, value);
+            }
+            else if (function == Function.MAX) {
+                m_long = Math.max(m_long, value);
+            }
+            else if (m_decimal != null) {
+                m_decimal = m_decimal.add(BigDecimal.valueOf(value));
+            }
+            else {
+                try {
+                    m_long = Math.addExact(m_long, value);
+                }
+                catch (ArithmeticException e) {
+                    m_decimal = BigDecimal.valueOf(m_long).add(BigDecimal.valueOf(value));
+                    m_long = 0;
+                }
+            }
+        }
+
+        private void addDouble(Function function, double value) {
+            if (m_count == 0) {
+                m_double = value;
+            }
+            else if (function == Function.MIN) {
+                m_double = Math.min(m_double, value);
+            }
+            else if (function == Function.MAX) {
+                m_double = Math.max(m_double, value);
+            }
+            else {
+                m_double += value;
+            }
+        }
+
+        private void addDecimal(Function function, BigDecimal value) {
+            if (m_count == 0) {
+                m_decimal = value;
+            }
+            else if (function == Function.MIN) {
+                m_decimal = m_decimal.min(value);
+            }
+            else if (function == Function.MAX) {
+                m_decimal = m_decimal.max(value);
+            }
+            else {
+                m_decimal = m_decimal.add(value);
+            }
+        }
+
+        private void addString(Function function, String value) {
+            if (m_count == 0
+                    || (function == Function.MIN && value.compareTo(m_string) < 0)
+                    || (function == Function.MAX && value.compareTo(m_string) > 0)) {
+                m_string = value;
+            }
+        }
+
+        void merge(Aggregate agg, Accumulator other) {
+            if (other.m_count == 0) {
+                return;
+            }
+            if (agg.m_function == Function.COUNT || m_count == 0) {
+                if (m_count == 0) {
+                    m_long = other.m_long;
+                    m_double = other.m_double;
+                    m_decimal = other.m_decimal;
+                    m_string = other.m_string;
+                }
+                m_count += other.m_count;
+                return;
+            }
+            switch (agg.m_kind) {
+            case LONG:
+            case TIMESTAMP:
+                if (agg.m_function == Function.SUM && (m_decimal != null || other.m_decimal != null)) {
+                    // An overflowed sum
+                    m_decimal = getSum().add(other.getSum());
+                    m_long = 0;
+                }
+                else {
+                    addLong(agg.m_function, other.m_long);
+                }
+                break;
+            case DOUBLE:
+                addDouble(agg.m_function, other.m_double);
+                break;
+            case DECIMAL:
+                addDecimal(agg.m_function, other.m_decimal);
+                break;
+            default:
+                addString(agg.m_function, other.m_string);
+            }
+            m_count += other.m_count;
+        }
+
+        // The exact integer sum
+        private BigDecimal getSum() {
+            BigDecimal sum = BigDecimal.valueOf(m_long);
+            return m_decimal == null ? sum : m_decimal.add(sum);
+        }
+
+        Object getValue(Aggregate agg) {
+            if (agg.m_function == Function.COUNT) {
+                return m_count;
+            }
+            if (m_count == 0) {
+                return null;
+            }
+            switch (agg.m_kind) {
+            case LONG:
+                return m_decimal != null ? getSum() : (Object) m_long;
+            case TIMESTAMP:
+                return new TimestampType(m_long);
+            case DOUBLE:
+                return m_double;
+            case DECIMAL:
+                return m_decimal;
+            default:
+                return m_string;
+            }
+        }
+    }
+
+    private final List<Aggregate> m_aggregates = new ArrayList<>();
+    private final List<String> m_groupBy = new ArrayList<>();
+    private final Map<List<Object>, Accumulator[]> m_groups = new HashMap<>();
+    private long m_rows = 0;
+
+    // Bound to the current schema
+    private RawRowReader m_reader;
+    private int[] m_groupIndexes;
+
+    /**
+     * @param query   the comma-separated list of aggregates
+     * @param groupBy the comma-separated list of the columns to group by, or blank
+     * @throws IllegalArgumentException if the query cannot be parsed
+     */
+    public AggregateQuery(String query, String groupBy) {
+        for (String expr : query.split(",")) {
+            Matcher m = AGGREGATE.matcher(expr);
+            if (!m.matches()) {
+                throw new IllegalArgumentException("Invalid aggregate " + expr.trim()
+                        + ", must be COUNT(*), COUNT(col), MIN(col), MAX(col) or SUM(col)");
+            }
+            Function function;
+            try {
+                function = Function.valueOf(m.group(1).toUpperCase());
+            }
+            catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Invalid aggregate function " + m.group(1)
+                        + ", must be COUNT, MIN, MAX or SUM");
+            }
+            String column = "*".equals(m.group(2)) ? null : m.group(2).toUpperCase();
+            if (column == null && function != Function.COUNT) {
+                throw new IllegalArgumentException("Only COUNT applies to *: " + expr.trim());
+            }
+            m_aggregates.add(new Aggregate(function, column));
+        }
+        if (!StringUtils.isBlank(groupBy)) {
+            for (String column : groupBy.split(",")) {
+                if (StringUtils.isBlank(column)) {
+                    throw new IllegalArgumentException("Invalid group by " + groupBy);
+                }
+                m_groupBy.add(column.trim().toUpperCase());
+            }
+            if (m_groupBy.size() > MAX_GROUP_BY) {
+                throw new IllegalArgumentException("Cannot group by more than " + MAX_GROUP_BY + " columns");
+            }
+        }
+    }
+
+    private static Kind getKind(RawRowReader reader, int index, String use) {
+        switch (reader.getType(index)) {
+        case TINYINT:
+        case SMALLINT:
+        case INTEGER:
+        case BIGINT:
+            return Kind.LONG;
+        case TIMESTAMP:
+            return Kind.TIMESTAMP;
+        case FLOAT:
+            return Kind.DOUBLE;
+        case DECIMAL:
+            return Kind.DECIMAL;
+        case STRING:
+            return Kind.STRING;
+        default:
+            throw new IllegalArgumentException("Column " + reader.getSchema().names.get(index) + " of type "
+                    + reader.getType(index) + " cannot be used in " + use);
+        }
+    }
+
+    private void bind(ExportRow schema) {
+        m_reader = new RawRowReader(schema);
+        for (Aggregate agg : m_aggregates) {
+            agg.bind(m_reader);
+        }
+        m_groupIndexes = new int[m_groupBy.size()];
+        for (int i = 0; i < m_groupIndexes.length; i++) {
+            m_groupIndexes[i] = m_reader.getColumnIndex(m_groupBy.get(i));
+            if (m_groupIndexes[i] < 0) {
+                throw new IllegalArgumentException("Unknown column " + m_groupBy.get(i) + " in group by");
+            }
+            getKind(m_reader, m_groupIndexes[i], "GROUP BY");
+        }
+    }
+
+    /**
+     * Aggregate an encoded row
+     *
+     * @param schema    the schema of the row
+     * @param buf       the buffer holding the row
+     * @param rowStart  the offset of the row, following its length
+     */
+    public void accumulate(ExportRow schema, ByteBuffer buf, int rowStart) {
+        if (m_reader == null || m_reader.getSchema() != schema) {
+            bind(schema);
+        }
+        m_reader.reset(buf, rowStart);
+
+        Object[] key = new Object[m_groupIndexes.length];
+        for (int i = 0; i < key.length; i++) {
+            Object value = m_reader.decode(m_groupIndexes[i]);
+            // The integers of different sizes are the same group
+            key[i] = value instanceof Number && !(value instanceof Double) && !(value instanceof BigDecimal)
+                    ? (Object) ((Number) value).longValue() : value;
+        }
+        Accumulator[] accs = m_groups.get(Arrays.asList(key));
+        if (accs == null) {
+            accs = newAccumulators();
+            m_groups.put(Arrays.asList(key), accs);
+        }
+        for (int i = 0; i < accs.length; i++) {
+            accs[i].add(m_aggregates.get(i), m_reader);
+        }
+        m_rows++;
+    }
+
+    private Accumulator[] newAccumulators() {
+        Accumulator[] accs = new Accumulator[m_aggregates.size()];
+        for (int i = 0; i < accs.length; i++) {
+            accs[i] = new Accumulator();
+        }
+        return accs;
+    }
+
+    /**
+     * Merge the aggregates of another partition of the same stream into this one
+     *
+     * @return this
+     */
+    public AggregateQuery merge(AggregateQuery other) {
+        for (int i = 0; i < m_aggregates.size(); i++) {
+            Aggregate agg = m_aggregates.get(i);
+            Kind kind = other.m_aggregates.get(i).m_kind;
+            if (agg.m_kind == null) {
+                agg.m_kind = kind;
+            }
+            else if (kind != null && kind != agg.m_kind) {
+                throw new IllegalArgumentException("Column " + agg.m_column + " has different types in the partitions");
+            }
+        }
+        for (Map.Entry<List<Object>, Accumulator[]> e : other.m_groups.entrySet()) {
+            Accumulator[] accs = m_groups.get(e.getKey());
+            if (accs == null) {
+                m_groups.put(e.getKey(), e.getValue());
+                continue;
+            }
+            for (int i = 0; i < accs.length; i++) {
+                accs[i].merge(m_aggregates.get(i), e.getValue()[i]);
+            }
+        }
+        m_rows += other.m_rows;
+        return this;
+    }
+
+    public long getRows() {
+        return m_rows;
+    }
+
+    public int getGroupCount() {
+        return m_groups.size();
+    }
+
+    /**
+     * Merge the aggregates of the partitions of each stream in parallel, and print one table per stream
+     *
+     * @param results the results of the runners
+     * @param out     the stream to print to
+     */
+    public static void printResults(Collection<VoltExportResult> results, PrintStream out) {
+        Map<String, List<AggregateQuery>> byStream = new TreeMap<>();
+        for (VoltExportResult res : results) {
+            if (res.aggregates != null) {
+                byStream.computeIfAbsent(res.stream_name, k -> new ArrayList<>()).add(res.aggregates);
+            }
+        }
+        for (Map.Entry<String, List<AggregateQuery>> e : byStream.entrySet()) {
+            int partitions = e.getValue().size();
+            Optional<AggregateQuery> merged = e.getValue().parallelStream().reduce(AggregateQuery::merge);
+            merged.get().print(e.getKey(), partitions, out);
+        }
+    }
+
+    private void print(String stream, int partitions, PrintStream out) {
+        if (m_groupBy.isEmpty() && m_groups.isEmpty()) {
+            // Print the aggregates of no rows
+            m_groups.put(new ArrayList<>(), newAccumulators());
+        }
+        List<String> header = new ArrayList<>(m_groupBy);
+        for (Aggregate agg : m_aggregates) {
+            header.add(agg.toString());
+        }
+
+        // Sort the groups by their values, nulls first
+        List<Map.Entry<List<Object>, Accumulator[]>> groups = new ArrayList<>(m_groups.entrySet());
+        groups.sort((a, b) -> {
+            for (int i = 0; i < a.getKey().size(); i++) {
+                int cmp = compareValues(a.getKey().get(i), b.getKey().get(i));
+                if (cmp != 0) {
+                    return cmp;
+                }
+            }
+            return 0;
+        });
+
+        List<String[]> lines = new ArrayList<>();
+        for (Map.Entry<List<Object>, Accumulator[]> g : groups) {
+            if (lines.size() == QUERY_MAX_GROUPS) {
+                break;
+            }
+            String[] line = new String[header.size()];
+            int col = 0;
+            for (Object value : g.getKey()) {
+                line[col++] = format(value);
+            }
+            for (int i = 0; i < m_aggregates.size(); i++) {
+                line[col++] = format(g.getValue()[i].getValue(m_aggregates.get(i)));
+            }
+            lines.add(line);
+        }
+
+        int[] widths = new int[header.size()];
+        for (int i = 0; i < widths.length; i++) {
+            widths[i] = header.get(i).length();
+            for (String[] line : lines) {
+                widths[i] = Math.max(widths[i], line[i].length());
+            }
+        }
+        out.printf("%s: %d rows in %d partitions, %d groups%n", stream, m_rows, partitions, m_groups.size());
+        out.println(formatLine(header.toArray(new String[0]), widths));
+        String[] rule = new String[widths.length];
+        for (int i = 0; i < widths.length; i++) {
+            rule[i] = StringUtils.repeat('-', widths[i]);
+        }
+        out.println(formatLine(rule, widths));
+        for (String[] line : lines) {
+            out.println(formatLine(line, widths));
+        }
+        if (groups.size() > lines.size()) {
+            out.printf("... %d more groups not printed%n", groups.size() - lines.size());
+        }
+        out.println();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static int compareValues(Object a, Object b) {
+        if (a == null || b == null) {
+            return a == null ? (b == null ? 0 : -1) : 1;
+        }
+        if (a.getClass() == b.getClass() && a instanceof Comparable) {
+            return ((Comparable<Object>) a).compareTo(b);
+        }
+        return a.toString().compareTo(b.toString());
+    }
+
+    private static String format(Object value) {
+        if (value == null) {
+            return "NULL";
+        }
+        if (value instanceof BigDecimal) {
+            return ((BigDecimal) value).toPlainString();
+        }
+        return value.toString();
+    }
+
+    private static String formatLine(String[] values, int[] widths) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                sb.append("  ");
+            }
+            sb.append(StringUtils.rightPad(values[i], widths[i]));
+        }
+        return StringUtils.stripEnd(sb.toString(), null);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Aggregate agg : m_aggregates) {
+            sb.append(sb.length() == 0 ? "" : ", ").append(agg);
+        }
+        if (!m_groupBy.isEmpty()) {
+            sb.append(" group by ").append(String.join(", ", m_groupBy));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,504 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2022 VoltDB Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with VoltDB.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.voltdb.utils.voltexport;
+
+import static org.voltdb.utils.voltexport.VoltExport.LOG;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.lang3.StringUtils;
+import org.voltdb.VoltType;
+import org.voltdb.export.AdvertisedDataSource;
+import org.voltdb.exportclient.ExportClientBase;
+import org.voltdb.exportclient.ExportDecoderBase;
+import org.voltdb.exportclient.ExportRow;
+import org.voltdb.types.GeographyPointValue;
+import org.voltdb.types.GeographyValue;
+import org.voltdb.types.TimestampType;
+
+/**
+ * An export client inserting the rows into a table of a JDBC database, in batches, using
+ * several connections per stream/partition.
+ * <p>
+ * The decoder of each stream/partition accumulates the rows in batches, which are executed by
+ * a pool of writer threads. Each writer owns a connection and reuses one prepared statement
+ * per insert statement. The rows are inserted in a table with the name of the stream, in the
+ * columns with the names of the stream columns: the table must exist.
+ * <p>
+ * With the default {@code commitinterval=0}, the batches of a block are executed by a single writer
+ * and committed in one transaction at the end of the block, and the decoder waits for the commit,
+ * so that the block is only released once its rows are in the database. A decoder closed in the
+ * middle of a block, reset by a block timeout, rolls the block back: the block restarts on a new
+ * decoder without duplicating its rows. With a positive interval, each of the {@code connections}
+ * commits every {@code commitinterval} rows and the decoder only waits at the end of the export:
+ * this is faster, but the rows of released blocks may be lost on a failure, and a reset in the
+ * middle of a block rolls back the uncommitted rows and fails the export.
+ * <p>
+ * A failure of a writer fails the next row or block processed, and the closing of the decoder,
+ * so that the {@link ExportRunner} reports the export INCOMPLETE.
+ * <p>
+ * Properties:
+ * <ul>
+ * <li>{@code jdbcurl}: the JDBC connection URL, required</li>
+ * <li>{@code jdbcuser}, {@code jdbcpassword}: the credentials, optional</li>
+ * <li>{@code jdbcdriver}: the JDBC driver class name, optional if the driver registers itself</li>
+ * <li>{@code schema}: the schema of the tables, optional</li>
+ * <li>{@code batchsize}: the count of rows per batch (default 1000)</li>
+ * <li>{@code connections}: the count of connections per stream/partition with a commit interval (default 2)</li>
+ * <li>{@code commitinterval}: the count of rows per commit per connection (default 0, see above)</li>
+ * <li>{@code skipinternals}: do not insert the VoltDB metadata columns (default false)</li>
+ * </ul>
+ */
+public class BatchJDBCExportClient extends ExportClientBase {
+    private String m_url;
+    private String m_user;
+    private String m_password;
+    private String m_schema;
+    private int m_batchSize;
+    private int m_connections;
+    private int m_commitInterval;
+    private boolean m_skipInternals;
+
+    @Override
+    public void configure(Properties config) throws Exception {
+        m_url = config.getProperty("jdbcurl", "").trim();
+        if (m_url.isEmpty()) {
+            throw new IllegalArgumentException("JDBC export requires a jdbcurl property");
+        }
+        m_user = config.getProperty("jdbcuser");
+        m_password = config.getProperty("jdbcpassword");
+        m_schema = config.getProperty("schema", "").trim();
+        m_batchSize = Integer.parseInt(config.getProperty("batchsize", "1000").trim());
+        m_connections = Integer.parseInt(config.getProperty("connections", "2").trim());
+        m_commitInterval = Integer.parseInt(config.getProperty("commitinterval", "0").trim());
+        m_skipInternals = Boolean.parseBoolean(config.getProperty("skipinternals", "false").trim());
+        if (m_batchSize <= 0 || m_connections <= 0 || m_commitInterval < 0) {
+            throw new IllegalArgumentException("JDBC export requires batchsize > 0, connections > 0 and commitinterval >= 0");
+        }
+
+        String driver = config.getProperty("jdbcdriver", "").trim();
+        if (!driver.isEmpty()) {
+            Class.forName(driver);
+        }
+    }
+
+    @Override
+    public ExportDecoderBase constructExportDecoder(AdvertisedDataSource source) {
+        return new JDBCDecoder(source);
+    }
+
+    // A batch of rows to insert with the same statement
+    private static class Batch {
+        final String m_sql;
+        final int[] m_sqlTypes;
+        final List<Object[]> m_rows;
+
+        Batch(String sql, int[] sqlTypes, int capacity) {
+            m_sql = sql;
+            m_sqlTypes = sqlTypes;
+            m_rows = new ArrayList<>(capacity);
+        }
+    }
+
+    // Tells a writer to commit the block, and to close its connection and exit
+    private static final Batch COMMIT = new Batch(null, null, 0);
+    private static final Batch END = new Batch(null, null, 0);
+
+    class JDBCDecoder extends ExportDecoderBase {
+        private final String m_source;
+        private final BlockingQueue<Batch> m_queue;
+        private final List<Thread> m_writers = new ArrayList<>();
+        private final AtomicReference<Exception> m_failure = new AtomicReference<>();
+
+        // Batches queued or executing, the current batch, the block in progress and the closed flag,
+        // guarded by the decoder lock: a block timeout closes the decoder from the watchdog thread
+        private int m_pending;
+        private Batch m_batch;
+        private boolean m_inBlock;
+        private boolean m_closed;
+        // Set on close: the writers roll back instead of committing
+        private volatile boolean m_rollback;
+
+        // The statement of the current schema
+        private long m_generation = -1;
+        private String m_sql;
+        private int[] m_sqlTypes;
+
+        JDBCDecoder(AdvertisedDataSource source) {
+            super(source);
+            m_source = source.tableName + ":" + source.partitionId;
+            // A block is committed in one transaction, on one connection
+            int writers = m_commitInterval == 0 ? 1 : m_connections;
+            m_queue = new ArrayBlockingQueue<>(2 * writers);
+            for (int i = 0; i < writers; i++) {
+                Thread t = new Thread(new Writer(), "JDBC writer " + m_source + ":" + i);
+                t.setDaemon(true);
+                t.start();
+                m_writers.add(t);
+            }
+        }
+
+        @Override
+        public boolean processRow(ExportRow row) throws RestartBlockException {
+            checkFailure();
+            if (row.generation != m_generation) {
+                flush();
+                prepare(row);
+            }
+            int first = m_skipInternals ? ExportRow.INTERNAL_FIELD_COUNT : 0;
+            Object[] values = new Object[row.values.length - first];
+            for (int i = first; i < row.values.length; i++) {
+                values[i - first] = toJdbc(row.values[i]);
+            }
+            boolean full;
+            synchronized (this) {
+                checkOpen();
+                m_inBlock = true;
+                if (m_batch == null) {
+                    m_batch = new Batch(m_sql, m_sqlTypes, m_batchSize);
+                }
+                m_batch.m_rows.add(values);
+                full = m_batch.m_rows.size() >= m_batchSize;
+            }
+            if (full) {
+                flush();
+            }
+            return true;
+        }
+
+        @Override
+        public void onBlockCompletion(ExportRow row) throws RestartBlockException {
+            flush();
+            if (m_commitInterval == 0) {
+                synchronized (this) {
+                    checkOpen();
+                    m_pending++;
+                }
+                queue(COMMIT);
+                awaitPending();
+            }
+            synchronized (this) {
+                m_inBlock = false;
+            }
+            checkFailure();
+        }
+
+        @Override
+        public void sourceNoLongerAdvertised(AdvertisedDataSource source) {
+            Batch batch;
+            boolean inBlock;
+            synchronized (this) {
+                m_closed = true;
+                batch = takeBatch();
+                inBlock = m_inBlock;
+                notifyAll();
+            }
+            // Every block was committed with commitinterval=0, and the rows of a block in progress
+            // are exported again by its restart
+            m_rollback = m_commitInterval == 0 || inBlock;
+            if (inBlock && m_commitInterval > 0) {
+                m_failure.compareAndSet(null, new IllegalStateException(
+                        "JDBC decoder of " + m_source + " closed in a block, uncommitted rows rolled back"));
+            }
+            try {
+                if (batch != null) {
+                    m_queue.put(batch);
+                }
+                for (int i = 0; i < m_writers.size(); i++) {
+                    m_queue.put(END);
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted closing the JDBC export of " + m_source, e);
+            }
+            for (Thread t : m_writers) {
+                try {
+                    t.join();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (m_failure.get() != null) {
+                LOG.errorFmt("JDBC export of %s failed: %s", m_source, m_failure.get());
+            }
+            checkFailure();
+        }
+
+        private void prepare(ExportRow row) {
+            int first = m_skipInternals ? ExportRow.INTERNAL_FIELD_COUNT : 0;
+            StringBuilder cols = new StringBuilder();
+            StringBuilder params = new StringBuilder();
+            m_sqlTypes = new int[row.names.size() - first];
+            for (int i = first; i < row.names.size(); i++) {
+                if (i > first) {
+                    cols.append(", ");
+                    params.append(", ");
+                }
+                cols.append(row.names.get(i));
+                params.append('?');
+                m_sqlTypes[i - first] = toSqlType(row.types.get(i));
+            }
+            String table = StringUtils.isEmpty(m_schema) ? row.tableName : m_schema + "." + row.tableName;
+            m_sql = "INSERT INTO " + table + " (" + cols + ") VALUES (" + params + ")";
+            m_generation = row.generation;
+        }
+
+        // Hand the current batch to the writers
+        private void flush() throws RestartBlockException {
+            Batch batch;
+            synchronized (this) {
+                checkOpen();
+                batch = takeBatch();
+            }
+            if (batch != null) {
+                queue(batch);
+            }
+        }
+
+        // Queue a batch counted as pending, waiting if the writers are busy: the lock is not held while
+        // waiting, since the writers take it when done with a batch
+        private void queue(Batch batch) throws RestartBlockException {
+            try {
+                while (!m_queue.offer(batch, 100, TimeUnit.MILLISECONDS)) {
+                    synchronized (this) {
+                        checkOpen();
+                    }
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted queuing a JDBC batch", e);
+            }
+        }
+
+        // Take the current batch, counted as pending until executed
+        private Batch takeBatch() {
+            assert Thread.holdsLock(this);
+            Batch batch = m_batch;
+            m_batch = null;
+            if (batch == null || batch.m_rows.isEmpty()) {
+                return null;
+            }
+            m_pending++;
+            return batch;
+        }
+
+        private synchronized void awaitPending() throws RestartBlockException {
+            while (m_pending > 0) {
+                checkOpen();
+                try {
+                    wait();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Interrupted waiting for JDBC batches", e);
+                }
+            }
+        }
+
+        // A decoder closed by a block timeout restarts its block with the new decoder, rather than
+        // waiting for writers which have exited
+        private void checkOpen() throws RestartBlockException {
+            assert Thread.holdsLock(this);
+            if (m_closed) {
+                throw new RestartBlockException("JDBC decoder of " + m_source + " closed", true);
+            }
+        }
+
+        private synchronized void done() {
+            m_pending--;
+            notifyAll();
+        }
+
+        private void checkFailure() {
+            Exception e = m_failure.get();
+            if (e != null) {
+                throw new RuntimeException("JDBC export of " + m_source + " failed", e);
+            }
+        }
+
+        /**
+         * Executes batches on its own connection, reusing a prepared statement per insert statement
+         */
+        private class Writer implements Runnable {
+            private final Map<String, PreparedStatement> m_statements = new HashMap<>();
+            private Connection m_conn;
+            private long m_uncommitted;
+
+            @Override
+            public void run() {
+                try {
+                    m_conn = DriverManager.getConnection(m_url, m_user, m_password);
+                    m_conn.setAutoCommit(false);
+                }
+                catch (SQLException e) {
+                    m_failure.compareAndSet(null, e);
+                }
+
+                Batch batch;
+                while ((batch = take()) != END) {
+                    if (batch == COMMIT) {
+                        commitBlock();
+                        continue;
+                    }
+                    try {
+                        // After a failure, drain the batches without executing them
+                        if (m_failure.get() == null) {
+                            execute(batch);
+                        }
+                    }
+                    catch (Exception e) {
+                        m_failure.compareAndSet(null, e);
+                    }
+                    finally {
+                        done();
+                    }
+                }
+                close();
+            }
+
+            private Batch take() {
+                try {
+                    return m_queue.take();
+                }
+                catch (InterruptedException e) {
+                    m_failure.compareAndSet(null, e);
+                    return END;
+                }
+            }
+
+            // Commit the block unless the decoder was closed, atomically with counting it done: a block
+            // either completes committed, or restarts and is rolled back by the close
+            private void commitBlock() {
+                synchronized (JDBCDecoder.this) {
+                    try {
+                        if (!m_closed && m_failure.get() == null) {
+                            m_conn.commit();
+                        }
+                    }
+                    catch (SQLException e) {
+                        m_failure.compareAndSet(null, e);
+                    }
+                    finally {
+                        done();
+                    }
+                }
+            }
+
+            private void execute(Batch batch) throws SQLException {
+                PreparedStatement ps = m_statements.get(batch.m_sql);
+                if (ps == null) {
+                    ps = m_conn.prepareStatement(batch.m_sql);
+                    m_statements.put(batch.m_sql, ps);
+                }
+                for (Object[] values : batch.m_rows) {
+                    for (int i = 0; i < values.length; i++) {
+                        if (values[i] == null) {
+                            ps.setNull(i + 1, batch.m_sqlTypes[i]);
+                        }
+                        else {
+                            ps.setObject(i + 1, values[i], batch.m_sqlTypes[i]);
+                        }
+                    }
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+                m_uncommitted += batch.m_rows.size();
+                if (m_commitInterval > 0 && m_uncommitted >= m_commitInterval) {
+                    m_conn.commit();
+                    m_uncommitted = 0;
+                }
+            }
+
+            private void close() {
+                if (m_conn == null) {
+                    return;
+                }
+                try {
+                    if (m_failure.get() == null && !m_rollback) {
+                        m_conn.commit();
+                    }
+                    else {
+                        m_conn.rollback();
+                    }
+                    for (PreparedStatement ps : m_statements.values()) {
+                        ps.close();
+                    }
+                }
+                catch (SQLException e) {
+                    m_failure.compareAndSet(null, e);
+                }
+                finally {
+                    try {
+                        m_conn.close();
+                    }
+                    catch (SQLException ignore) {}
+                }
+            }
+        }
+    }
+
+    private static Object toJdbc(Object value) {
+        if (value instanceof TimestampType) {
+            return ((TimestampType) value).asJavaTimestamp();
+        }
+        if (value instanceof GeographyPointValue || value instanceof GeographyValue) {
+            // Well-known text
+            return value.toString();
+        }
+        return value;
+    }
+
+    private static int toSqlType(VoltType type) {
+        switch (type) {
+        case TINYINT:
+            return Types.TINYINT;
+        case SMALLINT:
+            return Types.SMALLINT;
+        case INTEGER:
+            return Types.INTEGER;
+        case BIGINT:
+            return Types.BIGINT;
+        case FLOAT:
+            return Types.DOUBLE;
+        case DECIMAL:
+            return Types.DECIMAL;
+        case TIMESTAMP:
+            return Types.TIMESTAMP;
+        case VARBINARY:
+            return Types.VARBINARY;
+        default:
+            // STRING, GEOGRAPHY_POINT and GEOGRAPHY as well-known text
+            return Types.VARCHAR;
+        }
+    }
+}
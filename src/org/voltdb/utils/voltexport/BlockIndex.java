@@ -0,0 +1,162 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2022 VoltDB Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with VoltDB.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.voltdb.utils.voltexport;
+
+import java.util.Arrays;
+
+import org.voltdb.export.StreamBlock;
+import org.voltdb.iv2.UniqueIdGenerator;
+
+/**
+ * An index of the blocks of a PBD, in PBD order, built from the block headers read by the gap scan.
+ * <p>
+ * For each block, the index keeps the sequence number range, the size of the rows, and the
+ * timestamp of the {@link StreamBlock} unique id. The timestamps are kept as a running maximum, so that they
+ * can be binary-searched even if a block's unique id is slightly older than its predecessor's.
+ */
+public class BlockIndex {
+    private int m_size = 0;
+    private long[] m_starts = new long[1024];
+    private long[] m_ends = new long[1024];
+    private long[] m_timestamps = new long[1024];
+    private int[] m_bytes = new int[1024];
+    private long m_totalBytes = 0;
+
+    /**
+     * Add a block to the index
+     *
+     * @param start     the sequence number of the first row
+     * @param end       the sequence number of the last row
+     * @param uniqueId  the unique id of the block header
+     * @param bytes     the size of the rows of the block, excluding the header
+     */
+    public void add(long start, long end, long uniqueId, int bytes) {
+        if (m_size == m_starts.length) {
+            m_starts = Arrays.copyOf(m_starts, m_size * 2);
+            m_ends = Arrays.copyOf(m_ends, m_size * 2);
+            m_timestamps = Arrays.copyOf(m_timestamps, m_size * 2);
+            m_bytes = Arrays.copyOf(m_bytes, m_size * 2);
+        }
+        long ts = UniqueIdGenerator.getTimestampFromUniqueId(uniqueId);
+        m_starts[m_size] = start;
+        m_ends[m_size] = end;
+        m_bytes[m_size] = bytes;
+        m_totalBytes += bytes;
+        m_timestamps[m_size] = m_size == 0 ? ts : Math.max(ts, m_timestamps[m_size - 1]);
+        m_size++;
+    }
+
+    public int size() {
+        return m_size;
+    }
+
+    public long getStart(int idx) {
+        return m_starts[idx];
+    }
+
+    public long getEnd(int idx) {
+        return m_ends[idx];
+    }
+
+    /**
+     * @return the size of the rows of all the blocks
+     */
+    public long getTotalBytes() {
+        return m_totalBytes;
+    }
+
+    /**
+     * @return the count of rows of the blocks within an inclusive range of sequence numbers
+     */
+    public long rowsIn(long start, long end) {
+        long rows = 0;
+        for (int i = firstBlockEndingAtOrAfter(start); i < m_size && m_starts[i] <= end; i++) {
+            rows += Math.min(end, m_ends[i]) - Math.max(start, m_starts[i]) + 1;
+        }
+        return rows;
+    }
+
+    /**
+     * @return the size of the rows of the blocks within an inclusive range of sequence numbers,
+     *         prorated for the blocks partially within the range
+     */
+    public long bytesIn(long start, long end) {
+        double bytes = 0;
+        for (int i = firstBlockEndingAtOrAfter(start); i < m_size && m_starts[i] <= end; i++) {
+            long rows = Math.min(end, m_ends[i]) - Math.max(start, m_starts[i]) + 1;
+            bytes += (double) m_bytes[i] * rows / (m_ends[i] - m_starts[i] + 1);
+        }
+        return Math.round(bytes);
+    }
+
+    // Blocks are in sequence number order
+    private int firstBlockEndingAtOrAfter(long seqNo) {
+        int lo = 0, hi = m_size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (m_ends[mid] < seqNo) {
+                lo = mid + 1;
+            }
+            else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * @param timestampMs a time in milliseconds since the epoch
+     * @return the index of the first block which may hold rows at or after that time,
+     *         or {@link #size()} if none
+     */
+    public int firstBlockAtOrAfter(long timestampMs) {
+        int lo = 0, hi = m_size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (m_timestamps[mid] < timestampMs) {
+                lo = mid + 1;
+            }
+            else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * @param timestampMs a time in milliseconds since the epoch
+     * @return the index of the last block which may hold rows at or before that time,
+     *         or -1 if none
+     */
+    public int lastBlockAtOrBefore(long timestampMs) {
+        // A block's timestamp is at or after the times of its rows, and its rows were written after
+        // the rows of the block before it. So a block may hold rows at or before the time only if the
+        // block before it has a timestamp at or before the time: find the first block whose predecessor
+        // has a timestamp after the time, the block before it is the last one which may hold such rows.
+        int lo = 1, hi = m_size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (m_timestamps[mid - 1] <= timestampMs) {
+                lo = mid + 1;
+            }
+            else {
+                hi = mid;
+            }
+        }
+        return m_size == 0 ? -1 : lo - 1;
+    }
+}
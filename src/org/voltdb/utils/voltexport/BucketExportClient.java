@@ -0,0 +1,351 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2022 VoltDB Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with VoltDB.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.voltdb.utils.voltexport;
+
+import static org.voltdb.utils.voltexport.VoltExport.LOG;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.voltdb.export.AdvertisedDataSource;
+import org.voltdb.exportclient.ExportClientBase;
+import org.voltdb.exportclient.ExportDecoderBase;
+import org.voltdb.exportclient.ExportRow;
+import org.voltdb.types.TimestampType;
+
+/**
+ * An export client writing the rows as CSV to one file per time bucket, so that the output can be
+ * loaded by time partition without splitting the files again.
+ * <p>
+ * The bucket of a row is the hour or the day of its export timestamp (the {@code VOLT_EXPORT_TIMESTAMP}
+ * column). The files of a bucket are in a directory named after the bucket, e.g.
+ * {@code <outdir>/date=2022-10-20/hour=14/SOURCE003_3-20221020150512.csv}, one file per stream/partition
+ * and run. Each decoder encodes the rows of a block in one buffer per bucket, and appends them to the
+ * bucket files when the block completes.
+ * <p>
+ * The writers of all the clients share a pool bounded by {@code maxopen}: the least recently used
+ * writer is closed when a bucket file must be opened, and the file is appended to if opened again.
+ * A failure flushing or closing a bucket file fails the client owning it: its decoders fail the next
+ * block completion and their close, and its shutdown throws, so that the export is reported INCOMPLETE.
+ * <p>
+ * Properties:
+ * <ul>
+ * <li>{@code bucket}: {@code hour} (default) or {@code day}</li>
+ * <li>{@code timezone}: the time zone of the buckets (default UTC)</li>
+ * <li>{@code maxopen}: the maximum count of open bucket files (default 64)</li>
+ * <li>{@code buffersize}: the size in bytes of the buffer of each open file (default 65536)</li>
+ * <li>{@code skipinternals}: do not write the VoltDB metadata columns (default false)</li>
+ * </ul>
+ */
+public class BucketExportClient extends ExportClientBase implements Flushable {
+    private static final DateTimeFormatter RUN_FORMAT = DateTimeFormatter.ofPattern("yyyyMMddHHmmss");
+    private static final DateTimeFormatter DAY_FORMAT = DateTimeFormatter.ofPattern("'date='yyyy-MM-dd");
+    private static final DateTimeFormatter HOUR_FORMAT = DateTimeFormatter.ofPattern("'date='yyyy-MM-dd'/hour='HH");
+
+    // The bucket files open by all the clients, least recently used first
+    private static final LinkedHashMap<Path, BucketWriter> s_writers = new LinkedHashMap<>(16, 0.75f, true);
+    private static int s_maxOpen = 64;
+
+    private String m_outdir;
+    private String m_nonce;
+    private String m_run;
+    private ChronoUnit m_unit;
+    private ZoneId m_zone;
+    private int m_bufferSize;
+    private boolean m_skipInternals;
+
+    // The bucket files written by this client, and the first failure writing them, guarded by s_writers
+    private final Set<Path> m_paths = new HashSet<>();
+    private IOException m_failure;
+
+    /**
+     * An open bucket file, used by one decoder at a time
+     */
+    private static class BucketWriter {
+        final BucketExportClient m_owner;
+        final Path m_path;
+        final OutputStream m_out;
+        int m_refs;
+
+        BucketWriter(BucketExportClient owner, Path path, int bufferSize) throws IOException {
+            m_owner = owner;
+            m_path = path;
+            Files.createDirectories(path.getParent());
+            m_out = new BufferedOutputStream(Files.newOutputStream(path,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND), bufferSize);
+        }
+    }
+
+    @Override
+    public void configure(Properties config) throws Exception {
+        m_outdir = config.getProperty("outdir", System.getProperty("user.dir")).trim();
+        m_nonce = config.getProperty("nonce", "export").trim();
+        String bucket = config.getProperty("bucket", "hour").trim().toLowerCase();
+        if ("hour".equals(bucket)) {
+            m_unit = ChronoUnit.HOURS;
+        }
+        else if ("day".equals(bucket)) {
+            m_unit = ChronoUnit.DAYS;
+        }
+        else {
+            throw new IllegalArgumentException("Invalid bucket " + bucket + ", must be hour or day");
+        }
+        m_zone = ZoneId.of(config.getProperty("timezone", "UTC").trim());
+        m_bufferSize = Integer.parseInt(config.getProperty("buffersize", "65536").trim());
+        m_skipInternals = Boolean.parseBoolean(config.getProperty("skipinternals", "false").trim());
+        m_run = RUN_FORMAT.format(ZonedDateTime.now(m_zone));
+
+        int maxOpen = Integer.parseInt(config.getProperty("maxopen", "64").trim());
+        if (maxOpen <= 0) {
+            throw new IllegalArgumentException("maxopen must be > 0");
+        }
+        synchronized (s_writers) {
+            s_maxOpen = maxOpen;
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        IOException failure;
+        synchronized (s_writers) {
+            for (Path path : m_paths) {
+                BucketWriter writer = s_writers.remove(path);
+                if (writer != null) {
+                    close(writer);
+                }
+            }
+            m_paths.clear();
+            failure = m_failure;
+        }
+        if (failure != null) {
+            throw new RuntimeException("Failed writing the bucket files of " + m_nonce, failure);
+        }
+    }
+
+    @Override
+    public ExportDecoderBase constructExportDecoder(AdvertisedDataSource source) {
+        return new BucketDecoder(source);
+    }
+
+    // Get the writer of a bucket file, opening it if needed, and mark it in use
+    private BucketWriter acquire(Path path) throws IOException {
+        synchronized (s_writers) {
+            BucketWriter writer = s_writers.get(path);
+            if (writer == null) {
+                // Close the least recently used writers not in use
+                Iterator<BucketWriter> it = s_writers.values().iterator();
+                while (s_writers.size() >= s_maxOpen && it.hasNext()) {
+                    BucketWriter lru = it.next();
+                    if (lru.m_refs == 0) {
+                        it.remove();
+                        close(lru);
+                    }
+                }
+                writer = new BucketWriter(this, path, m_bufferSize);
+                s_writers.put(path, writer);
+                m_paths.add(path);
+            }
+            writer.m_refs++;
+            return writer;
+        }
+    }
+
+    private static void release(BucketWriter writer) {
+        synchronized (s_writers) {
+            writer.m_refs--;
+        }
+    }
+
+    // Close a writer, failing its owner on error: the rows buffered are lost
+    private static void close(BucketWriter writer) {
+        assert Thread.holdsLock(s_writers);
+        try {
+            writer.m_out.close();
+        }
+        catch (IOException e) {
+            LOG.errorFmt("Failed closing bucket file %s", writer.m_path);
+            e.printStackTrace();
+            writer.m_owner.fail(e);
+        }
+    }
+
+    private void fail(IOException e) {
+        assert Thread.holdsLock(s_writers);
+        if (m_failure == null) {
+            m_failure = e;
+        }
+    }
+
+    /**
+     * Flush the open writers of this client, e.g. before the follower advances the watermarks
+     *
+     * @throws IOException if any of its bucket files failed
+     */
+    @Override
+    public void flush() throws IOException {
+        IOException failure;
+        synchronized (s_writers) {
+            for (Path path : m_paths) {
+                BucketWriter writer = s_writers.get(path);
+                if (writer == null) {
+                    continue;
+                }
+                try {
+                    writer.m_out.flush();
+                }
+                catch (IOException e) {
+                    LOG.errorFmt("Failed flushing bucket file %s", writer.m_path);
+                    e.printStackTrace();
+                    fail(e);
+                }
+            }
+            failure = m_failure;
+        }
+        if (failure != null) {
+            throw new IOException("Failed writing the bucket files of " + m_nonce, failure);
+        }
+    }
+
+    // Flush the open writers of this client, and throw if any of its bucket files failed
+    private void flushAndCheck() {
+        try {
+            flush();
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e.getCause());
+        }
+    }
+
+    private void checkFailure() {
+        synchronized (s_writers) {
+            if (m_failure != null) {
+                throw new RuntimeException("Failed writing the bucket files of " + m_nonce, m_failure);
+            }
+        }
+    }
+
+    class BucketDecoder extends ExportDecoderBase {
+        private final String m_name;
+        private final int m_partition;
+        private final CsvRowEncoder m_encoder = new CsvRowEncoder(m_skipInternals);
+        // The rows of the current block, by bucket directory
+        private final Map<String, ByteArrayOutputStream> m_chunks = new TreeMap<>();
+
+        // The current bucket, in microseconds since the epoch: [m_bucketStart, m_bucketEnd)
+        private long m_bucketStart = Long.MAX_VALUE;
+        private long m_bucketEnd = Long.MIN_VALUE;
+        private String m_bucketDir;
+
+        BucketDecoder(AdvertisedDataSource source) {
+            super(source);
+            m_name = source.tableName;
+            m_partition = source.partitionId;
+        }
+
+        @Override
+        public void onBlockStart(ExportRow row) throws RestartBlockException {
+            // A restarted block is written again from its start
+            m_chunks.clear();
+        }
+
+        @Override
+        public boolean processRow(ExportRow row) throws RestartBlockException {
+            String dir = getBucketDir(getTimestamp(row));
+            ByteArrayOutputStream chunk = m_chunks.get(dir);
+            if (chunk == null) {
+                chunk = new ByteArrayOutputStream(64 * 1024);
+                m_chunks.put(dir, chunk);
+            }
+            byte[] line = m_encoder.encode(row);
+            chunk.write(line, 0, line.length);
+            return true;
+        }
+
+        @Override
+        public void onBlockCompletion(ExportRow row) throws RestartBlockException {
+            try {
+                for (Map.Entry<String, ByteArrayOutputStream> e : m_chunks.entrySet()) {
+                    Path path = Paths.get(m_outdir, e.getKey(), m_nonce + "-" + m_run + ".csv");
+                    BucketWriter writer = acquire(path);
+                    try {
+                        e.getValue().writeTo(writer.m_out);
+                    }
+                    finally {
+                        release(writer);
+                    }
+                }
+            }
+            catch (IOException e) {
+                throw new RuntimeException("Failed writing buckets of " + m_name + ":" + m_partition, e);
+            }
+            finally {
+                m_chunks.clear();
+            }
+            // A bucket file of this client may have been closed on error by another decoder
+            checkFailure();
+        }
+
+        @Override
+        public void sourceNoLongerAdvertised(AdvertisedDataSource source) {
+            flushAndCheck();
+        }
+
+        // Return the export timestamp of a row, in microseconds since the epoch
+        private long getTimestamp(ExportRow row) {
+            Object ts = row.values[RawRowReader.TIMESTAMP_COLUMN];
+            if (ts instanceof TimestampType) {
+                return ((TimestampType) ts).getTime();
+            }
+            if (ts instanceof Number) {
+                return ((Number) ts).longValue();
+            }
+            throw new IllegalStateException("No export timestamp in row of " + m_name + ":" + m_partition);
+        }
+
+        // Return the directory of the bucket of a timestamp, keeping the bounds of the last bucket
+        private String getBucketDir(long micros) {
+            if (micros < m_bucketStart || micros >= m_bucketEnd) {
+                Instant instant = Instant.ofEpochSecond(Math.floorDiv(micros, 1_000_000L));
+                ZonedDateTime start = instant.atZone(m_zone).truncatedTo(m_unit);
+                ZonedDateTime end = start.plus(1, m_unit);
+                m_bucketStart = start.toEpochSecond() * 1_000_000L;
+                m_bucketEnd = end.toEpochSecond() * 1_000_000L;
+                m_bucketDir = (m_unit == ChronoUnit.HOURS ? HOUR_FORMAT : DAY_FORMAT).format(start);
+            }
+            return m_bucketDir;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2022 VoltDB Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with VoltDB.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.voltdb.utils.voltexport;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.voltdb.catalog.Database;
+import org.voltdb.utils.CatalogUtil;
+import org.voltdb.utils.InMemoryJarfile;
+
+/**
+ * A cache of the catalog databases loaded from catalog jar files, so that the runs of a
+ * daemon only load each catalog once.
+ * <p>
+ * A cached database is reloaded if the jar file was modified since it was loaded.
+ */
+public class CatalogCache {
+    private static final Map<String, CachedCatalog> s_catalogs = new ConcurrentHashMap<>();
+
+    private static class CachedCatalog {
+        final long m_lastModified;
+        final long m_length;
+        final Database m_db;
+
+        CachedCatalog(File file, Database db) {
+            m_lastModified = file.lastModified();
+            m_length = file.length();
+            m_db = db;
+        }
+
+        boolean isCurrent(File file) {
+            return m_lastModified == file.lastModified() && m_length == file.length();
+        }
+    }
+
+    /**
+     * @param catalog the path of a catalog jar file
+     * @return the database of the catalog, or null if none
+     * @throws IOException
+     */
+    public static Database getDatabase(String catalog) throws IOException {
+        File file = new File(catalog).getCanonicalFile();
+        String key = file.getPath();
+        CachedCatalog cached = s_catalogs.get(key);
+        if (cached != null && cached.isCurrent(file)) {
+            return cached.m_db;
+        }
+
+        InMemoryJarfile imjf = new InMemoryJarfile(key);
+        Database db = CatalogUtil.getDatabaseFrom(imjf);
+        if (db != null) {
+            s_catalogs.put(key, new CachedCatalog(file, db));
+        }
+        return db;
+    }
+
+    public static int size() {
+        return s_catalogs.size();
+    }
+}
@@ -0,0 +1,95 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2022 VoltDB Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with VoltDB.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.voltdb.utils.voltexport;
+
+/**
+ * A limit of the count of {@link ExportRunner} instances processing a block at the same time, shared
+ * by all the runners of a process.
+ * <p>
+ * Each runner acquires the gate before polling a block and releases it once the block is processed,
+ * so that the limit can be changed while the runners execute: the runners beyond the limit wait before
+ * their next block. A limit of 0 means unlimited.
+ * <p>
+ * A runner must not hold a {@link DirectMemoryBudget} charge while waiting for the gate: a runner in
+ * the gate may be waiting for that memory. The gate also counts the bytes of the blocks polled by the
+ * runners holding it, the throughput measured by the {@link ThreadTuner}.
+ */
+public class ConcurrencyGate {
+    public static final ConcurrencyGate GLOBAL = new ConcurrencyGate();
+
+    private int m_limit = 0;
+    private int m_active = 0;
+    private long m_polledBytes = 0;
+
+    public synchronized void setLimit(int limit) {
+        m_limit = limit;
+        notifyAll();
+    }
+
+    public synchronized int getLimit() {
+        return m_limit;
+    }
+
+    /**
+     * Acquire the gate if below the limit, without waiting
+     *
+     * @return true if acquired
+     */
+    public synchronized boolean tryAcquire() {
+        if (m_limit > 0 && m_active >= m_limit) {
+            return false;
+        }
+        m_active++;
+        return true;
+    }
+
+    public synchronized void acquire() {
+        boolean interrupted = false;
+        while (m_limit > 0 && m_active >= m_limit) {
+            try {
+                wait();
+            }
+            catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        m_active++;
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public synchronized void release() {
+        m_active--;
+        assert m_active >= 0 : "Released the gate more than acquired";
+        notifyAll();
+    }
+
+    /**
+     * Count the bytes of a block polled while holding the gate
+     */
+    public synchronized void onPolled(long bytes) {
+        m_polledBytes += bytes;
+    }
+
+    /**
+     * @return the bytes of the blocks polled through the gate since the start
+     */
+    public synchronized long getPolledBytes() {
+        return m_polledBytes;
+    }
+}
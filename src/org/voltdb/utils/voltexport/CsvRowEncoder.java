@@ -0,0 +1,98 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2022 VoltDB Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with VoltDB.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.voltdb.utils.voltexport;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+
+import org.voltdb.exportclient.ExportRow;
+
+/**
+ * Encodes {@link ExportRow} values as RFC 4180 CSV lines.
+ * <p>
+ * Strings are only quoted when they contain a separator, a quote or an end of line, null values
+ * are empty, VARBINARY values are in hexadecimal, and TIMESTAMP values use the VoltDB format with
+ * microseconds. An encoder reuses its buffer and is not thread-safe.
+ */
+public class CsvRowEncoder {
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private final boolean m_skipInternals;
+    private final StringBuilder m_sb = new StringBuilder(1024);
+
+    public CsvRowEncoder(boolean skipInternals) {
+        m_skipInternals = skipInternals;
+    }
+
+    /**
+     * @return the UTF-8 bytes of the CSV line of a row, including the end of line
+     */
+    public byte[] encode(ExportRow row) {
+        m_sb.setLength(0);
+        int first = m_skipInternals ? ExportRow.INTERNAL_FIELD_COUNT : 0;
+        for (int i = first; i < row.values.length; i++) {
+            if (i > first) {
+                m_sb.append(',');
+            }
+            append(row.values[i]);
+        }
+        m_sb.append('\n');
+        return m_sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void append(Object v) {
+        if (v == null) {
+            return;
+        }
+        if (v instanceof String) {
+            appendString((String) v);
+        }
+        else if (v instanceof byte[]) {
+            for (byte b : (byte[]) v) {
+                m_sb.append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+            }
+        }
+        else if (v instanceof BigDecimal) {
+            m_sb.append(((BigDecimal) v).toPlainString());
+        }
+        else {
+            // Numbers, TimestampType and geography values as well-known text
+            appendString(v.toString());
+        }
+    }
+
+    private void appendString(String s) {
+        boolean quote = false;
+        for (int i = 0; i < s.length() && !quote; i++) {
+            char c = s.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            m_sb.append(s);
+            return;
+        }
+        m_sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"') {
+                m_sb.append('"');
+            }
+            m_sb.append(c);
+        }
+        m_sb.append('"');
+    }
+}
@@ -0,0 +1,113 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2022 VoltDB Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with VoltDB.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.voltdb.utils.voltexport;
+
+import static org.voltdb.utils.voltexport.VoltExport.LOG;
+
+import org.voltcore.logging.Level;
+
+/**
+ * A budget of direct memory shared by all the {@link ExportRunner} instances of a process.
+ * <p>
+ * Each runner charges the direct buffer it polls blocks into ({@link ReusableContainerFactory})
+ * before polling, and blocks when the budget is exhausted until other runners release theirs. The
+ * runners keep their buffer between blocks while no one waits, and release it after their current
+ * block when {@link #hasWaiters()}: a waiting runner waits for blocks, not for whole ranges.
+ * A request larger than the whole budget waits until no other memory is charged, and is then
+ * charged its real size: the usage may exceed the limit while that single huge block is processed,
+ * but it never under-counts the direct memory allocated.
+ * <p>
+ * A limit of 0 means unlimited: usage is still tracked so that it can be reported.
+ */
+public class DirectMemoryBudget {
+    public static final DirectMemoryBudget GLOBAL = new DirectMemoryBudget();
+
+    private static final long MB = 1024L * 1024L;
+
+    private long m_limit = 0;
+    private long m_used = 0;
+    private long m_peak = 0;
+    private long m_waits = 0;
+    private int m_waiting = 0;
+
+    public synchronized void setLimitMb(long limitMb) {
+        m_limit = limitMb * MB;
+        notifyAll();
+    }
+
+    /**
+     * Acquire direct memory from the budget, waiting until enough is available.
+     *
+     * @param bytes the amount requested
+     * @return the amount charged, to pass to {@link #release(long)}
+     */
+    public synchronized long acquire(long bytes) {
+        boolean interrupted = false;
+        boolean waited = false;
+        // An oversized request only proceeds once it is alone
+        while (m_limit > 0 && m_used > 0 && m_used + bytes > m_limit) {
+            if (!waited) {
+                waited = true;
+                m_waits++;
+                m_waiting++;
+                LOG.rateLimitedLog(60, Level.INFO, "Runners waiting for direct memory: %s", this);
+            }
+            try {
+                wait();
+            }
+            catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (waited) {
+            m_waiting--;
+        }
+        m_used += bytes;
+        m_peak = Math.max(m_peak, m_used);
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return bytes;
+    }
+
+    public synchronized void release(long charge) {
+        m_used -= charge;
+        assert m_used >= 0 : "Released more direct memory than acquired";
+        notifyAll();
+    }
+
+    /**
+     * @return true if a runner is waiting for direct memory
+     */
+    public synchronized boolean hasWaiters() {
+        return m_waiting > 0;
+    }
+
+    public synchronized long getUsed() {
+        return m_used;
+    }
+
+    public synchronized long getPeak() {
+        return m_peak;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("used %.1f MB, peak %.1f MB, limit %s, %d waits",
+                (double) m_used / MB, (double) m_peak / MB, m_limit > 0 ? (m_limit / MB) + " MB" : "none", m_waits);
+    }
+}
@@ -0,0 +1,209 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2022 VoltDB Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with VoltDB.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.voltdb.utils.voltexport;
+
+import static org.voltdb.utils.voltexport.VoltExport.LOG;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The estimated cost of exporting rows of a stream/partition, computed by a dry run of an
+ * {@link ExportRunner}.
+ * <p>
+ * The estimate extrapolates the scan of the PBD (rows and bytes per block, size of the segment files)
+ * with a sample decode of a few blocks. The sample gives the fraction of rows selected by the
+ * time window and filter, the output bytes per encoded byte, and the decode time per encoded byte,
+ * which includes polling and decompressing the blocks. The output size is that of the
+ * {@link CsvRowEncoder} encoding of the rows; the time spent writing the output is not included.
+ */
+public class DryRunEstimate {
+    private final String m_name;
+    private final int m_partition;
+    private final BlockIndex m_blocks;
+    private final long m_diskBytes;
+    private final long m_scanNanos;
+
+    // Samples
+    private int m_sampledBlocks;
+    private long m_sampledRows;
+    private long m_sampledAccepted;
+    private long m_sampledBytes;
+    private long m_sampledOutputBytes;
+    private long m_sampledNanos;
+
+    // The estimated ranges, each costing one scan of the PBD
+    private int m_runs;
+    private long m_rows;
+    private long m_bytes;
+
+    public DryRunEstimate(String name, int partition, BlockIndex blocks, long diskBytes, long scanNanos) {
+        m_name = name;
+        m_partition = partition;
+        m_blocks = blocks;
+        m_diskBytes = diskBytes;
+        m_scanNanos = scanNanos;
+    }
+
+    /**
+     * Add a range of sequence numbers to export, exported by one {@link ExportRunner} invocation
+     */
+    public void addRange(long start, long end) {
+        m_runs++;
+        m_rows += m_blocks.rowsIn(start, end);
+        m_bytes += m_blocks.bytesIn(start, end);
+    }
+
+    /**
+     * Add the samples of another estimate of the same PBD
+     */
+    public void addSamples(DryRunEstimate other) {
+        m_sampledBlocks += other.m_sampledBlocks;
+        m_sampledRows += other.m_sampledRows;
+        m_sampledAccepted += other.m_sampledAccepted;
+        m_sampledBytes += other.m_sampledBytes;
+        m_sampledOutputBytes += other.m_sampledOutputBytes;
+        m_sampledNanos += other.m_sampledNanos;
+    }
+
+    /**
+     * Add the sample decode of a block
+     *
+     * @param rows          the rows of the block in the range
+     * @param accepted      the rows selected by the time window and filter
+     * @param bytes         the encoded bytes of the rows in the range
+     * @param outputBytes   the estimated output bytes of the accepted rows
+     * @param nanos         the time spent polling and decoding the block
+     */
+    public void addSample(long rows, long accepted, long bytes, long outputBytes, long nanos) {
+        m_sampledBlocks++;
+        m_sampledRows += rows;
+        m_sampledAccepted += accepted;
+        m_sampledBytes += bytes;
+        m_sampledOutputBytes += outputBytes;
+        m_sampledNanos += nanos;
+    }
+
+    public boolean hasSamples() {
+        return m_sampledBlocks > 0;
+    }
+
+    public String getName() {
+        return m_name;
+    }
+
+    public int getPartition() {
+        return m_partition;
+    }
+
+    public long getRows() {
+        return m_rows;
+    }
+
+    public long getDiskBytes() {
+        return m_diskBytes;
+    }
+
+    public long getExportedRows() {
+        return m_sampledRows == 0 ? 0 : Math.round(m_rows * ((double) m_sampledAccepted / m_sampledRows));
+    }
+
+    public long getOutputBytes() {
+        return m_sampledBytes == 0 ? 0 : Math.round(m_bytes * ((double) m_sampledOutputBytes / m_sampledBytes));
+    }
+
+    /**
+     * @return the estimated time to export the ranges, scanning the PBD once per range
+     */
+    public long getNanos() {
+        long decodeNanos = m_sampledBytes == 0 ? 0 : Math.round(m_bytes * ((double) m_sampledNanos / m_sampledBytes));
+        return m_runs * m_scanNanos + decodeNanos;
+    }
+
+    /**
+     * Estimate the wall time of jobs run by a pool of threads, assigning the longest jobs first
+     * to the least loaded thread.
+     *
+     * @param jobNanos  the time of each job
+     * @param threads   the count of threads
+     * @return the estimated wall time
+     */
+    public static long getWallNanos(long[] jobNanos, int threads) {
+        long[] sorted = jobNanos.clone();
+        Arrays.sort(sorted);
+        long[] loads = new long[Math.max(1, Math.min(threads, sorted.length))];
+        for (int i = sorted.length - 1; i >= 0; i--) {
+            int least = 0;
+            for (int t = 1; t < loads.length; t++) {
+                if (loads[t] < loads[least]) {
+                    least = t;
+                }
+            }
+            loads[least] += sorted[i];
+        }
+        return Arrays.stream(loads).max().getAsLong();
+    }
+
+    /**
+     * Log the totals of a collection of estimates exported by a pool of threads
+     *
+     * @param estimates the estimates, one per job
+     * @param threads   the count of threads
+     * @param outdir    the output directory
+     */
+    public static void logSummary(Collection<DryRunEstimate> estimates, int threads, String outdir) {
+        long rows = 0, exportedRows = 0, diskBytes = 0, outputBytes = 0;
+        long[] jobNanos = new long[estimates.size()];
+        int i = 0;
+        for (DryRunEstimate est : estimates) {
+            rows += est.getRows();
+            exportedRows += est.getExportedRows();
+            diskBytes += est.getDiskBytes();
+            outputBytes += est.getOutputBytes();
+            jobNanos[i++] = est.getNanos();
+        }
+        LOG.infoFmt("Dry run estimate for %d jobs at %d threads: %d rows in range (PBD %s on disk), "
+                + "%d rows exported, output %s, wall time %s",
+                estimates.size(), threads, rows, formatBytes(diskBytes), exportedRows,
+                formatBytes(outputBytes), formatNanos(getWallNanos(jobNanos, threads)));
+
+        long usable = new File(outdir).getUsableSpace();
+        if (usable > 0 && usable < outputBytes) {
+            LOG.warnFmt("Output directory %s has only %s of usable space", outdir, formatBytes(usable));
+        }
+    }
+
+    static String formatBytes(long bytes) {
+        return String.format("%.1f MB", bytes / (1024.0 * 1024.0));
+    }
+
+    static String formatNanos(long nanos) {
+        long secs = TimeUnit.NANOSECONDS.toSeconds(nanos);
+        return String.format("%d:%02d:%02d", secs / 3600, (secs / 60) % 60, secs % 60);
+    }
+
+    @Override
+    public String toString() {
+        double compression = m_diskBytes == 0 ? 0 : (double) m_blocks.getTotalBytes() / m_diskBytes;
+        return String.format("%d rows in range (PBD %s on disk, compression %.1fx), sampled %d blocks (%d rows), "
+                + "%d rows exported, output %s, time %s",
+                m_rows, formatBytes(m_diskBytes), compression, m_sampledBlocks, m_sampledRows,
+                getExportedRows(), formatBytes(getOutputBytes()), formatNanos(getNanos()));
+    }
+}
@@ -19,123 +19,222 @@ package org.voltdb.utils.voltexport;
 import static org.voltdb.utils.voltexport.VoltExport.LOG;
 import static org.voltdb.utils.voltexport.VoltExport.VOLTLOG;
 
-import java.io.File;
 import java.io.IOException;
-import java.nio.file.FileVisitResult;
-import java.nio.file.FileVisitor;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.attribute.BasicFileAttributes;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.NavigableMap;
-import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
 
-import org.voltcore.utils.Pair;
 import org.voltdb.catalog.Database;
 import org.voltdb.catalog.Table;
 import org.voltdb.utils.CatalogUtil;
 import org.voltdb.utils.PbdSegmentName;
 import org.voltdb.utils.PbdSegmentName.Result;
 
-public class ExportFileVisitor implements FileVisitor<Path>{
+/**
+ * Discovers the stream/partitions of an export overflow directory, laid out as
+ * {@code <indir>/<STREAM>/<partition>/<PBD files>}.
+ * <p>
+ * The stream directories are listed in parallel, and each stream/partition holding PBD files is passed
+ * to a consumer as soon as it is found, so that its export may start while the discovery goes on. The
+ * discovery only reads the directories.
+ */
+public class ExportFileVisitor {
+    // The count of threads listing the stream directories
+    private static final int DISCOVERY_THREADS = Integer.getInteger("DISCOVERY_THREADS", 8);
+
     private final String m_indir;
     private final NavigableMap<String, Table> m_streams;
 
-    private boolean rootVisited = false;
-    private Table m_table = null;
-    private int m_partition = -1;
-    private boolean m_pbdFound = false;
-    private Set<Pair<String, Integer>> m_results = new HashSet<>();
+    /**
+     * A stream/partition found in the export overflow directory
+     */
+    public static class StreamPartition {
+        public final String m_stream;
+        public final int m_partition;
+        public final int m_segments;
+        public final long m_bytes;
 
-    public ExportFileVisitor(String indir, Database db) {
-        m_indir = indir;
-        m_streams = CatalogUtil.getAllStreamsExcludingViews(db);
-    }
+        StreamPartition(String stream, int partition, int segments, long bytes) {
+            m_stream = stream;
+            m_partition = partition;
+            m_segments = segments;
+            m_bytes = bytes;
+        }
 
-    public Set<Pair<String, Integer>> visit() throws IOException {
-        m_results.clear();
-        Files.walkFileTree(new File(m_indir).toPath(), this);
-        return m_results;
+        @Override
+        public String toString() {
+            return m_stream + ":" + m_partition + " (" + m_segments + " segments, "
+                    + DryRunEstimate.formatBytes(m_bytes) + ")";
+        }
     }
 
-    @Override
-    public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
-        if (!rootVisited) {
-            rootVisited = true;
-        } else if (m_table == null) {
-            if (!findStream(dir.getFileName().toString())) {
-                LOG.infoFmt("Skipping directory for export stream which doesn't exist: %s", dir);
-                return FileVisitResult.SKIP_SUBTREE;
-            }
-        } else if (m_partition == -1) {
-            m_partition = Integer.parseInt(dir.getFileName().toString());
-            m_pbdFound = false;
-        } else {
-            LOG.warnFmt("Unexpected directory encountered while recovering export streams: %s", dir);
-            return FileVisitResult.SKIP_SUBTREE;
-        }
-        return FileVisitResult.CONTINUE;
+    /**
+     * @param indir the export overflow directory
+     * @param db    the catalog database, or null to accept the stream directories found in indir
+     */
+    public ExportFileVisitor(String indir, Database db) {
+        m_indir = indir;
+        m_streams = db == null ? null : CatalogUtil.getAllStreamsExcludingViews(db);
     }
 
-    @Override
-    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-        if (m_table != null && m_partition != -1) {
-            PbdSegmentName pbdName = PbdSegmentName.parseFile(VOLTLOG, file.toFile());
-            if (pbdName.m_result == Result.OK) {
-                m_pbdFound = true;
-                if (m_table != null) {
-                    if (!getPathForExportStream(m_indir, m_table.getTypeName().toUpperCase(), m_partition)
-                            .equals(file.getParent().toString())) {
-                        LOG.warnFmt("Misplaced export file %s", file.toAbsolutePath());
-                    }
-                    else {
-                        m_results.add(Pair.of(m_table.getTypeName(), m_partition));
-                    }
+    /**
+     * Discover all the stream/partitions holding PBD files.
+     *
+     * @param consumer  called with each stream/partition found, concurrently from the discovery threads
+     * @return the count of stream/partitions found
+     * @throws IOException
+     */
+    public int discover(Consumer<StreamPartition> consumer) throws IOException {
+        List<Path> dirs = new ArrayList<>();
+        List<String> streams = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(Paths.get(m_indir))) {
+            for (Path dir : ds) {
+                if (!Files.isDirectory(dir)) {
+                    LOG.warnFmt("Unexpected file encountered while recovering export streams: %s", dir);
+                    continue;
+                }
+                String stream = findStream(dir.getFileName().toString());
+                if (stream == null) {
+                    LOG.infoFmt("Skipping directory for export stream which doesn't exist: %s", dir);
+                    continue;
                 }
-                return FileVisitResult.SKIP_SIBLINGS;
+                dirs.add(dir);
+                streams.add(stream);
             }
-            else if (pbdName.m_result == Result.NOT_PBD) {
-                LOG.warnFmt("%s is not a PBD file.", file);
+        }
+        if (dirs.isEmpty()) {
+            return 0;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(DISCOVERY_THREADS, dirs.size()));
+        try {
+            List<Future<Integer>> futures = new ArrayList<>();
+            for (int i = 0; i < dirs.size(); i++) {
+                Path dir = dirs.get(i);
+                String stream = streams.get(i);
+                futures.add(pool.submit(() -> discoverStream(dir, stream, consumer)));
             }
-            else if (pbdName.m_result == Result.INVALID_NAME) {
-                LOG.warnFmt("%s doesn't have valid PBD name.", file);
+
+            int count = 0;
+            for (Future<Integer> fut : futures) {
+                count += fut.get().intValue();
             }
-        } else {
-            LOG.warnFmt("Unexpected file encountered while recovering export streams: %s", file);
+            return count;
+        }
+        catch (ExecutionException e) {
+            throw new IOException("Failed discovering export streams in " + m_indir, e.getCause());
+        }
+        catch (InterruptedException e) {
+            throw new IOException("Interrupted discovering export streams in " + m_indir, e);
+        }
+        finally {
+            pool.shutdownNow();
         }
-        return FileVisitResult.CONTINUE;
     }
 
-    @Override
-    public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
-        throw new IOException("Error visiting: " + file, exc);
+    /**
+     * Discover one stream/partition
+     *
+     * @return the stream/partition, or null if it has no PBD files
+     * @throws IOException
+     */
+    public StreamPartition discover(String stream, int partition) throws IOException {
+        Path dir = Paths.get(getPathForExportStream(m_indir, stream, partition));
+        if (!Files.isDirectory(dir)) {
+            return null;
+        }
+        if (m_streams != null) {
+            stream = findStream(dir.getParent().getFileName().toString());
+            if (stream == null) {
+                LOG.infoFmt("Stream %s doesn't exist in catalog", dir.getParent().getFileName());
+                return null;
+            }
+        }
+        return discoverPartition(dir, stream, partition);
     }
 
-    @Override
-    public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
-        if (m_partition != -1) {
-            if (!m_pbdFound) {
-                LOG.infoFmt("Found empty export directory: %s", dir);
+    private int discoverStream(Path dir, String stream, Consumer<StreamPartition> consumer) throws IOException {
+        int count = 0;
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+            for (Path partitionDir : ds) {
+                if (!Files.isDirectory(partitionDir)) {
+                    LOG.warnFmt("Unexpected file encountered while recovering export streams: %s", partitionDir);
+                    continue;
+                }
+                int partition;
+                try {
+                    partition = Integer.parseInt(partitionDir.getFileName().toString());
+                }
+                catch (NumberFormatException e) {
+                    LOG.warnFmt("Skipping directory which isn't a partition: %s", partitionDir);
+                    continue;
+                }
+                StreamPartition sp = discoverPartition(partitionDir, stream, partition);
+                if (sp != null) {
+                    consumer.accept(sp);
+                    count++;
+                }
             }
-            m_partition = -1;
-        } else {
-            m_table = null;
         }
-        return FileVisitResult.CONTINUE;
+        return count;
     }
 
-    private boolean findStream(String streamName) {
-        m_table = m_streams.get(streamName);
-        return m_table != null;
+    private StreamPartition discoverPartition(Path dir, String stream, int partition) throws IOException {
+        String nonce = stream.toUpperCase() + "_" + partition;
+        int segments = 0;
+        long bytes = 0;
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+            for (Path file : ds) {
+                if (Files.isDirectory(file)) {
+                    LOG.warnFmt("Unexpected directory encountered while recovering export streams: %s", file);
+                    continue;
+                }
+                PbdSegmentName pbdName = PbdSegmentName.parseFile(VOLTLOG, file.toFile());
+                if (pbdName.m_result == Result.OK) {
+                    if (!nonce.equals(pbdName.m_nonce)) {
+                        LOG.warnFmt("Misplaced export file %s", file.toAbsolutePath());
+                        continue;
+                    }
+                    segments++;
+                    bytes += Files.size(file);
+                }
+                else if (pbdName.m_result == Result.NOT_PBD) {
+                    LOG.warnFmt("%s is not a PBD file.", file);
+                }
+                else if (pbdName.m_result == Result.INVALID_NAME) {
+                    LOG.warnFmt("%s doesn't have valid PBD name.", file);
+                }
+            }
+        }
+        if (segments == 0) {
+            LOG.infoFmt("Found empty export directory: %s", dir);
+            return null;
+        }
+        return new StreamPartition(stream, partition, segments, bytes);
     }
 
-    public static String getPathForExportStream(String dirName, String name, int partition) throws IOException {
-        Path path = Paths.get(dirName, name.toUpperCase(), Integer.toString(partition));
-        if (!Files.isDirectory(path)) {
-            Files.deleteIfExists(path);
-            Files.createDirectories(path);
+    private String findStream(String streamName) {
+        if (m_streams == null) {
+            // No catalog: the PBD nonces of the partition directories confirm the stream
+            return streamName;
         }
-        return path.toString();
+        Table table = m_streams.get(streamName);
+        return table == null ? null : table.getTypeName();
+    }
+
+    /**
+     * @return the path of the directory of a stream/partition, which may not exist
+     */
+    public static String getPathForExportStream(String dirName, String name, int partition) {
+        return Paths.get(dirName, name.toUpperCase(), Integer.toString(partition)).toString();
     }
 }
@@ -0,0 +1,351 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2022 VoltDB Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with VoltDB.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.voltdb.utils.voltexport;
+
+import static org.voltdb.utils.voltexport.VoltExport.LOG;
+import static org.voltdb.utils.voltexport.VoltExport.VOLTLOG;
+
+import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.StringUtils;
+import org.voltcore.utils.Pair;
+import org.voltdb.catalog.Database;
+import org.voltdb.exportclient.ExportClientBase;
+import org.voltdb.utils.PbdSegmentName;
+import org.voltdb.utils.PbdSegmentName.Result;
+import org.voltdb.utils.voltexport.ExportFileVisitor.StreamPartition;
+import org.voltdb.utils.voltexport.VoltExport.VoltExportConfig;
+
+/**
+ * Follows a live export overflow directory, exporting the rows appended to its stream/partitions
+ * until stopped.
+ * <p>
+ * The input directory is only read: on each cycle, the segments of each stream/partition that are new
+ * or have grown since the previous cycle are copied to a staging directory, and an {@link ExportRunner}
+ * exports the rows of the staged PBD above the last sequence number exported. Only the tail segment of
+ * a stream/partition grows, so a cycle copies the new segments once and the tail segment again. The
+ * staged segments are deleted by the PBD once exported, except the tail segment.
+ * <p>
+ * The changes are detected by listing the partition directories and comparing the sizes and times
+ * of the segments, which works on network file systems where file watching does not.
+ * <p>
+ * The watermark of a stream/partition is only advanced once the rows exported are written: the
+ * {@link Flushable} clients are flushed after each cycle, and with watermarks the other clients are
+ * shut down, committing their output, and replaced. A client failing to flush or shut down is
+ * replaced, and its rows are exported again by the next cycle.
+ */
+public class ExportFollower {
+    private final VoltExport m_export;
+    private final VoltExportConfig m_cfg;
+    private final Database m_db;
+    private final ExecutorService m_executor;
+    private final String m_staging;
+    private final WatermarkStore m_watermarks;
+    private long m_rangeEnd = Long.MAX_VALUE;
+
+    private final Map<Pair<String, Integer>, Followed> m_followed = new HashMap<>();
+    private final CountDownLatch m_stopped = new CountDownLatch(1);
+    private volatile boolean m_stop = false;
+
+    /**
+     * A followed stream/partition
+     */
+    private class Followed {
+        final String m_stream;
+        final int m_partition;
+        ExportClientBase m_client;
+        final Path m_source;
+        final Path m_target;
+        // The size and time of the segments last copied, by file name
+        final Map<String, String> m_copied = new HashMap<>();
+        long m_lastSeqNo;
+        boolean m_pending = true;
+
+        Followed(String stream, int partition, ExportClientBase client, long firstSeqNo) {
+            m_stream = stream;
+            m_partition = partition;
+            m_client = client;
+            m_source = Paths.get(ExportFileVisitor.getPathForExportStream(m_cfg.indir, stream, partition));
+            m_target = Paths.get(ExportFileVisitor.getPathForExportStream(m_staging, stream, partition));
+            m_lastSeqNo = firstSeqNo - 1;
+            if (m_watermarks != null) {
+                m_lastSeqNo = Math.max(m_lastSeqNo, m_watermarks.get(stream, partition));
+            }
+        }
+
+        /**
+         * Copy the new or changed segments to the staging directory
+         *
+         * @return true if segments were copied
+         */
+        boolean sync() throws IOException {
+            if (!Files.isDirectory(m_source)) {
+                return false;
+            }
+            Files.createDirectories(m_target);
+            String nonce = m_stream.toUpperCase() + "_" + m_partition;
+            boolean changed = false;
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(m_source)) {
+                for (Path file : ds) {
+                    PbdSegmentName pbdName = PbdSegmentName.parseFile(VOLTLOG, file.toFile());
+                    if (pbdName.m_result != Result.OK || !nonce.equals(pbdName.m_nonce)) {
+                        continue;
+                    }
+                    // Record the state before copying: a segment growing during the copy is copied again
+                    String name = file.getFileName().toString();
+                    File f = file.toFile();
+                    String state = f.length() + "@" + f.lastModified();
+                    if (state.equals(m_copied.get(name))) {
+                        continue;
+                    }
+                    try {
+                        Files.copy(file, m_target.resolve(name), StandardCopyOption.REPLACE_EXISTING);
+                    }
+                    catch (IOException e) {
+                        if (Files.exists(file)) {
+                            throw e;
+                        }
+                        // Deleted by VoltDB during the copy, after being exported to the export target
+                        Files.deleteIfExists(m_target.resolve(name));
+                        continue;
+                    }
+                    m_copied.put(name, state);
+                    changed = true;
+                }
+            }
+            return changed;
+        }
+
+        @Override
+        public String toString() {
+            return m_stream + ":" + m_partition;
+        }
+    }
+
+    /**
+     * @param watermarks    the watermarks to start from and advance after each cycle, or null
+     */
+    ExportFollower(VoltExport export, VoltExportConfig cfg, Database db, ExecutorService executor,
+            WatermarkStore watermarks) {
+        m_export = export;
+        m_watermarks = watermarks;
+        m_cfg = cfg;
+        m_db = db;
+        m_executor = executor;
+        m_staging = getStagingDir(cfg);
+    }
+
+    /**
+     * Follow the input directory until stopped
+     *
+     * @return true if successful
+     */
+    boolean run() {
+        boolean success = true;
+        try {
+            LOG.infoFmt("Following %s every %d seconds, staging segments in %s",
+                    m_cfg.indir, m_cfg.follow_interval, m_staging);
+            long firstSeqNo = 0L;
+            if (!StringUtils.isBlank(m_cfg.range)) {
+                String[] numbers = m_cfg.range.split(",");
+                firstSeqNo = Long.parseLong(numbers[0].trim());
+                m_rangeEnd = Long.parseLong(numbers[1].trim());
+            }
+            while (!m_stop) {
+                long start = System.currentTimeMillis();
+                if (!cycle(firstSeqNo)) {
+                    success = false;
+                }
+                long sleepMs = TimeUnit.SECONDS.toMillis(m_cfg.follow_interval) - (System.currentTimeMillis() - start);
+                while (!m_stop && sleepMs > 0) {
+                    Thread.sleep(Math.min(sleepMs, 1000));
+                    sleepMs -= 1000;
+                }
+            }
+        }
+        catch (Exception e) {
+            LOG.errorFmt("Failed following %s", m_cfg.indir);
+            e.printStackTrace();
+            success = false;
+        }
+        finally {
+            for (Followed f : m_followed.values()) {
+                if (f.m_client != null) {
+                    try {
+                        f.m_client.shutdown();
+                    }
+                    catch (Exception e) {
+                        LOG.errorFmt("Failed shutting down export client of %s", f);
+                        e.printStackTrace();
+                        success = false;
+                    }
+                }
+                LOG.infoFmt("Stopped following %s at sequence number %d", f, f.m_lastSeqNo);
+            }
+            m_stopped.countDown();
+        }
+        return success;
+    }
+
+    /**
+     * Stop following after the current cycle, and wait for the export clients to shut down
+     */
+    void stop() {
+        m_stop = true;
+        try {
+            m_stopped.await();
+        }
+        catch (InterruptedException ignore) {}
+    }
+
+    // Export the rows appended since the previous cycle, return true if successful
+    private boolean cycle(long firstSeqNo) throws Exception {
+        // Find the stream/partitions, including the ones created since the previous cycle
+        List<StreamPartition> found = new ArrayList<>();
+        ExportFileVisitor visitor = new ExportFileVisitor(m_cfg.indir, m_db);
+        if (m_cfg.exportall) {
+            ConcurrentLinkedQueue<StreamPartition> queue = new ConcurrentLinkedQueue<>();
+            visitor.discover(queue::add);
+            found.addAll(queue);
+        }
+        else {
+            StreamPartition sp = visitor.discover(m_cfg.stream_name, m_cfg.partition);
+            if (sp != null) {
+                found.add(sp);
+            }
+        }
+
+        // Stage the new segments, and export the stream/partitions that changed
+        boolean success = true;
+        List<Pair<Followed, Future<VoltExportResult>>> results = new ArrayList<>();
+        for (StreamPartition sp : found) {
+            Pair<String, Integer> key = Pair.of(sp.m_stream, sp.m_partition);
+            Followed f = m_followed.get(key);
+            if (f == null) {
+                f = new Followed(sp.m_stream, sp.m_partition,
+                        m_export.createExportClient(m_cfg.getTarget(), sp.m_stream, sp.m_partition), firstSeqNo);
+                m_followed.put(key, f);
+                LOG.infoFmt("Following %s", sp);
+            }
+            if (f.m_lastSeqNo >= m_rangeEnd) {
+                continue;
+            }
+            if (f.m_client == null) {
+                f.m_client = m_export.createExportClient(m_cfg.getTarget(), f.m_stream, f.m_partition);
+            }
+            try {
+                f.m_pending |= f.sync();
+            }
+            catch (IOException e) {
+                LOG.errorFmt("Failed staging the segments of %s", f);
+                e.printStackTrace();
+                success = false;
+                continue;
+            }
+            if (!f.m_pending) {
+                continue;
+            }
+
+            VoltExportConfig cfg = (VoltExportConfig)m_cfg.clone();
+            cfg.indir = m_staging;
+            cfg.exportall = false;
+            cfg.stream_name = f.m_stream;
+            cfg.partition = f.m_partition;
+            cfg.range = (f.m_lastSeqNo + 1) + "," + m_rangeEnd;
+            results.add(Pair.of(f, m_executor.submit(new ExportRunner(cfg, f.m_client, m_db))));
+        }
+
+        for (Pair<Followed, Future<VoltExportResult>> p : results) {
+            Followed f = p.getFirst();
+            try {
+                VoltExportResult res = p.getSecond().get();
+                if (res.success && res.lastSeqNo >= 0 && commit(f)) {
+                    f.m_lastSeqNo = Math.max(f.m_lastSeqNo, res.lastSeqNo);
+                    f.m_pending = false;
+                    if (m_watermarks != null) {
+                        m_watermarks.advance(f.m_stream, f.m_partition, f.m_lastSeqNo);
+                    }
+                }
+                else {
+                    // Exported again from the last sequence number on the next cycle
+                    success = false;
+                }
+            }
+            catch (Exception e) {
+                LOG.errorFmt("Failed exporting %s", f);
+                e.printStackTrace();
+                success = false;
+            }
+        }
+        if (m_watermarks != null && !results.isEmpty()) {
+            m_watermarks.save();
+        }
+        return success;
+    }
+
+    // Write the rows exported by the client of a stream/partition before advancing its watermark: flush
+    // it, or with watermarks shut it down to commit its output, return true if the rows are written
+    private boolean commit(Followed f) {
+        try {
+            if (f.m_client instanceof Flushable) {
+                ((Flushable) f.m_client).flush();
+            }
+            else if (m_watermarks != null) {
+                ExportClientBase client = f.m_client;
+                // Created again by the next cycle
+                f.m_client = null;
+                client.shutdown();
+            }
+            return true;
+        }
+        catch (Exception e) {
+            LOG.errorFmt("Failed writing the rows of %s, exporting them again on the next cycle", f);
+            e.printStackTrace();
+            if (f.m_client != null) {
+                try {
+                    f.m_client.shutdown();
+                }
+                catch (Exception ignore) {}
+                f.m_client = null;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * @return the staging directory of a configuration
+     */
+    static String getStagingDir(VoltExportConfig cfg) {
+        return StringUtils.isBlank(cfg.staging) ? Paths.get(cfg.outdir, ".follow").toString() : cfg.staging;
+    }
+}
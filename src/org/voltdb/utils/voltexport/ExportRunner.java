@@ -23,14 +23,16 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadLocalRandom;
-import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.lang3.StringUtils;
-import org.voltcore.utils.CoreUtils;
 import org.voltcore.utils.DBBPool.BBContainer;
 import org.voltcore.utils.Pair;
 import org.voltdb.catalog.Database;
@@ -45,21 +47,27 @@ import org.voltdb.exportclient.ExportRow;
 import org.voltdb.exportclient.ExportRowSchema;
 import org.voltdb.exportclient.PersistedMetadata;
 import org.voltdb.exportclient.PersistedMetadataSerializer;
+import org.voltdb.types.TimestampType;
 import org.voltdb.utils.BinaryDeque;
 import org.voltdb.utils.BinaryDeque.BinaryDequeScanner;
 import org.voltdb.utils.BinaryDequeReader;
+import org.voltdb.utils.PbdSegmentName;
 import org.voltdb.utils.PersistentBinaryDeque;
 import org.voltdb.utils.voltexport.VoltExport.VoltExportConfig;
 
-public class ExportRunner implements Callable<VoltExportResult> {
-    // Create a singleton scheduled thread pool for block processing timeouts
-    private static final ScheduledThreadPoolExecutor s_timeoutExecutor =
-            CoreUtils.getScheduledThreadPoolExecutor("Block Processing Timeouts", 1, CoreUtils.MEDIUM_STACK_SIZE);
+import com.google_voltpatches.common.collect.Range;
 
+public class ExportRunner implements Callable<VoltExportResult> {
     public static final String EXPORT_BLOCK_TIMEOUT_MS = "EXPORT_BLOCK_TIMEOUT_MS";
     private static final Integer s_blockTimeoutMs = Integer.getInteger(EXPORT_BLOCK_TIMEOUT_MS, 60_000);
+
+    // A singleton watchdog detecting runners stalled on a block for longer than the block timeout
+    private static final StallWatchdog s_watchdog = new StallWatchdog(s_blockTimeoutMs);
     private static final int BACKOFF_CAP_MS = 8000;
 
+    // The count of blocks polled by a dry run to sample its ranges
+    private static final int DRYRUN_SAMPLE_BLOCKS = Integer.getInteger("DRYRUN_SAMPLE_BLOCKS", 8);
+
     private final VoltExportConfig m_cfg;
     private final ExportClientBase m_exportClient;
     private final Database m_db;
@@ -67,9 +75,42 @@ public class ExportRunner implements Callable<VoltExportResult> {
     private AdvertisedDataSource m_ads;
     private BinaryDeque<PersistedMetadata> m_pbd;
     private BinaryDequeReader<PersistedMetadata> m_reader;
+    private final ReusableContainerFactory m_containerFactory = new ReusableContainerFactory(DirectMemoryBudget.GLOBAL);
 
     private Pair<Long, Long> m_range = new Pair<>(0L, Long.MAX_VALUE);
-    private long m_count;
+    private BlockIndex m_blocks = new BlockIndex();
+    // The first failure closing a decoder, guarded by the runner lock
+    private Exception m_decoderFailure;
+    private long m_scanNanos;
+    private boolean m_hasTimeWindow;
+    private long m_fromTime = Long.MIN_VALUE;   // microseconds, inclusive
+    private long m_toTime = Long.MAX_VALUE;     // microseconds, inclusive
+    private RowFilter m_filter;
+    private long m_filtered;
+    private RowProjection m_projection;
+    private RowSampler m_sampler;
+    private AggregateQuery m_query;
+    // The key looked up, with the key index of the PBD if built by a scan, and the rows found,
+    // printed by the main thread once the runners are done
+    private boolean m_lookup;
+    private KeyIndex m_keyIndex;
+    private final List<String> m_lookupRows = new ArrayList<>();
+    // The reader of the schema of the last block looked up, and the key parsed for its key column
+    private RawRowReader m_lookupReader;
+    private int m_lookupColumn;
+    private Object m_lookupKey;
+    private long m_lookupSkipped;
+    private long m_lookupDecoded;
+    private long m_sampleSkipped;
+    // Only read the PBD: the blocks are not released, so that no segment is deleted
+    private boolean m_readOnly;
+    // The column names and types of each schema generation decoded, used by the stitch finalize step
+    private final Map<Long, String> m_schemas = new HashMap<>();
+
+    private volatile long m_count;
+    // Heartbeat sampled by the stall watchdog: the rows read by the decoding loop, exported or not
+    private volatile long m_processed;
+    private volatile PollBlock m_currentBlock;
 
     // These may be changed by the block timeout logic
     private volatile ExportDecoderBase m_edb;
@@ -94,7 +135,11 @@ public class ExportRunner implements Callable<VoltExportResult> {
         }
 
         public ExportRowSchema getSchema() {
-            return m_entry.getExtraHeader().getSchema();
+            PersistedMetadata metadata = m_entry.getExtraHeader();
+            if (metadata == null) {
+                throw new IllegalStateException("No schema persisted in the segment of block " + this);
+            }
+            return metadata.getSchema();
         }
 
         @Override
@@ -103,6 +148,11 @@ public class ExportRunner implements Callable<VoltExportResult> {
         }
     }
 
+    /**
+     * @param cfg           the configuration of the stream/partition
+     * @param exportClient  the export client, or null if the rows are only read by a query
+     * @param db            the catalog database, or null to only use the schemas persisted in the segments
+     */
     public ExportRunner(VoltExportConfig cfg, ExportClientBase exportClient, Database db) {
         m_cfg = cfg;
         m_exportClient = exportClient;
@@ -115,39 +165,114 @@ public class ExportRunner implements Callable<VoltExportResult> {
         ExportSequenceNumberTracker tracker = null;
         Exception lastError = null;
         try {
-            if (!parseRange()) {
+            if (!parseRange() || !parseTimeWindow() || !parseFilter() || !parseProjection() || !parseSample() || !parseQuery() || !parseLookup()) {
                 LOG.infoFmt("%s processed %d rows (skipped = %d, exported = %d), export INCOMPLETE", this, 0, 0, 0);
                 return new VoltExportResult(false, tracker, m_cfg.stream_name, m_cfg.partition);
             }
-            if (!m_cfg.onlyscan) {
+            m_readOnly = m_sampler != null || m_query != null || m_lookup;
+            if (m_query != null) {
+                LOG.infoFmt("%s querying %s in range = [%d, %d]",
+                        this, m_query, m_range.getFirst(), m_range.getSecond());
+            }
+            else if (m_lookup) {
+                LOG.infoFmt("%s looking up %s = %s in range = [%d, %d]",
+                        this, m_cfg.index_key, m_cfg.key, m_range.getFirst(), m_range.getSecond());
+            }
+            else if (!m_cfg.onlyscan && !m_cfg.dryrun) {
                 LOG.infoFmt("%s exporting range = [%d, %d]",
                         this, m_range.getFirst(), m_range.getSecond());
             }
+            // A missing directory is an empty PBD: the input directory is never written to create it
+            if (!new File(ExportFileVisitor.getPathForExportStream(m_cfg.indir, m_cfg.stream_name, m_cfg.partition)).isDirectory()) {
+                LOG.infoFmt("%s found no PBD directory in %s", this, m_cfg.indir);
+                tracker = new ExportSequenceNumberTracker();
+                return new VoltExportResult(true, tracker, m_cfg.stream_name, m_cfg.partition, getLastSeqNo(tracker));
+            }
             setup();
 
             m_reader = m_pbd.openForRead("foo");
-            tracker = new ExportSequenceNumberTracker(scanForGap());
+            long scanStart = System.nanoTime();
+            tracker = scanForGap().toTracker();
+            m_scanNanos = System.nanoTime() - scanStart;
             LOG.infoFmt("%s scanned PBD: %s", this, tracker.toString());
-            if (m_cfg.onlyscan) return new VoltExportResult(true, tracker, m_cfg.stream_name, m_cfg.partition);
+            if (m_cfg.onlyscan) {
+                if (!StringUtils.isBlank(m_cfg.index_key)) {
+                    buildKeyIndex();
+                }
+                return new VoltExportResult(true, tracker, m_cfg.stream_name, m_cfg.partition);
+            }
+
+            boolean inWindow = applyTimeWindow();
+            if (m_cfg.dryrun) {
+                DryRunEstimate estimate = estimate(inWindow);
+                LOG.infoFmt("%s dry run: %s", this, estimate);
+                return new VoltExportResult(true, tracker, m_cfg.stream_name, m_cfg.partition, estimate);
+            }
+            if (!inWindow) {
+                LOG.infoFmt("%s has no rows in time window, export COMPLETE", this);
+                return new VoltExportResult(true, tracker, m_cfg.stream_name, m_cfg.partition, getLastSeqNo(tracker));
+            }
 
+            s_watchdog.register(this);
             PollBlock pb = null;
             do {
-                // Poll 1 block from PBD
-                pb = pollPersistentDeque();
-                if (pb == null) {
-                    break;
+                // Only process the blocks of a limited count of runners at a time when autotuning;
+                // give back the buffer before waiting, the runners in the gate may need the memory
+                if (!ConcurrencyGate.GLOBAL.tryAcquire()) {
+                    m_containerFactory.close();
+                    ConcurrencyGate.GLOBAL.acquire();
                 }
+                try {
+                    // Poll 1 block from PBD
+                    boolean startOfSegment = m_sampler != null && m_reader.isStartOfSegment();
+                    pb = pollPersistentDeque();
+                    if (pb == null) {
+                        break;
+                    }
+                    IoThrottle.GLOBAL.onRead(pb.m_entry.getData().limit());
+                    ConcurrencyGate.GLOBAL.onPolled(pb.m_entry.getData().limit());
+
+                    // Skip the blocks without rows in the sample without decoding them
+                    if (m_sampler != null && !m_sampler.acceptBlock(pb.m_start, pb.m_last, startOfSegment, m_range.getFirst())) {
+                        if (pb.m_start > m_range.getSecond().longValue()) {
+                            break;
+                        }
+                        releaseBlock(pb);
+                        pb = null;
+                        m_sampleSkipped++;
+                        continue;
+                    }
 
-                // Process and discard polled block
-                // If block incompletely processed, exit without discarding (we hit the end
-                // of the range and we don't want the block release to trigger the deletion of the PBD file)
-                // NOTE: this requires running against a production build that doesn't check for memory leaks
-                if (!processBlock(pb)) {
-                    break;
-                }
-                pb.release();
-                pb = null;
+                    // Skip the blocks below the range without decoding them
+                    if (pb.m_last < m_range.getFirst().longValue()) {
+                        releaseBlock(pb);
+                        pb = null;
+                        continue;
+                    }
 
+                    // Process and discard polled block
+                    // If block incompletely processed, exit without discarding (we hit the end
+                    // of the range and we don't want the block release to trigger the deletion of the PBD file)
+                    // NOTE: this requires running against a production build that doesn't check for memory leaks
+                    long count = m_count;
+                    boolean complete = m_query != null ? queryBlock(pb) : m_lookup ? lookupBlock(pb) : processBlock(pb);
+                    if (m_count > count && pb.m_count > 0) {
+                        // Charge the share of the block's row bytes that was exported
+                        long rows = m_count - count;
+                        long bytes = (pb.m_entry.getData().limit() - StreamBlock.HEADER_SIZE) * Math.min(rows, pb.m_count) / pb.m_count;
+                        IoThrottle.GLOBAL.onExport(bytes, rows);
+                    }
+                    if (!complete) {
+                        break;
+                    }
+                    releaseBlock(pb);
+                    pb = null;
+                }
+                finally {
+                    ConcurrencyGate.GLOBAL.release();
+                    // Done with the block: let the runners waiting for direct memory have the buffer
+                    m_containerFactory.releaseIfContended();
+                }
             } while (true);
         }
         catch (Exception e) {
@@ -156,13 +281,44 @@ public class ExportRunner implements Callable<VoltExportResult> {
             lastError = e;
         }
         finally {
+            s_watchdog.unregister(this);
             finalizeDecoder();
+            if (lastError == null) {
+                lastError = m_decoderFailure;
+            }
+            m_containerFactory.close();
+            if (m_cfg.follow && m_pbd != null) {
+                // The follower opens the staged PBD again on its next cycle
+                try {
+                    m_pbd.close();
+                }
+                catch (IOException e) {
+                    LOG.errorFmt("%s failed closing PBD", this);
+                    e.printStackTrace();
+                }
+            }
         }
 
         // Print enough information to let the user resume after a failure - note: no range information shown
+        if (m_filter != null || m_hasTimeWindow) {
+            LOG.infoFmt("%s filtered out %d rows", this, m_filtered);
+        }
+        if (m_sampler != null) {
+            LOG.infoFmt("%s sampled %s, skipped %d blocks without decoding them", this, m_sampler, m_sampleSkipped);
+        }
+        if (lastError == null && m_lookup) {
+            LOG.infoFmt("%s found %d rows with %s = %s, decoded %d blocks, skipped %d blocks with the %s, lookup COMPLETE",
+                    this, m_count, m_cfg.index_key, m_cfg.key, m_lookupDecoded, m_lookupSkipped,
+                    m_keyIndex == null ? "no key index" : m_keyIndex);
+            return new VoltExportResult(true, tracker, m_cfg.stream_name, m_cfg.partition, getLastSeqNo(tracker), m_lookupRows);
+        }
+        if (lastError == null && m_query != null) {
+            LOG.infoFmt("%s aggregated %d rows in %d groups, query COMPLETE", this, m_count, m_query.getGroupCount());
+            return new VoltExportResult(true, tracker, m_cfg.stream_name, m_cfg.partition, m_query);
+        }
         if (lastError == null) {
             LOG.infoFmt("%s exported %d rows, export COMPLETE", this, m_count);
-            return new VoltExportResult(true, tracker, m_cfg.stream_name, m_cfg.partition);
+            return new VoltExportResult(true, tracker, m_cfg.stream_name, m_cfg.partition, getLastSeqNo(tracker));
         }
         else {
             LOG.infoFmt("%s exported %d rows, export INCOMPLETE", this, m_count);
@@ -175,6 +331,15 @@ public class ExportRunner implements Callable<VoltExportResult> {
         return this.getClass().getSimpleName() + ":" + m_cfg.stream_name + ":" + m_cfg.partition;
     }
 
+    // Return the last sequence number handled by a complete export of the range
+    private long getLastSeqNo(ExportSequenceNumberTracker tracker) {
+        long last = m_range.getFirst().longValue() - 1;
+        if (tracker != null && !tracker.isEmpty()) {
+            last = Math.max(last, Math.min(tracker.getLastSeqNo(), m_range.getSecond().longValue()));
+        }
+        return last;
+    }
+
     private boolean parseRange() {
         if (StringUtils.isBlank(m_cfg.range)) {
             // No range == max range
@@ -191,7 +356,7 @@ public class ExportRunner implements Callable<VoltExportResult> {
             start = Long.parseLong(numbers[0]);
             end = Long.parseLong(numbers[1]);
 
-            if (start >= end) {
+            if (start > end) {
                 throw new IllegalArgumentException("invalid range");
             }
         }
@@ -205,17 +370,467 @@ public class ExportRunner implements Callable<VoltExportResult> {
         return true;
     }
 
+    private boolean parseTimeWindow() {
+        if (StringUtils.isBlank(m_cfg.from_time) && StringUtils.isBlank(m_cfg.to_time)) {
+            return true;
+        }
+        try {
+            if (!StringUtils.isBlank(m_cfg.from_time)) {
+                m_fromTime = new TimestampType(m_cfg.from_time.trim()).getTime();
+            }
+            if (!StringUtils.isBlank(m_cfg.to_time)) {
+                m_toTime = new TimestampType(m_cfg.to_time.trim()).getTime();
+            }
+            if (m_fromTime > m_toTime) {
+                throw new IllegalArgumentException("from_time is after to_time");
+            }
+        }
+        catch (Exception e) {
+            LOG.error("Failed to parse the time window...");
+            e.printStackTrace();
+            return false;
+        }
+        m_hasTimeWindow = true;
+        return true;
+    }
+
+    /**
+     * Narrow the range to the blocks that may hold rows of the time window, by binary-searching
+     * the block index built by the scan on the block unique id timestamps.
+     *
+     * @return false if no rows of the range are in the time window
+     */
+    private boolean applyTimeWindow() {
+        if (!m_hasTimeWindow) {
+            return true;
+        }
+        int first = m_blocks.firstBlockAtOrAfter(Math.floorDiv(m_fromTime, 1000));
+        int last = m_blocks.lastBlockAtOrBefore(Math.floorDiv(m_toTime, 1000));
+        if (first > last || first >= m_blocks.size()) {
+            return false;
+        }
+        long start = Math.max(m_range.getFirst(), m_blocks.getStart(first));
+        long end = Math.min(m_range.getSecond(), m_blocks.getEnd(last));
+        if (start > end) {
+            return false;
+        }
+        m_range = new Pair<Long, Long>(start, end);
+        LOG.infoFmt("%s time window [%s, %s] maps to range [%d, %d] (blocks %d to %d of %d)", this,
+                StringUtils.defaultIfBlank(m_cfg.from_time, "-"), StringUtils.defaultIfBlank(m_cfg.to_time, "-"),
+                start, end, first, last, m_blocks.size());
+        return true;
+    }
+
+    // Evaluate the time window and the filter on an encoded row
+    private boolean acceptRow(ExportRow schema, ByteBuffer buf, int rowStart) {
+        if (m_hasTimeWindow) {
+            long ts = buf.getLong(RawRowReader.internalColumnOffset(buf, rowStart, RawRowReader.TIMESTAMP_COLUMN));
+            if (ts < m_fromTime || ts > m_toTime) {
+                return false;
+            }
+        }
+        return m_filter == null || m_filter.accept(schema, buf, rowStart);
+    }
+
+    private boolean parseFilter() {
+        if (StringUtils.isBlank(m_cfg.where)) {
+            return true;
+        }
+        try {
+            m_filter = new RowFilter(m_cfg.where);
+        }
+        catch (Exception e) {
+            LOG.error("Failed to parse the filter...");
+            e.printStackTrace();
+            return false;
+        }
+        return true;
+    }
+
+    private boolean parseProjection() {
+        if (StringUtils.isBlank(m_cfg.columns)) {
+            return true;
+        }
+        try {
+            m_projection = new RowProjection(m_cfg.columns);
+        }
+        catch (Exception e) {
+            LOG.error("Failed to parse the columns...");
+            e.printStackTrace();
+            return false;
+        }
+        return true;
+    }
+
+    private boolean parseSample() {
+        if (StringUtils.isBlank(m_cfg.sample)) {
+            return true;
+        }
+        try {
+            m_sampler = new RowSampler(m_cfg.sample);
+        }
+        catch (Exception e) {
+            LOG.error("Failed to parse the sample...");
+            e.printStackTrace();
+            return false;
+        }
+        return true;
+    }
+
+    private boolean parseQuery() {
+        if (StringUtils.isBlank(m_cfg.query)) {
+            return true;
+        }
+        try {
+            m_query = new AggregateQuery(m_cfg.query, m_cfg.group_by);
+        }
+        catch (Exception e) {
+            LOG.error("Failed to parse the query...");
+            e.printStackTrace();
+            return false;
+        }
+        return true;
+    }
+
+    private boolean parseLookup() {
+        if (StringUtils.isBlank(m_cfg.key)) {
+            return true;
+        }
+        m_lookup = true;
+        Path path = KeyIndex.getPath(m_cfg.getIndexDir(), m_cfg.stream_name, m_cfg.partition, m_cfg.index_key);
+        try {
+            m_keyIndex = KeyIndex.load(path);
+            if (m_keyIndex == null) {
+                LOG.warnFmt("%s found no key index %s, decoding all the blocks", this, path);
+            }
+        }
+        catch (Exception e) {
+            LOG.error("Failed to load the key index...");
+            e.printStackTrace();
+            return false;
+        }
+        if (m_keyIndex != null) {
+            try {
+                m_keyIndex.checkKey(m_cfg.key);
+            }
+            catch (IllegalArgumentException e) {
+                LOG.errorFmt("%s cannot look up %s: %s", this, m_cfg.key, e.getMessage());
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Build the key index of the PBD and save it in the index directory. The blocks are polled
+     * after the scan, and are not released.
+     */
+    private void buildKeyIndex() throws Exception {
+        KeyIndex index = null;
+        RawRowReader reader = null;
+        int keyColumn = -1;
+        boolean inSegment = false;
+        long last = -1;
+        while (canPoll()) {
+            boolean startOfSegment = m_reader.isStartOfSegment();
+            PollBlock pb = pollPersistentDeque();
+            if (pb == null) {
+                break;
+            }
+            IoThrottle.GLOBAL.onRead(pb.m_entry.getData().limit());
+
+            ExportRow schema = pb.getSchema();
+            if (reader == null || reader.getSchema() != schema) {
+                reader = new RawRowReader(schema);
+                keyColumn = reader.getColumnIndex(m_cfg.index_key);
+                if (keyColumn < 0) {
+                    throw new IllegalArgumentException("Unknown key column " + m_cfg.index_key);
+                }
+                boolean stringKeys = KeyIndex.isStringKey(m_cfg.index_key, reader.getType(keyColumn));
+                if (index == null) {
+                    index = new KeyIndex(m_cfg.index_key, stringKeys);
+                }
+                else if (index.hasStringKeys() != stringKeys) {
+                    throw new IllegalArgumentException("Key column " + m_cfg.index_key + " changed type to "
+                            + reader.getType(keyColumn));
+                }
+            }
+            if (startOfSegment || !inSegment) {
+                if (inSegment) {
+                    index.endSegment(last);
+                }
+                index.beginSegment(pb.m_start);
+                inSegment = true;
+            }
+
+            final ByteBuffer buf = pb.m_entry.getData();
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+            buf.position(StreamBlock.HEADER_SIZE);
+            while (buf.hasRemaining()) {
+                int length = buf.getInt();
+                int rowStart = buf.position();
+                buf.position(rowStart + length);
+                reader.reset(buf, rowStart);
+                if (reader.offset(keyColumn) < 0) {
+                    continue;
+                }
+                if (index.hasStringKeys()) {
+                    index.addKey(reader.copyBytes(keyColumn));
+                }
+                else {
+                    index.addKey(reader.getLong(keyColumn));
+                }
+            }
+            last = pb.m_last;
+            m_containerFactory.releaseIfContended();
+        }
+        if (index == null) {
+            LOG.infoFmt("%s has no rows to index", this);
+            return;
+        }
+        if (inSegment) {
+            index.endSegment(last);
+        }
+        Path path = KeyIndex.getPath(m_cfg.getIndexDir(), m_cfg.stream_name, m_cfg.partition, m_cfg.index_key);
+        index.save(path);
+        LOG.infoFmt("%s saved %s in %s", this, index, path);
+    }
+
+    /**
+     * Estimate the cost of exporting the range, from the scan and a sample decode of the first blocks
+     * of the range. The sampled blocks are not released, nor processed by the export client.
+     */
+    private DryRunEstimate estimate(boolean inWindow) throws Exception {
+        DryRunEstimate estimate = new DryRunEstimate(m_cfg.stream_name, m_cfg.partition, m_blocks,
+                getDiskBytes(), m_scanNanos);
+        if (!inWindow) {
+            return estimate;
+        }
+        estimate.addRange(m_range.getFirst(), m_range.getSecond());
+
+        SeqNoRangeSet ranges = new SeqNoRangeSet();
+        ranges.add(m_range.getFirst(), m_range.getSecond());
+        sampleRanges(estimate, ranges);
+        return estimate;
+    }
+
+    /**
+     * Estimate the cost of exporting segments of the PBD scanned by {@link #call()}, each segment
+     * exported by one invocation, from a sample decode of the first blocks of the segments.
+     * Used by the stitch dry run, once the mastership of each host is known.
+     *
+     * @param segments the segments to export
+     * @return the estimate
+     */
+    DryRunEstimate estimate(ExportSequenceNumberTracker segments) throws Exception {
+        DryRunEstimate estimate = new DryRunEstimate(m_cfg.stream_name, m_cfg.partition, m_blocks,
+                getDiskBytes(), m_scanNanos);
+        for (Range<Long> r : segments.getRanges()) {
+            estimate.addRange(ExportSequenceNumberTracker.start(r), ExportSequenceNumberTracker.end(r));
+        }
+        try {
+            sampleRanges(estimate, SeqNoRangeSet.of(segments));
+        }
+        finally {
+            m_containerFactory.close();
+        }
+        return estimate;
+    }
+
+    // Sample decode the first blocks holding rows of the ranges. The blocks polled outside the ranges
+    // count toward DRYRUN_SAMPLE_BLOCKS so that a range starting late does not poll the whole PBD:
+    // if none of these blocks hold rows of the ranges, their own rows are sampled instead.
+    private void sampleRanges(DryRunEstimate estimate, SeqNoRangeSet ranges) throws Exception {
+        DryRunEstimate outside = new DryRunEstimate(m_cfg.stream_name, m_cfg.partition, m_blocks,
+                getDiskBytes(), m_scanNanos);
+        for (int polled = 0; polled < DRYRUN_SAMPLE_BLOCKS && !ranges.isEmpty() && canPoll(); polled++) {
+            long start = System.nanoTime();
+            PollBlock pb = pollPersistentDeque();
+            if (pb == null || pb.m_start > ranges.getLastSeqNo()) {
+                break;
+            }
+            int idx = ranges.ceilingIndex(pb.m_start);
+            if (ranges.getStart(idx) <= pb.m_last) {
+                sampleBlock(pb, estimate, start, ranges);
+            }
+            else if (!estimate.hasSamples()) {
+                sampleBlock(pb, outside, start, null);
+            }
+        }
+        if (!estimate.hasSamples()) {
+            estimate.addSamples(outside);
+        }
+    }
+
+    // Sample the rows of a block in the ranges, or all its rows if no ranges: these are outside the
+    // range and time window, so only the filter selects them
+    private void sampleBlock(PollBlock block, DryRunEstimate estimate, long start, SeqNoRangeSet ranges) throws Exception {
+        final ByteBuffer buf = block.m_entry.getData();
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        buf.position(StreamBlock.HEADER_SIZE);
+        ExportRow schema = block.getSchema();
+
+        CsvRowEncoder encoder = new CsvRowEncoder(false);
+        long rows = 0, accepted = 0, bytes = 0, outputBytes = 0;
+        long seqNo = block.m_start - 1;
+        while (buf.hasRemaining()) {
+            int length = buf.getInt();
+            int rowStart = buf.position();
+            buf.position(rowStart + length);
+
+            seqNo++;
+            if (ranges != null && !ranges.contains(seqNo)) {
+                continue;
+            }
+            rows++;
+            bytes += Integer.BYTES + length;
+            boolean accept = ranges != null ? acceptRow(schema, buf, rowStart)
+                    : m_filter == null || m_filter.accept(schema, buf, rowStart);
+            if (!accept) {
+                continue;
+            }
+            accepted++;
+
+            ExportRow row;
+            if (m_projection != null) {
+                row = m_projection.decodeRow(schema, m_cfg.partition, buf, rowStart);
+            }
+            else {
+                buf.position(rowStart);
+                row = ExportRow.decodeRow(schema, m_cfg.partition, buf);
+                buf.position(rowStart + length);
+            }
+            outputBytes += encoder.encode(row).length;
+        }
+        estimate.addSample(rows, accepted, bytes, outputBytes, System.nanoTime() - start);
+    }
+
+    // Aggregate the rows of a block for the query, return true if completely processed, or false if we hit the end of the range
+    private boolean queryBlock(PollBlock block) throws Exception {
+        final ByteBuffer buf = block.m_entry.getData();
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        buf.position(StreamBlock.HEADER_SIZE);
+        ExportRow schema = block.getSchema();
+
+        long seqNo = block.m_start - 1;
+        while (buf.hasRemaining() && canPoll()) {
+            int length = buf.getInt();
+            int rowStart = buf.position();
+            buf.position(rowStart + length);
+
+            seqNo++;
+            if (seqNo < m_range.getFirst().longValue()) {
+                continue;
+            }
+            else if (seqNo > m_range.getSecond().longValue()) {
+                return false;
+            }
+            if (m_sampler != null && !m_sampler.acceptRow(seqNo)) {
+                continue;
+            }
+            if (!acceptRow(schema, buf, rowStart)) {
+                m_filtered++;
+                continue;
+            }
+            m_query.accumulate(schema, buf, rowStart);
+            m_count++;
+        }
+        return seqNo == block.m_last;
+    }
+
+    // Collect the rows of a block with the key looked up, return true if completely processed, or false if we hit the end of the range
+    private boolean lookupBlock(PollBlock block) throws Exception {
+        if (block.m_start > m_range.getSecond().longValue()) {
+            return false;
+        }
+        ExportRow schema = block.getSchema();
+        if (m_lookupReader == null || m_lookupReader.getSchema() != schema) {
+            m_lookupReader = new RawRowReader(schema);
+            m_lookupColumn = m_lookupReader.getColumnIndex(m_cfg.index_key);
+            if (m_lookupColumn < 0) {
+                throw new IllegalArgumentException("Unknown key column " + m_cfg.index_key);
+            }
+            m_lookupKey = KeyIndex.parseKey(m_cfg.index_key, m_lookupReader.getType(m_lookupColumn), m_cfg.key);
+        }
+        RawRowReader reader = m_lookupReader;
+        int keyColumn = m_lookupColumn;
+        Object key = m_lookupKey;
+        boolean stringKeys = key instanceof byte[];
+
+        // Skip the blocks of the segments which cannot hold the key without decoding them
+        int segment = m_keyIndex == null ? -1 : m_keyIndex.findSegment(block.m_start);
+        if (segment >= 0 && !m_keyIndex.mightContain(segment, key)) {
+            m_lookupSkipped++;
+            return block.m_last <= m_range.getSecond().longValue();
+        }
+        m_lookupDecoded++;
+
+        final ByteBuffer buf = block.m_entry.getData();
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        buf.position(StreamBlock.HEADER_SIZE);
+        byte[] bytesKey = stringKeys ? (byte[]) key : null;
+        long longKey = stringKeys ? 0 : (Long) key;
+
+        CsvRowEncoder encoder = null;
+        long seqNo = block.m_start - 1;
+        while (buf.hasRemaining() && canPoll()) {
+            int length = buf.getInt();
+            int rowStart = buf.position();
+            buf.position(rowStart + length);
+
+            seqNo++;
+            if (seqNo < m_range.getFirst().longValue()) {
+                continue;
+            }
+            else if (seqNo > m_range.getSecond().longValue()) {
+                return false;
+            }
+            reader.reset(buf, rowStart);
+            if (reader.offset(keyColumn) < 0
+                    || (stringKeys ? reader.compareBytes(keyColumn, bytesKey) != 0 : reader.getLong(keyColumn) != longKey)
+                    || !acceptRow(schema, buf, rowStart)) {
+                continue;
+            }
+
+            buf.position(rowStart);
+            ExportRow row = ExportRow.decodeRow(schema, m_cfg.partition, buf);
+            buf.position(rowStart + length);
+            if (encoder == null) {
+                encoder = new CsvRowEncoder(false);
+            }
+            String line = new String(encoder.encode(row), StandardCharsets.UTF_8);
+            m_lookupRows.add(String.format("%s:%d segment %s, seqNo %d: %s", m_cfg.stream_name, m_cfg.partition,
+                    segment >= 0 ? "#" + segment + " " + m_keyIndex.getSegment(segment) : "not indexed", seqNo, StringUtils.stripEnd(line, "\r\n")));
+            m_count++;
+        }
+        return seqNo == block.m_last;
+    }
+
+    // Return the size of the PBD segment files
+    private long getDiskBytes() throws IOException {
+        File dir = new File(ExportFileVisitor.getPathForExportStream(m_cfg.indir, m_cfg.stream_name, m_cfg.partition));
+        long bytes = 0;
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                if (PbdSegmentName.parseFile(VOLTLOG, f).m_result == PbdSegmentName.Result.OK) {
+                    bytes += f.length();
+                }
+            }
+        }
+        return bytes;
+    }
+
     private PollBlock pollPersistentDeque() {
         PollBlock block = null;
         try {
-            BinaryDequeReader.Entry<PersistedMetadata> entry = m_reader.pollEntry(PersistentBinaryDeque.UNSAFE_CONTAINER_FACTORY);
+            BinaryDequeReader.Entry<PersistedMetadata> entry = m_reader.pollEntry(m_containerFactory);
             if (entry != null) {
                 ByteBuffer b = entry.getData();
                 b.order(ByteOrder.LITTLE_ENDIAN);
                 long seqNo = b.getLong(StreamBlock.SEQUENCE_NUMBER_OFFSET);
                 long committedSeqNo = b.getLong(StreamBlock.COMMIT_SEQUENCE_NUMBER_OFFSET);
                 int tupleCount = b.getInt(StreamBlock.ROW_NUMBER_OFFSET);
-                long uniqueId = b.getLong(StreamBlock.UNIQUE_ID_OFFSET);
 
                 block = new PollBlock(entry, seqNo, tupleCount);
             }
@@ -227,23 +842,42 @@ public class ExportRunner implements Callable<VoltExportResult> {
         return block;
     }
 
+    // Release a block done with, letting the PBD delete the segments read, unless only reading the PBD
+    private void releaseBlock(PollBlock block) {
+        if (!m_readOnly) {
+            block.release();
+        }
+    }
+
     private boolean canPoll() {
         return !Thread.currentThread().isInterrupted();
     }
 
     // Return true if completely processed, or false if we hit the end of the range
     private boolean processBlock(PollBlock block) throws Exception {
+        m_currentBlock = block;
+        try {
+            return processBlockAttempts(block);
+        }
+        finally {
+            m_currentBlock = null;
+        }
+    }
+
+    private boolean processBlockAttempts(PollBlock block) throws Exception {
         int backoffQuantity = 10 + (int)(10 * ThreadLocalRandom.current().nextDouble());
 
-        long seqNo = 0L;
+        long processed = m_processed;
         while(canPoll()) {
             m_blockId += 1;
             int decoderGeneration = m_decoderId;
-            ScheduledFuture<?> blockTimeout = s_timeoutExecutor.schedule(new Runnable() {
-                @Override
-                public void run() {
-                    handleBlockTimeout(block, m_blockId);
-                }}, s_blockTimeoutMs, TimeUnit.MILLISECONDS);
+
+            // A restarted attempt processes the block from its first row again: the rows are only
+            // counted once the block is completed
+            long seqNo = block.m_start - 1;
+            long count = 0;
+            long filtered = 0;
+            m_processed = processed;
 
             try {
                 final ByteBuffer buf = block.m_entry.getData();
@@ -271,30 +905,57 @@ public class ExportRunner implements Callable<VoltExportResult> {
                         // Set the new schema used to decode rows.
                         ExportRowSchema newSchema = block.getSchema();
                         edb.setExportRowSchema(newSchema);
+                        m_schemas.putIfAbsent(newSchema.generation, newSchema.names + " " + newSchema.types);
                     }
 
                     // Get the sequence number of this row
-                    seqNo = seqNo == 0L ? block.m_start : seqNo + 1;
+                    seqNo++;
+                    m_processed++;
 
-                    // handle the range: always decode rows below the range
+                    // handle the range: skip rows below the range without decoding them
                     if (seqNo < m_range.getFirst().longValue()) {
-                        row = ExportRow.decodeRow(edb.getExportRowSchema(), m_cfg.partition, buf);
-                        row = null;
+                        buf.position(buf.position() + length);
                         continue;
                     }
                     else if (seqNo > m_range.getSecond().longValue()) {
                         break;
                     }
 
+                    // Skip rows out of the sample without decoding them
+                    if (m_sampler != null && !m_sampler.acceptRow(seqNo)) {
+                        buf.position(buf.position() + length);
+                        if (seqNo == m_range.getSecond().longValue()) {
+                            break;
+                        }
+                        continue;
+                    }
+
+                    // Skip rows out of the time window or rejected by the filter without decoding them
+                    if (!acceptRow(edb.getExportRowSchema(), buf, buf.position())) {
+                        buf.position(buf.position() + length);
+                        filtered++;
+                        if (seqNo == m_range.getSecond().longValue()) {
+                            break;
+                        }
+                        continue;
+                    }
+
                     // Export row
-                    row = ExportRow.decodeRow(edb.getExportRowSchema(), m_cfg.partition, buf);
+                    if (m_projection != null) {
+                        int rowStart = buf.position();
+                        row = m_projection.decodeRow(edb.getExportRowSchema(), m_cfg.partition, buf, rowStart);
+                        buf.position(rowStart + length);
+                    }
+                    else {
+                        row = ExportRow.decodeRow(edb.getExportRowSchema(), m_cfg.partition, buf);
+                    }
 
                     if (firstRowOfBlock) {
                         edb.onBlockStart(row);
                         firstRowOfBlock = false;
                     }
                     edb.processRow(row);
-                    m_count++;
+                    count++;
 
                     // Catch the last row of the range
                     if (seqNo == m_range.getSecond().longValue()) {
@@ -305,6 +966,8 @@ public class ExportRunner implements Callable<VoltExportResult> {
                 if (row != null) {
                     edb.onBlockCompletion(row);
                 }
+                m_count += count;
+                m_filtered += filtered;
 
                 // Done with the block when we processed all rows
                 return seqNo == block.m_last;
@@ -335,9 +998,6 @@ public class ExportRunner implements Callable<VoltExportResult> {
                 }
                 backoffQuantity = doBackoff(backoffQuantity, block);
             }
-            finally {
-                blockTimeout.cancel(false);
-            }
         }
 
         // Something bad happened
@@ -365,6 +1025,52 @@ public class ExportRunner implements Callable<VoltExportResult> {
         return backoff;
     }
 
+    /**
+     * @return the index of the blocks found by the scan of the PBD
+     */
+    BlockIndex getBlocks() {
+        return m_blocks;
+    }
+
+    int getBlockId() {
+        return m_blockId;
+    }
+
+    long getRowCount() {
+        return m_count;
+    }
+
+    /**
+     * @return the count of rows read by the decoding loop, including the rows filtered out or not sampled
+     */
+    long getProcessedCount() {
+        return m_processed;
+    }
+
+    /**
+     * @return the map of generation -> column names and types of the schemas of the exported rows
+     */
+    Map<Long, String> getSchemas() {
+        return m_schemas;
+    }
+
+    boolean isProcessingBlock() {
+        return m_currentBlock != null;
+    }
+
+    /**
+     * Called by the {@link StallWatchdog} when no progress was made on a block for longer
+     * than the block timeout.
+     *
+     * @param blockId the block id sampled by the watchdog
+     */
+    void onStall(int blockId) {
+        PollBlock block = m_currentBlock;
+        if (block != null) {
+            handleBlockTimeout(block, blockId);
+        }
+    }
+
     private void handleBlockTimeout(PollBlock block, int blockId) {
         if (m_blockId != blockId) {
             LOG.warnFmt("%s hit a spurious block timeout on block %s: expected %d, got %d", this, block, blockId, m_blockId);
@@ -381,13 +1087,23 @@ public class ExportRunner implements Callable<VoltExportResult> {
         m_decoderId += 1;
     }
 
+    /**
+     * Close the decoder, letting it write its remaining rows. A failure, including that of a decoder
+     * reset by a block timeout, fails the export: the rows of the blocks released may not be written.
+     */
     synchronized void finalizeDecoder() {
+        if (m_edb == null) {
+            return;
+        }
         try {
             m_edb.sourceNoLongerAdvertised(m_ads);
         }
         catch (Exception e) {
             LOG.error(this + " failed to close decoder");
             e.printStackTrace();
+            if (m_decoderFailure == null) {
+                m_decoderFailure = e;
+            }
         }
         m_edb = null;
     }
@@ -407,25 +1123,42 @@ public class ExportRunner implements Callable<VoltExportResult> {
                 m_cfg.partition,
                 m_cfg.stream_name.toUpperCase());
 
-        m_edb = m_exportClient.constructExportDecoder(m_ads);
-        String nonce = m_cfg.stream_name.toUpperCase() + "_" + m_cfg.partition;
-
-        constructPBD(ExportFileVisitor.getPathForExportStream(m_cfg.indir, m_cfg.stream_name, m_cfg.partition),
-                nonce, m_cfg.stream_name, m_cfg.partition);
+        // No decoder when only reading the rows
+        if (m_exportClient != null) {
+            m_edb = m_exportClient.constructExportDecoder(m_ads);
+        }
+        m_pbd = constructPBD(m_cfg.indir, m_cfg.stream_name, m_cfg.partition, m_db);
     }
 
-    private void constructPBD(String directory, String nonce, String name, int partition) throws IOException {
+    /**
+     * Open the PBD of a stream/partition in an export overflow directory
+     *
+     * @param indir     the export overflow directory
+     * @param name      the stream name
+     * @param partition the partition
+     * @param db        the catalog database, or null to only use the schemas persisted in the segments
+     * @return the PBD
+     * @throws IOException
+     */
+    static BinaryDeque<PersistedMetadata> constructPBD(String indir, String name, int partition, Database db)
+            throws IOException {
+        String directory = ExportFileVisitor.getPathForExportStream(indir, name, partition);
+        String nonce = name.toUpperCase() + "_" + partition;
+
         PersistedMetadata metadata = null;
         PersistedMetadataSerializer serializer = new PersistedMetadataSerializer();
 
-        Table table = m_db.getTables().get(name);
-        if (table == null) {
-            throw new IllegalArgumentException("Table not found in catalog");
+        // The metadata is only the header of new segments: the PBD is only read, and each segment
+        // is decoded with the schema persisted in its own extra header.
+        if (db != null) {
+            Table table = db.getTables().get(name);
+            if (table == null) {
+                throw new IllegalArgumentException("Table not found in catalog");
+            }
+            metadata = new PersistedMetadata(table, null, partition, 1L, Long.MAX_VALUE);
         }
 
-        metadata = new PersistedMetadata(table, null, partition, 1L, Long.MAX_VALUE);
-
-        m_pbd = PersistentBinaryDeque.builder(nonce, new File(directory), VOLTLOG)
+        return PersistentBinaryDeque.builder(nonce, new File(directory), VOLTLOG)
                 .initialExtraHeader(metadata, serializer)
                 .compression(true)
                 .deleteExisting(false)
@@ -433,25 +1166,31 @@ public class ExportRunner implements Callable<VoltExportResult> {
                 .build();
     }
 
-    private ExportSequenceNumberTracker scanForGap() throws IOException {
-        ExportSequenceNumberTracker tracker = new ExportSequenceNumberTracker();
+    private SeqNoRangeSet scanForGap() throws IOException {
+        // The blocks are scanned in order: the ranges are merged by appending to primitive arrays
+        SeqNoRangeSet ranges = new SeqNoRangeSet();
         m_pbd.scanEntries(new BinaryDequeScanner() {
             @Override
             public long scan(BBContainer bbc) {
                 ByteBuffer b = bbc.b();
                 ByteOrder endianness = b.order();
                 b.order(ByteOrder.LITTLE_ENDIAN);
-                final long startSequenceNumber = b.getLong();
-                b.getLong(); // committed sequence number
-                final int tupleCount = b.getInt();
+                final int base = b.position();
+                final long startSequenceNumber = b.getLong(base + StreamBlock.SEQUENCE_NUMBER_OFFSET);
+                final int tupleCount = b.getInt(base + StreamBlock.ROW_NUMBER_OFFSET);
+                final long uniqueId = b.getLong(base + StreamBlock.UNIQUE_ID_OFFSET);
                 final long endSequenceNumber = startSequenceNumber + tupleCount - 1;
                 b.order(endianness);
-                tracker.addRange(startSequenceNumber, endSequenceNumber);
+                // The scan reads every block of the PBD, like the export
+                IoThrottle.GLOBAL.onRead(b.limit() - base);
+                ranges.add(startSequenceNumber, endSequenceNumber);
+                m_blocks.add(startSequenceNumber, endSequenceNumber, uniqueId,
+                        b.limit() - base - StreamBlock.HEADER_SIZE);
                 return endSequenceNumber;
             }
 
         });
-        return tracker;
+        return ranges;
     }
 
 }
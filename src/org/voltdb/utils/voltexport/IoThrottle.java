@@ -0,0 +1,246 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2022 VoltDB Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with VoltDB.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.voltdb.utils.voltexport;
+
+import static org.voltdb.utils.voltexport.VoltExport.LOG;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Bandwidth limits shared by all the {@link ExportRunner} instances of a process, so that an export
+ * running on a live VoltDB node does not starve the database of I/O.
+ * <p>
+ * Each limit is a token bucket holding at most one second of its rate. The runners charge the bytes of
+ * each block polled from the PBD to the read limit, and the bytes and rows of each block exported to the
+ * write and rows limits; a runner charging more than the tokens available sleeps until the debt is repaid
+ * at the limit rate. The written bytes are counted as the size of the rows in the block, since the export
+ * clients do not report the size of their output.
+ * <p>
+ * The limits can be changed at runtime by {@link #setLimits}, or by editing a throttle file holding the
+ * {@code read_mb_per_sec}, {@code write_mb_per_sec} and {@code rows_per_sec} properties, which is checked
+ * for changes every second. A limit of 0 means unlimited: the rates are still measured so that they can be
+ * reported.
+ */
+public class IoThrottle {
+    public static final IoThrottle GLOBAL = new IoThrottle();
+
+    private static final long MB = 1024L * 1024L;
+    private static final long FILE_CHECK_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final TokenBucket m_read = new TokenBucket();
+    private final TokenBucket m_write = new TokenBucket();
+    private final TokenBucket m_rows = new TokenBucket();
+
+    private String m_file;
+    private long m_fileModified;
+    private long m_nextFileCheck;
+
+    /**
+     * A token bucket, measuring the amount charged
+     */
+    private static class TokenBucket {
+        private final long m_start = System.nanoTime();
+        private long m_rate = 0;        // per second, 0 = unlimited
+        private double m_tokens = 0;
+        private long m_last = m_start;
+        private long m_total = 0;
+        private long m_waitNanos = 0;
+
+        synchronized void setRate(long rate) {
+            refill(System.nanoTime());
+            m_rate = rate;
+            m_tokens = Math.min(m_tokens, rate);
+        }
+
+        synchronized long getRate() {
+            return m_rate;
+        }
+
+        void acquire(long amount) {
+            long sleepNanos;
+            synchronized (this) {
+                m_total += amount;
+                if (m_rate <= 0) {
+                    return;
+                }
+                refill(System.nanoTime());
+                m_tokens -= amount;
+                if (m_tokens >= 0) {
+                    return;
+                }
+                sleepNanos = (long) (-m_tokens * 1e9 / m_rate);
+                m_waitNanos += sleepNanos;
+            }
+            try {
+                TimeUnit.NANOSECONDS.sleep(sleepNanos);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void refill(long now) {
+            if (m_rate > 0) {
+                m_tokens = Math.min(m_rate, m_tokens + (now - m_last) * (double) m_rate / 1e9);
+            }
+            m_last = now;
+        }
+
+        // The average rate since the start, per second
+        synchronized double getEffectiveRate() {
+            double seconds = (System.nanoTime() - m_start) / 1e9;
+            return seconds > 0 ? m_total / seconds : 0;
+        }
+
+        synchronized long getTotal() {
+            return m_total;
+        }
+
+        synchronized long getWaitMs() {
+            return TimeUnit.NANOSECONDS.toMillis(m_waitNanos);
+        }
+    }
+
+    /**
+     * Set the limits
+     *
+     * @param readMbPerSec  the limit of the bytes read from the PBD files, in MB/s, or 0
+     * @param writeMbPerSec the limit of the bytes exported, in MB/s, or 0
+     * @param rowsPerSec    the limit of the rows exported, or 0
+     */
+    public void setLimits(long readMbPerSec, long writeMbPerSec, long rowsPerSec) {
+        if (readMbPerSec < 0 || writeMbPerSec < 0 || rowsPerSec < 0) {
+            throw new IllegalArgumentException("Throttle limits must be >= 0");
+        }
+        m_read.setRate(readMbPerSec * MB);
+        m_write.setRate(writeMbPerSec * MB);
+        m_rows.setRate(rowsPerSec);
+    }
+
+    /**
+     * Set a throttle file, loaded now and whenever it is modified
+     *
+     * @param path the path of the properties file, or blank for none
+     */
+    public synchronized void setFile(String path) {
+        m_file = StringUtils.isBlank(path) ? null : path.trim();
+        m_fileModified = 0;
+        m_nextFileCheck = 0;
+        checkFile();
+    }
+
+    public void onRead(long bytes) {
+        checkFile();
+        m_read.acquire(bytes);
+    }
+
+    public void onExport(long bytes, long rows) {
+        m_write.acquire(bytes);
+        m_rows.acquire(rows);
+    }
+
+    // Load the throttle file if it was modified, at most once per second
+    private void checkFile() {
+        synchronized (this) {
+            long now = System.nanoTime();
+            if (m_file == null || now < m_nextFileCheck) {
+                return;
+            }
+            m_nextFileCheck = now + FILE_CHECK_NANOS;
+            File file = new File(m_file);
+            long modified = file.lastModified();
+            if (modified == 0 || modified == m_fileModified) {
+                return;
+            }
+            m_fileModified = modified;
+            Properties props = new Properties();
+            try (InputStream in = new FileInputStream(file)) {
+                props.load(in);
+                setLimits(Long.parseLong(props.getProperty("read_mb_per_sec", "0").trim()),
+                        Long.parseLong(props.getProperty("write_mb_per_sec", "0").trim()),
+                        Long.parseLong(props.getProperty("rows_per_sec", "0").trim()));
+                LOG.infoFmt("Loaded throttle file %s: %s", m_file, this);
+            }
+            catch (Exception e) {
+                LOG.errorFmt("Failed loading throttle file %s, keeping the current limits", m_file);
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * @return the bytes read from the PBD files since the start
+     */
+    public long getReadBytes() {
+        return m_read.getTotal();
+    }
+
+    /**
+     * @return the rows exported since the start
+     */
+    public long getExportedRows() {
+        return m_rows.getTotal();
+    }
+
+    public long getReadLimitMb() {
+        return m_read.getRate() / MB;
+    }
+
+    public long getWriteLimitMb() {
+        return m_write.getRate() / MB;
+    }
+
+    public long getRowsLimit() {
+        return m_rows.getRate();
+    }
+
+    /**
+     * @return the average rates since the start, and the time spent waiting for each limit
+     */
+    public String toJson() {
+        StringBuilder sb = new StringBuilder("{");
+        sb.append("\"readMbPerSecLimit\":").append(getReadLimitMb());
+        sb.append(",\"readMbPerSec\":").append(String.format("%.2f", m_read.getEffectiveRate() / MB));
+        sb.append(",\"readWaitMs\":").append(m_read.getWaitMs());
+        sb.append(",\"writeMbPerSecLimit\":").append(getWriteLimitMb());
+        sb.append(",\"writeMbPerSec\":").append(String.format("%.2f", m_write.getEffectiveRate() / MB));
+        sb.append(",\"writeWaitMs\":").append(m_write.getWaitMs());
+        sb.append(",\"rowsPerSecLimit\":").append(getRowsLimit());
+        sb.append(",\"rowsPerSec\":").append(String.format("%.0f", m_rows.getEffectiveRate()));
+        sb.append(",\"rowsWaitMs\":").append(m_rows.getWaitMs());
+        return sb.append('}').toString();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("read %.1f MB/s (limit %s, waited %d ms), write %.1f MB/s (limit %s, waited %d ms), "
+                + "%.0f rows/s (limit %s, waited %d ms)",
+                m_read.getEffectiveRate() / MB, limit(getReadLimitMb(), " MB/s"), m_read.getWaitMs(),
+                m_write.getEffectiveRate() / MB, limit(getWriteLimitMb(), " MB/s"), m_write.getWaitMs(),
+                m_rows.getEffectiveRate(), limit(getRowsLimit(), " rows/s"), m_rows.getWaitMs());
+    }
+
+    private static String limit(long limit, String unit) {
+        return limit > 0 ? limit + unit : "none";
+    }
+}
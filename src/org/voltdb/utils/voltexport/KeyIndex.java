@@ -0,0 +1,448 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2022 VoltDB Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with VoltDB.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.voltdb.utils.voltexport;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.voltdb.VoltType;
+import org.voltdb.types.TimestampType;
+
+/**
+ * An index of the values of a key column in the segments of a PBD, answering whether a segment may
+ * hold a row with a given key, without decoding the segment.
+ * <p>
+ * For each segment, the index keeps the sequence number range of the segment, the minimum and maximum
+ * keys, and a bloom filter of the keys, sized for about 1% of false positives (10 bits per key by
+ * default, set with the {@code KEY_INDEX_BITS_PER_KEY} system property). The keys are the values of
+ * an integer or TIMESTAMP column, compared as longs (microseconds for a TIMESTAMP), or of a STRING
+ * column, compared as UTF-8 bytes. The null keys are not indexed.
+ * <p>
+ * The index is built by the scan of a stream/partition, one segment at a time, and saved in a file
+ * named {@code STREAM_partition.COLUMN.keyindex} of the index directory, by writing a temporary file
+ * and renaming it. A lookup decodes the blocks of the segments which may hold the key, and the blocks
+ * not covered by the index, e.g. appended to the PBD after the index was built.
+ */
+public class KeyIndex {
+    private static final int MAGIC = 0x56584b49;   // "VXKI"
+    private static final int VERSION = 1;
+    private static final int BITS_PER_KEY = Integer.getInteger("KEY_INDEX_BITS_PER_KEY", 10);
+
+    private final String m_column;
+    private final boolean m_stringKeys;
+    private final List<SegmentFilter> m_segments = new ArrayList<>();
+
+    // The segment being built
+    private SegmentFilter m_current;
+    private long[] m_hashes = new long[1024];
+    private int m_hashCount;
+
+    /**
+     * The filter of the keys of one segment
+     */
+    static class SegmentFilter {
+        long m_first;
+        long m_last;
+        long m_keys;
+        // The minimum and maximum keys, as longs or UTF-8 bytes, if m_keys > 0
+        long m_minLong = Long.MAX_VALUE;
+        long m_maxLong = Long.MIN_VALUE;
+        byte[] m_minBytes;
+        byte[] m_maxBytes;
+        int m_hashCount;
+        long[] m_bits = new long[0];
+
+        private boolean inRange(Object key) {
+            if (m_keys == 0) {
+                return false;
+            }
+            if (key instanceof Long) {
+                long k = (Long) key;
+                return k >= m_minLong && k <= m_maxLong;
+            }
+            byte[] k = (byte[]) key;
+            return compareBytes(k, m_minBytes) >= 0 && compareBytes(k, m_maxBytes) <= 0;
+        }
+
+        private boolean mightContain(long hash) {
+            if (m_bits.length == 0) {
+                return false;
+            }
+            long nbits = m_bits.length * 64L;
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32);
+            for (int i = 1; i <= m_hashCount; i++) {
+                long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % nbits;
+                if ((m_bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void put(long hash) {
+            long nbits = m_bits.length * 64L;
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32);
+            for (int i = 1; i <= m_hashCount; i++) {
+                long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % nbits;
+                m_bits[(int) (bit >>> 6)] |= 1L << bit;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "[" + m_first + ", " + m_last + "]";
+        }
+    }
+
+    /**
+     * @param column     the key column
+     * @param stringKeys true if the keys are strings, false if they are longs
+     */
+    public KeyIndex(String column, boolean stringKeys) {
+        m_column = column.toUpperCase();
+        m_stringKeys = stringKeys;
+    }
+
+    public String getColumn() {
+        return m_column;
+    }
+
+    public boolean hasStringKeys() {
+        return m_stringKeys;
+    }
+
+    public int size() {
+        return m_segments.size();
+    }
+
+    /**
+     * @return the path of the index file of a stream/partition and key column
+     */
+    public static Path getPath(String indexDir, String stream, int partition, String column) {
+        return Paths.get(indexDir, stream.toUpperCase() + "_" + partition + "." + column.toUpperCase() + ".keyindex");
+    }
+
+    /**
+     * @return true if the keys of a column type are strings, false if they are longs
+     * @throws IllegalArgumentException if the column type cannot be a key
+     */
+    public static boolean isStringKey(String column, VoltType type) {
+        switch (type) {
+        case TINYINT:
+        case SMALLINT:
+        case INTEGER:
+        case BIGINT:
+        case TIMESTAMP:
+            return false;
+        case STRING:
+            return true;
+        default:
+            throw new IllegalArgumentException("Column " + column + " of type " + type + " cannot be a key");
+        }
+    }
+
+    /**
+     * Parse a key to look up in a column: a TIMESTAMP key is a number of microseconds, or a timestamp
+     * like {@code 2022-10-20 14:00:00.000} as in the where filter and the time window
+     *
+     * @return a Long, or the UTF-8 bytes of a string key
+     * @throws IllegalArgumentException if the column type cannot be a key, or the key does not match it
+     */
+    public static Object parseKey(String column, VoltType type, String key) {
+        if (isStringKey(column, type)) {
+            return key.getBytes(StandardCharsets.UTF_8);
+        }
+        return parseLongKey(column, key, type == VoltType.TIMESTAMP);
+    }
+
+    private static long parseLongKey(String column, String key, boolean timestamps) {
+        String value = key.trim();
+        try {
+            return Long.parseLong(value);
+        }
+        catch (NumberFormatException e) {
+            if (timestamps) {
+                try {
+                    return new TimestampType(value).getTime();
+                }
+                catch (IllegalArgumentException ignore) {}
+            }
+            throw new IllegalArgumentException("Key " + key + " of column " + column + " is not a number"
+                    + (timestamps ? " or a timestamp" : ""));
+        }
+    }
+
+    /**
+     * Check that a key can be looked up in this index, before decoding any block
+     *
+     * @throws IllegalArgumentException if the keys are longs and the key is neither a number nor a timestamp
+     */
+    public void checkKey(String key) {
+        if (!m_stringKeys) {
+            // The index does not record whether the column is a TIMESTAMP
+            parseLongKey(m_column, key, true);
+        }
+    }
+
+    /**
+     * @return the hash of a long key
+     */
+    public static long hash(long key) {
+        long z = key * 0x9e3779b97f4a7c15L;
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * @return the hash of the UTF-8 bytes of a string key
+     */
+    public static long hash(byte[] key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key) {
+            h = (h ^ (b & 0xFF)) * 0x100000001b3L;
+        }
+        return hash(h);
+    }
+
+    static int compareBytes(byte[] a, byte[] b) {
+        int n = Math.min(a.length, b.length);
+        for (int i = 0; i < n; i++) {
+            int cmp = Integer.compare(a[i] & 0xFF, b[i] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return Integer.compare(a.length, b.length);
+    }
+
+    /**
+     * Start indexing a segment
+     *
+     * @param first the first sequence number of the segment
+     */
+    public void beginSegment(long first) {
+        assert m_current == null : "Segment " + m_current + " not ended";
+        m_current = new SegmentFilter();
+        m_current.m_first = first;
+        m_hashCount = 0;
+    }
+
+    /**
+     * Add the key of a row of the current segment: a long or the UTF-8 bytes of a string
+     */
+    public void addKey(long key) {
+        m_current.m_minLong = Math.min(m_current.m_minLong, key);
+        m_current.m_maxLong = Math.max(m_current.m_maxLong, key);
+        addHash(hash(key));
+    }
+
+    public void addKey(byte[] key) {
+        if (m_current.m_minBytes == null || compareBytes(key, m_current.m_minBytes) < 0) {
+            m_current.m_minBytes = key;
+        }
+        if (m_current.m_maxBytes == null || compareBytes(key, m_current.m_maxBytes) > 0) {
+            m_current.m_maxBytes = key;
+        }
+        addHash(hash(key));
+    }
+
+    private void addHash(long hash) {
+        if (m_hashCount == m_hashes.length) {
+            m_hashes = Arrays.copyOf(m_hashes, m_hashCount * 2);
+        }
+        m_hashes[m_hashCount++] = hash;
+        m_current.m_keys++;
+    }
+
+    /**
+     * End the current segment, building its bloom filter from the keys added
+     *
+     * @param last the last sequence number of the segment
+     */
+    public void endSegment(long last) {
+        SegmentFilter seg = m_current;
+        m_current = null;
+        seg.m_last = last;
+        if (m_hashCount > 0) {
+            long bits = Math.max(64L, (long) m_hashCount * BITS_PER_KEY);
+            seg.m_bits = new long[(int) Math.min(Integer.MAX_VALUE - 8, (bits + 63) / 64)];
+            seg.m_hashCount = Math.max(1, (int) Math.round(BITS_PER_KEY * Math.log(2)));
+            for (int i = 0; i < m_hashCount; i++) {
+                seg.put(m_hashes[i]);
+            }
+        }
+        m_segments.add(seg);
+        if (m_hashes.length > 1024 * 1024) {
+            // Don't keep the keys of a large segment
+            m_hashes = new long[1024];
+        }
+    }
+
+    /**
+     * @return the index of the segment holding a sequence number, or -1 if not indexed
+     */
+    public int findSegment(long seqNo) {
+        int lo = 0, hi = m_segments.size() - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            SegmentFilter seg = m_segments.get(mid);
+            if (seg.m_last < seqNo) {
+                lo = mid + 1;
+            }
+            else if (seg.m_first > seqNo) {
+                hi = mid - 1;
+            }
+            else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    public SegmentFilter getSegment(int idx) {
+        return m_segments.get(idx);
+    }
+
+    /**
+     * @param idx the index of a segment
+     * @param key the key as returned by {@link #parseKey}
+     * @return false if the segment holds no row with the key, true if it may hold one
+     */
+    public boolean mightContain(int idx, Object key) {
+        if (m_stringKeys != key instanceof byte[]) {
+            throw new IllegalArgumentException("Key column " + m_column + " has " + (m_stringKeys ? "string" : "long")
+                    + " keys in the key index, but not in the segments: build the index again");
+        }
+        SegmentFilter seg = m_segments.get(idx);
+        if (!seg.inRange(key)) {
+            return false;
+        }
+        return seg.mightContain(key instanceof Long ? hash((Long) key) : hash((byte[]) key));
+    }
+
+    /**
+     * Save the index, replacing the previous one
+     */
+    public void save(Path path) throws IOException {
+        Files.createDirectories(path.toAbsolutePath().getParent());
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(m_column);
+            out.writeBoolean(m_stringKeys);
+            out.writeInt(m_segments.size());
+            for (SegmentFilter seg : m_segments) {
+                out.writeLong(seg.m_first);
+                out.writeLong(seg.m_last);
+                out.writeLong(seg.m_keys);
+                if (seg.m_keys > 0) {
+                    if (m_stringKeys) {
+                        writeBytes(out, seg.m_minBytes);
+                        writeBytes(out, seg.m_maxBytes);
+                    }
+                    else {
+                        out.writeLong(seg.m_minLong);
+                        out.writeLong(seg.m_maxLong);
+                    }
+                }
+                out.writeInt(seg.m_hashCount);
+                out.writeInt(seg.m_bits.length);
+                for (long word : seg.m_bits) {
+                    out.writeLong(word);
+                }
+            }
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Load an index
+     *
+     * @return the index, or null if the file doesn't exist
+     * @throws IOException if the file cannot be read or is not an index
+     */
+    public static KeyIndex load(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException(path + " is not a key index of this version");
+            }
+            KeyIndex index = new KeyIndex(in.readUTF(), in.readBoolean());
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                SegmentFilter seg = new SegmentFilter();
+                seg.m_first = in.readLong();
+                seg.m_last = in.readLong();
+                seg.m_keys = in.readLong();
+                if (seg.m_keys > 0) {
+                    if (index.m_stringKeys) {
+                        seg.m_minBytes = readBytes(in);
+                        seg.m_maxBytes = readBytes(in);
+                    }
+                    else {
+                        seg.m_minLong = in.readLong();
+                        seg.m_maxLong = in.readLong();
+                    }
+                }
+                seg.m_hashCount = in.readInt();
+                seg.m_bits = new long[in.readInt()];
+                for (int j = 0; j < seg.m_bits.length; j++) {
+                    seg.m_bits[j] = in.readLong();
+                }
+                index.m_segments.add(seg);
+            }
+            return index;
+        }
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        long keys = 0;
+        for (SegmentFilter seg : m_segments) {
+            keys += seg.m_keys;
+        }
+        return String.format("key index of %s: %d segments, %d keys", m_column, m_segments.size(), keys);
+    }
+}
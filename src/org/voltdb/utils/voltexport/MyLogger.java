@@ -16,6 +16,7 @@
  */
 package org.voltdb.utils.voltexport;
 
+import java.io.PrintStream;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.concurrent.ConcurrentHashMap;
@@ -29,6 +30,13 @@ public class MyLogger {
     // Ad-hoc rate limiting
     private ConcurrentHashMap<Level, Long> m_lastLogs = new ConcurrentHashMap<>();
 
+    // Standard output, unless used to stream the exported rows
+    private volatile PrintStream m_out = System.out;
+
+    void setOutput(PrintStream out) {
+        m_out = out;
+    }
+
     void error(String msg) {
         log(Level.ERROR, msg);
     }
@@ -70,7 +78,7 @@ public class MyLogger {
 
     // Synchronized to allow logging from multiple threads - not concerned about performance
     private synchronized void log(Level level, String msg) {
-        System.out.print(LOG_DF.format(new Date()));
-        System.out.println(String.format(" %s: %s", level, msg));
+        m_out.print(LOG_DF.format(new Date()));
+        m_out.println(String.format(" %s: %s", level, msg));
     }
 }
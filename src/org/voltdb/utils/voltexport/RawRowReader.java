@@ -0,0 +1,285 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2022 VoltDB Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with VoltDB.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.voltdb.utils.voltexport;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.voltdb.VoltType;
+import org.voltdb.exportclient.ExportRow;
+import org.voltdb.types.GeographyPointValue;
+import org.voltdb.types.GeographyValue;
+import org.voltdb.types.TimestampType;
+
+/**
+ * Reads the columns of an encoded export row in place, without decoding the row
+ * into an {@link ExportRow}.
+ * <p>
+ * An encoded row (following its length) is made of the partition column index (int), the
+ * column count (int), the null flags (1 bit per column, most significant bit first), and the
+ * values of the non-null columns. The values of the internal columns come first, with fixed
+ * sizes. The offsets of the other columns are computed on demand, skipping the preceding
+ * values by their encoded length.
+ * <p>
+ * The values are read with the byte order of the buffer, like {@link ExportRow#decodeRow}.
+ */
+public class RawRowReader {
+    static final int ROW_HEADER_SIZE = 2 * Integer.BYTES;
+
+    // Internal column indexes, see ExportRow.INTERNAL_FIELD_COUNT
+    public static final int TXN_ID_COLUMN = 0;
+    public static final int TIMESTAMP_COLUMN = 1;
+    public static final int SEQUENCE_NUMBER_COLUMN = 2;
+    public static final int PARTITION_ID_COLUMN = 3;
+    public static final int SITE_ID_COLUMN = 4;
+    public static final int OPERATION_COLUMN = 5;
+
+    private final ExportRow m_schema;
+    private final VoltType[] m_types;
+    private final int[] m_offsets;
+
+    private ByteBuffer m_buf;
+    private int m_columnCount;
+    private int m_nullFlags;
+    private int m_parsed;
+    private int m_next;
+
+    public RawRowReader(ExportRow schema) {
+        m_schema = schema;
+        m_types = schema.types.toArray(new VoltType[schema.types.size()]);
+        m_offsets = new int[m_types.length];
+    }
+
+    /**
+     * Return the offset of an internal column (except the operation column), without parsing the row.
+     *
+     * @param b         the buffer holding the row
+     * @param rowStart  the offset of the row, following its length
+     * @param column    the internal column index
+     * @return the offset of the 8-byte column value
+     */
+    static int internalColumnOffset(ByteBuffer b, int rowStart, int column) {
+        assert column < OPERATION_COLUMN;
+        int columnCount = b.getInt(rowStart + Integer.BYTES);
+        return rowStart + ROW_HEADER_SIZE + ((columnCount + 7) >> 3) + column * Long.BYTES;
+    }
+
+    public ExportRow getSchema() {
+        return m_schema;
+    }
+
+    /**
+     * @param name a column name, case insensitive
+     * @return the index of the column, or -1 if not found
+     */
+    public int getColumnIndex(String name) {
+        for (int i = 0; i < m_schema.names.size(); i++) {
+            if (m_schema.names.get(i).equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public int getColumnCount() {
+        return m_types.length;
+    }
+
+    public VoltType getType(int col) {
+        return m_types[col];
+    }
+
+    /**
+     * Position the reader on a row
+     *
+     * @param buf       the buffer holding the row
+     * @param rowStart  the offset of the row, following its length
+     */
+    public void reset(ByteBuffer buf, int rowStart) {
+        int columnCount = buf.getInt(rowStart + Integer.BYTES);
+        m_buf = buf;
+        m_columnCount = Math.min(columnCount, m_types.length);
+        m_nullFlags = rowStart + ROW_HEADER_SIZE;
+        m_next = m_nullFlags + ((columnCount + 7) >> 3);
+        m_parsed = 0;
+    }
+
+    public boolean isNull(int col) {
+        return (m_buf.get(m_nullFlags + (col >> 3)) & (0x80 >>> (col & 7))) != 0;
+    }
+
+    /**
+     * @return the offset of a column value, or -1 if the column is null
+     */
+    public int offset(int col) {
+        while (m_parsed <= col && m_parsed < m_columnCount) {
+            int c = m_parsed++;
+            if (isNull(c)) {
+                m_offsets[c] = -1;
+            }
+            else {
+                m_offsets[c] = m_next;
+                m_next += encodedLength(m_types[c], m_next);
+            }
+        }
+        return m_offsets[col];
+    }
+
+    private int encodedLength(VoltType type, int offset) {
+        switch (type) {
+        case TINYINT:
+            return Byte.BYTES;
+        case SMALLINT:
+            return Short.BYTES;
+        case INTEGER:
+            return Integer.BYTES;
+        case BIGINT:
+        case FLOAT:
+        case TIMESTAMP:
+            return Long.BYTES;
+        case GEOGRAPHY_POINT:
+            return 2 * Double.BYTES;
+        case DECIMAL:
+            // scale, byte count, unscaled value bytes
+            return 2 + m_buf.get(offset + 1);
+        case STRING:
+        case VARBINARY:
+        case GEOGRAPHY:
+            return Integer.BYTES + m_buf.getInt(offset);
+        default:
+            throw new IllegalArgumentException("Unsupported column type: " + type);
+        }
+    }
+
+    /**
+     * Read the value of a non-null integral or timestamp column
+     */
+    public long getLong(int col) {
+        int offset = offset(col);
+        switch (m_types[col]) {
+        case TINYINT:
+            return m_buf.get(offset);
+        case SMALLINT:
+            return m_buf.getShort(offset);
+        case INTEGER:
+            return m_buf.getInt(offset);
+        case BIGINT:
+        case TIMESTAMP:
+            return m_buf.getLong(offset);
+        default:
+            throw new IllegalArgumentException("Column " + m_schema.names.get(col) + " is not integral");
+        }
+    }
+
+    /**
+     * Read the value of a non-null numeric column as a double
+     */
+    public double getDouble(int col) {
+        if (m_types[col] == VoltType.FLOAT) {
+            return m_buf.getDouble(offset(col));
+        }
+        if (m_types[col] == VoltType.DECIMAL) {
+            return ((BigDecimal) decode(col)).doubleValue();
+        }
+        return getLong(col);
+    }
+
+    /**
+     * Compare the bytes of a non-null STRING or VARBINARY column to a value, as unsigned bytes
+     * (which is the code point order for UTF-8 strings).
+     */
+    public int compareBytes(int col, byte[] value) {
+        int offset = offset(col);
+        int length = m_buf.getInt(offset);
+        offset += Integer.BYTES;
+        int n = Math.min(length, value.length);
+        for (int i = 0; i < n; i++) {
+            int cmp = Integer.compare(m_buf.get(offset + i) & 0xFF, value[i] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return Integer.compare(length, value.length);
+    }
+
+    /**
+     * @return a copy of the bytes of a non-null STRING or VARBINARY column
+     */
+    public byte[] copyBytes(int col) {
+        return getBytes(offset(col));
+    }
+
+    /**
+     * Decode a column into the same object as {@link ExportRow#decodeRow}
+     *
+     * @return the column value, or null
+     */
+    public Object decode(int col) {
+        int offset = offset(col);
+        if (offset < 0) {
+            return null;
+        }
+        switch (m_types[col]) {
+        case TINYINT:
+            return m_buf.get(offset);
+        case SMALLINT:
+            return m_buf.getShort(offset);
+        case INTEGER:
+            return m_buf.getInt(offset);
+        case BIGINT:
+            return m_buf.getLong(offset);
+        case FLOAT:
+            return m_buf.getDouble(offset);
+        case TIMESTAMP:
+            return new TimestampType(m_buf.getLong(offset));
+        case STRING:
+            return new String(getBytes(offset), StandardCharsets.UTF_8);
+        case VARBINARY:
+            return getBytes(offset);
+        case DECIMAL: {
+            int scale = m_buf.get(offset);
+            byte[] unscaled = new byte[m_buf.get(offset + 1)];
+            ByteBuffer b = m_buf.duplicate();
+            b.position(offset + 2);
+            b.get(unscaled);
+            return new BigDecimal(new BigInteger(unscaled), scale);
+        }
+        case GEOGRAPHY_POINT: {
+            ByteBuffer b = m_buf.duplicate().order(m_buf.order());
+            b.position(offset);
+            return GeographyPointValue.unflattenFromBuffer(b);
+        }
+        case GEOGRAPHY: {
+            ByteBuffer b = m_buf.duplicate().order(m_buf.order());
+            b.position(offset + Integer.BYTES);
+            return GeographyValue.unflattenFromBuffer(b);
+        }
+        default:
+            throw new IllegalArgumentException("Unsupported column type: " + m_types[col]);
+        }
+    }
+
+    private byte[] getBytes(int offset) {
+        byte[] bytes = new byte[m_buf.getInt(offset)];
+        ByteBuffer b = m_buf.duplicate();
+        b.position(offset + Integer.BYTES);
+        b.get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,403 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2022 VoltDB Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with VoltDB.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.voltdb.utils.voltexport;
+
+import static org.voltdb.utils.voltexport.VoltExport.LOG;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+import org.voltcore.utils.DBBPool.BBContainer;
+import org.voltdb.catalog.Database;
+import org.voltdb.export.StreamBlock;
+import org.voltdb.exportclient.PersistedMetadata;
+import org.voltdb.utils.BinaryDeque;
+import org.voltdb.utils.BinaryDeque.BinaryDequeScanner;
+
+
+/**
+ * A class that verifies that the hosts holding the same sequence numbers of a stream/partition
+ * hold the same rows, before stitching.
+ * <p>
+ * Each host scans its PBD once, in parallel with the other hosts: the scan collects the sequence
+ * numbers held by the host, and hashes its rows in cells of {@code VERIFY_CELL_ROWS} aligned
+ * sequence numbers (64 by default). The row hashes are combined by addition, so the hash of a range
+ * of cells is the sum of their hashes.
+ * <p>
+ * The sequence numbers held by 2 or more hosts are then split in chunks where the set of holders is
+ * constant, and the hosts disagreeing on the hash or row count of a chunk are reported. A cell
+ * crossing the edge of a chunk is only compared if all the holders of the chunk hold the same
+ * sequence numbers of that cell: the rows next to a gap of only some of the holders may not be
+ * compared, and are counted as unverified. A cell size of 1 compares all the rows, using more memory.
+ * <p>
+ * The rows are hashed from the raw PBD entries, using the same non-destructive scan as the
+ * gap detection: nothing is decoded nor exported, and the PBD files are not modified. The site id
+ * metadata column legitimately differs between replicas and is excluded from the hashes.
+ */
+public class ReplicaVerifier {
+    private static final int CELL_ROWS = Math.max(1, Integer.getInteger("VERIFY_CELL_ROWS", 64));
+    private static final long HASH_MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+    private final List<String> m_indirs;
+    private final Database m_db;
+    private final String m_name;
+    private final int m_partition;
+    private final long m_chunkRows;
+
+    // The chunks to verify: inclusive sequence number ranges, and the hosts holding them
+    private long[] m_starts;
+    private long[] m_ends;
+    private List<Integer>[] m_holders;
+
+    public ReplicaVerifier(List<String> indirs, Database db, String name, int partition, long chunkRows) {
+        m_indirs = indirs;
+        m_db = db;
+        m_name = name;
+        m_partition = partition;
+        m_chunkRows = chunkRows;
+    }
+
+    /**
+     * Verify the replicas, using an executor to scan the PBDs of all hosts in parallel
+     *
+     * @param executor the executor to use
+     * @return the count of chunks on which the hosts disagree, or -1 if a host failed or no host holds rows
+     * @throws Exception
+     */
+    public int verify(ExecutorService executor) throws Exception {
+        Map<Integer, Future<HostScan>> futures = new TreeMap<>();
+        for (int hostId = 0; hostId < m_indirs.size(); hostId++) {
+            futures.put(hostId, executor.submit(new HostHasher(hostId)));
+        }
+        Map<Integer, HostScan> scans = new TreeMap<>();
+        boolean failed = false;
+        for (Map.Entry<Integer, Future<HostScan>> e : futures.entrySet()) {
+            try {
+                HostScan scan = e.getValue().get();
+                LOG.infoFmt("Host %d: %s", e.getKey(), scan.m_ranges.toTracker());
+                if (!scan.m_ranges.isEmpty()) {
+                    scans.put(e.getKey(), scan);
+                }
+            }
+            catch (Exception ex) {
+                LOG.errorFmt("Host %d failed hashing rows", e.getKey());
+                ex.printStackTrace();
+                failed = true;
+            }
+        }
+        if (failed) {
+            return -1;
+        }
+        if (scans.isEmpty()) {
+            LOG.errorFmt("No PBD files found in directories %s", m_indirs);
+            return -1;
+        }
+        return compare(scans);
+    }
+
+    /**
+     * Compare the rows of the hosts holding the same sequence numbers
+     *
+     * @param scans the map of hostId -> scan of the hosts holding rows
+     * @return the count of chunks on which the hosts disagree
+     */
+    int compare(Map<Integer, HostScan> scans) {
+        planChunks(scans);
+        if (m_starts.length == 0) {
+            LOG.infoFmt("No sequence numbers of %s:%d are held by more than 1 host, nothing to verify",
+                    m_name, m_partition);
+            return 0;
+        }
+        long rows = 0;
+        for (int i = 0; i < m_starts.length; i++) {
+            rows += m_ends[i] - m_starts[i] + 1;
+        }
+        LOG.infoFmt("Verifying %d rows of %s:%d held by 2 or more hosts, in %d chunks ...",
+                rows, m_name, m_partition, m_starts.length);
+
+        int mismatches = 0;
+        long unverified = 0;
+        int hostCount = scans.keySet().stream().mapToInt(Integer::intValue).max().getAsInt() + 1;
+        long[] hashes = new long[hostCount];
+        long[] counts = new long[hostCount];
+        for (int i = 0; i < m_starts.length; i++) {
+            List<Integer> holders = m_holders[i];
+            Arrays.fill(counts, 0);
+            Arrays.fill(hashes, 0);
+            long firstCell = Math.floorDiv(m_starts[i], CELL_ROWS);
+            long lastCell = Math.floorDiv(m_ends[i], CELL_ROWS);
+            for (long cell = firstCell; cell <= lastCell; cell++) {
+                long cellStart = cell * CELL_ROWS;
+                long cellEnd = cellStart + CELL_ROWS - 1;
+                if ((cell == firstCell || cell == lastCell) && !sameCoverage(scans, holders, cellStart, cellEnd)) {
+                    unverified += Math.min(cellEnd, m_ends[i]) - Math.max(cellStart, m_starts[i]) + 1;
+                    continue;
+                }
+                for (Integer hostId : holders) {
+                    HostScan scan = scans.get(hostId);
+                    int idx = scan.findCell(cell);
+                    if (idx >= 0) {
+                        hashes[hostId] += scan.m_hashes[idx];
+                        counts[hostId] += scan.m_rows[idx];
+                    }
+                }
+            }
+
+            boolean match = true;
+            int first = holders.get(0);
+            for (Integer hostId : holders) {
+                if (hashes[hostId] != hashes[first] || counts[hostId] != counts[first]) {
+                    match = false;
+                }
+            }
+            if (!match) {
+                mismatches++;
+                StringBuilder sb = new StringBuilder();
+                for (Integer hostId : holders) {
+                    sb.append(String.format(" host %d: %d rows, hash %016x;", hostId, counts[hostId], hashes[hostId]));
+                }
+                LOG.errorFmt("Mismatch on range [%d, %d]:%s", m_starts[i], m_ends[i], sb);
+            }
+        }
+        if (unverified > 0) {
+            LOG.warnFmt("%d rows next to the gaps of some hosts were not compared, set VERIFY_CELL_ROWS=1 to compare them",
+                    unverified);
+        }
+        if (mismatches == 0) {
+            LOG.infoFmt("Success: %d chunks of %s:%d verified, all hosts agree", m_starts.length, m_name, m_partition);
+        }
+        else {
+            LOG.errorFmt("Verification of %s:%d found %d mismatched chunks out of %d",
+                    m_name, m_partition, mismatches, m_starts.length);
+        }
+        return mismatches;
+    }
+
+    /**
+     * Split the sequence numbers in elementary ranges where the set of holding hosts is
+     * constant, and keep the ranges with 2 or more holders, cut in chunks of at most m_chunkRows,
+     * on cell boundaries when possible.
+     */
+    @SuppressWarnings("unchecked")
+    private void planChunks(Map<Integer, HostScan> scans) {
+        int cutCount = 0;
+        for (HostScan scan : scans.values()) {
+            cutCount += 2 * scan.m_ranges.size();
+        }
+        long[] cuts = new long[cutCount];
+        cutCount = 0;
+        for (HostScan scan : scans.values()) {
+            for (int i = 0; i < scan.m_ranges.size(); i++) {
+                cuts[cutCount++] = scan.m_ranges.getStart(i);
+                cuts[cutCount++] = scan.m_ranges.getEnd(i) + 1;
+            }
+        }
+        Arrays.sort(cuts);
+
+        List<long[]> chunks = new ArrayList<>();
+        List<List<Integer>> holders = new ArrayList<>();
+        for (int c = 1; c < cuts.length; c++) {
+            long start = cuts[c - 1];
+            long cut = cuts[c];
+            if (start < cut) {
+                List<Integer> h = new ArrayList<>();
+                for (Map.Entry<Integer, HostScan> e : scans.entrySet()) {
+                    if (e.getValue().m_ranges.contains(start)) {
+                        h.add(e.getKey());
+                    }
+                }
+                if (h.size() > 1) {
+                    for (long s = start; s < cut; ) {
+                        // End the chunk on a cell boundary, so that the next chunk starts on a whole cell
+                        long next = Math.floorDiv(s + m_chunkRows, CELL_ROWS) * CELL_ROWS;
+                        if (next <= s) {
+                            next = s + m_chunkRows;
+                        }
+                        next = Math.min(cut, next);
+                        chunks.add(new long[] { s, next - 1 });
+                        holders.add(h);
+                        s = next;
+                    }
+                }
+            }
+        }
+
+        m_starts = new long[chunks.size()];
+        m_ends = new long[chunks.size()];
+        m_holders = holders.toArray(new List[holders.size()]);
+        for (int i = 0; i < chunks.size(); i++) {
+            m_starts[i] = chunks.get(i)[0];
+            m_ends[i] = chunks.get(i)[1];
+        }
+    }
+
+    // Return true if the hosts hold the same sequence numbers of a cell
+    private static boolean sameCoverage(Map<Integer, HostScan> scans, List<Integer> hosts, long cellStart, long cellEnd) {
+        SeqNoRangeSet first = scans.get(hosts.get(0)).m_ranges;
+        for (int h = 1; h < hosts.size(); h++) {
+            SeqNoRangeSet other = scans.get(hosts.get(h)).m_ranges;
+            int i = first.ceilingIndex(cellStart);
+            int j = other.ceilingIndex(cellStart);
+            while (true) {
+                boolean hasFirst = i < first.size() && first.getStart(i) <= cellEnd;
+                boolean hasOther = j < other.size() && other.getStart(j) <= cellEnd;
+                if (hasFirst != hasOther) {
+                    return false;
+                }
+                if (!hasFirst) {
+                    break;
+                }
+                if (Math.max(first.getStart(i), cellStart) != Math.max(other.getStart(j), cellStart)
+                        || Math.min(first.getEnd(i), cellEnd) != Math.min(other.getEnd(j), cellEnd)) {
+                    return false;
+                }
+                i++;
+                j++;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The sequence numbers held by a host, and the hashes and row counts of its cells, sorted by cell
+     */
+    static class HostScan {
+        final SeqNoRangeSet m_ranges = new SeqNoRangeSet();
+        int m_size = 0;
+        long[] m_cells = new long[1024];
+        long[] m_hashes = new long[1024];
+        long[] m_rows = new long[1024];
+
+        void add(long seqNo, long rowHash) {
+            long cell = Math.floorDiv(seqNo, CELL_ROWS);
+            int idx = m_size > 0 && m_cells[m_size - 1] == cell ? m_size - 1 : findCell(cell);
+            if (idx < 0) {
+                idx = -idx - 1;
+                if (m_size == m_cells.length) {
+                    m_cells = Arrays.copyOf(m_cells, 2 * m_size);
+                    m_hashes = Arrays.copyOf(m_hashes, 2 * m_size);
+                    m_rows = Arrays.copyOf(m_rows, 2 * m_size);
+                }
+                // Rows are scanned in sequence order: this only appends, except after a restart of the sequence
+                System.arraycopy(m_cells, idx, m_cells, idx + 1, m_size - idx);
+                System.arraycopy(m_hashes, idx, m_hashes, idx + 1, m_size - idx);
+                System.arraycopy(m_rows, idx, m_rows, idx + 1, m_size - idx);
+                m_cells[idx] = cell;
+                m_hashes[idx] = 0;
+                m_rows[idx] = 0;
+                m_size++;
+            }
+            // Combine by addition, salting the row hash with its sequence number
+            m_hashes[idx] += mix(seqNo * HASH_MULTIPLIER + rowHash);
+            m_rows[idx]++;
+        }
+
+        /**
+         * @return the index of a cell, or the complement of its insertion point
+         */
+        int findCell(long cell) {
+            return Arrays.binarySearch(m_cells, 0, m_size, cell);
+        }
+    }
+
+    /**
+     * Scans the PBD of one host, collecting its sequence numbers and hashing its rows per cell
+     */
+    private class HostHasher implements Callable<HostScan> {
+        private final int m_hostId;
+
+        HostHasher(int hostId) {
+            m_hostId = hostId;
+        }
+
+        @Override
+        public HostScan call() throws Exception {
+            HostScan result = new HostScan();
+            String indir = m_indirs.get(m_hostId);
+            // A missing directory is an empty PBD: the input directory is never written to create it
+            if (!new File(ExportFileVisitor.getPathForExportStream(indir, m_name, m_partition)).isDirectory()) {
+                return result;
+            }
+
+            BinaryDeque<PersistedMetadata> pbd = ExportRunner.constructPBD(indir, m_name, m_partition, m_db);
+            try {
+                scanRows(pbd, result, new CRC32());
+            }
+            finally {
+                pbd.close();
+            }
+
+            LOG.infoFmt("Host %d hashed the rows of %s:%d", m_hostId, m_name, m_partition);
+            return result;
+        }
+
+        private void scanRows(BinaryDeque<PersistedMetadata> pbd, HostScan result, CRC32 crc) throws IOException {
+            pbd.scanEntries(new BinaryDequeScanner() {
+                @Override
+                public long scan(BBContainer bbc) {
+                    ByteBuffer b = bbc.b().duplicate();
+                    b.order(ByteOrder.LITTLE_ENDIAN);
+                    final int base = b.position();
+                    final long startSequenceNumber = b.getLong(base + StreamBlock.SEQUENCE_NUMBER_OFFSET);
+                    final int tupleCount = b.getInt(base + StreamBlock.ROW_NUMBER_OFFSET);
+                    final long endSequenceNumber = startSequenceNumber + tupleCount - 1;
+                    IoThrottle.GLOBAL.onRead(b.limit() - base);
+                    result.m_ranges.add(startSequenceNumber, endSequenceNumber);
+
+                    int pos = base + StreamBlock.HEADER_SIZE;
+                    for (long seqNo = startSequenceNumber; seqNo <= endSequenceNumber && pos < b.limit(); seqNo++) {
+                        int length = b.getInt(pos);
+                        int rowStart = pos + Integer.BYTES;
+                        pos = rowStart + length;
+                        result.add(seqNo, hashRow(crc, b, rowStart, length));
+                    }
+                    return endSequenceNumber;
+                }
+            });
+        }
+    }
+
+    private static long hashRow(CRC32 crc, ByteBuffer b, int rowStart, int length) {
+        int siteIdOffset = RawRowReader.internalColumnOffset(b, rowStart, RawRowReader.SITE_ID_COLUMN);
+
+        ByteBuffer row = b.duplicate();
+        crc.reset();
+        row.limit(siteIdOffset).position(rowStart);
+        crc.update(row);
+        row.limit(rowStart + length).position(siteIdOffset + Long.BYTES);
+        crc.update(row);
+        return crc.getValue();
+    }
+
+    // The finalizer of SplitMix64, spreading the salted row hashes over the longs before adding them
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
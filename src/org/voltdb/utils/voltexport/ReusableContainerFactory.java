@@ -0,0 +1,107 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2022 VoltDB Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with VoltDB.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.voltdb.utils.voltexport;
+
+import java.nio.ByteBuffer;
+
+import org.voltcore.utils.DBBPool.BBContainer;
+import org.voltdb.utils.BinaryDeque.OutputContainerFactory;
+import org.voltdb.utils.PersistentBinaryDeque;
+
+/**
+ * An {@link OutputContainerFactory} handing out slices of a single direct buffer reused
+ * across polls, instead of allocating a new direct container for every polled entry
+ * like {@link PersistentBinaryDeque#UNSAFE_CONTAINER_FACTORY}.
+ * <p>
+ * The PBD reads (or decompresses) each entry straight into the slice, so the decoders work
+ * on that memory without any further copy. The buffer grows to the largest entry polled
+ * and is dropped on {@link #close()}, or between blocks by {@link #releaseIfContended()} when other
+ * runners wait for memory. Its capacity is charged to a {@link DirectMemoryBudget} before polling
+ * into it, so that concurrent runners cannot exhaust direct memory.
+ * <p>
+ * Note: the data of a container is overwritten by the next poll. This matches the
+ * {@link ExportRunner} loop, which is done with a block before polling the next one.
+ * It also means that a block left unreleased at the end of a range does not leak memory.
+ */
+public class ReusableContainerFactory implements OutputContainerFactory {
+    // Round allocations up to avoid regrowing on every slightly larger block
+    private static final int ALLOCATION_QUANTUM = 64 * 1024;
+
+    private final DirectMemoryBudget m_budget;
+    private ByteBuffer m_buffer;
+    private long m_charged = 0;
+
+    public ReusableContainerFactory(DirectMemoryBudget budget) {
+        m_budget = budget;
+    }
+
+    @Override
+    public BBContainer getContainer(int minimumSize) {
+        if (m_buffer == null || m_buffer.capacity() < minimumSize) {
+            // Give back the smaller buffer before waiting for the larger one, so that
+            // a runner never holds memory while blocked on the budget
+            close();
+            int capacity = roundUp(minimumSize);
+            m_charged = m_budget.acquire(capacity);
+            m_buffer = ByteBuffer.allocateDirect(capacity);
+        }
+
+        // Hand out a slice of exactly the requested size, like a fresh allocation
+        ByteBuffer b = m_buffer.duplicate();
+        b.clear();
+        b.limit(minimumSize);
+        return new BBContainer(b.slice()) {
+            @Override
+            public void discard() {
+                // Nothing to free, the buffer is reused by the next poll
+            }
+        };
+    }
+
+    /**
+     * @return the capacity of the buffer currently held, 0 if none
+     */
+    public int capacity() {
+        return m_buffer == null ? 0 : m_buffer.capacity();
+    }
+
+    /**
+     * Drop the reused buffer between blocks if other runners wait for memory: it is allocated
+     * again by the next poll. Must only be called once done with the last block polled.
+     */
+    public void releaseIfContended() {
+        if (m_charged > 0 && m_budget.hasWaiters()) {
+            close();
+        }
+    }
+
+    /**
+     * Drop the reused buffer and return its charge to the budget: the memory is reclaimed
+     * once no container slices refer to it.
+     */
+    public void close() {
+        m_buffer = null;
+        if (m_charged > 0) {
+            m_budget.release(m_charged);
+            m_charged = 0;
+        }
+    }
+
+    private static int roundUp(int size) {
+        return ((size + ALLOCATION_QUANTUM - 1) / ALLOCATION_QUANTUM) * ALLOCATION_QUANTUM;
+    }
+}
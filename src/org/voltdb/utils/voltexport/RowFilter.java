@@ -0,0 +1,200 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2022 VoltDB Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with VoltDB.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.voltdb.utils.voltexport;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.voltdb.exportclient.ExportRow;
+import org.voltdb.types.TimestampType;
+
+/**
+ * A conjunction of simple comparisons on column values, evaluated on the encoded rows
+ * with a {@link RawRowReader}, before decoding them.
+ * <p>
+ * The filter is parsed from a string of conditions separated by commas or {@code AND}, e.g.
+ * {@code TENANT=42,REGION='EU'}. The operators are {@code = != <> < <= > >=}, the values are
+ * numbers, quoted strings or {@code NULL} (only with {@code =} and {@code !=}). TIMESTAMP
+ * columns may be compared to microseconds since the epoch, or to quoted timestamps like
+ * {@code '2022-10-20 02:10:00'}. A comparison with a null column value is false.
+ * <p>
+ * The conditions are bound to the columns of each schema the first time a row of that schema
+ * is evaluated. A filter instance is not thread-safe.
+ */
+public class RowFilter {
+    private static final Pattern CONDITION = Pattern.compile("\\s*(\\w+)\\s*(<=|>=|!=|<>|=|<|>)\\s*(.+?)\\s*");
+    private static final Pattern SEPARATOR = Pattern.compile("(?:\\s+(?i:AND)\\s+|,)(?=(?:[^']*'[^']*')*[^']*$)");
+
+    enum Op {
+        EQ, NE, LT, LE, GT, GE;
+
+        static Op parse(String op) {
+            switch (op) {
+            case "=": return EQ;
+            case "!=":
+            case "<>": return NE;
+            case "<": return LT;
+            case "<=": return LE;
+            case ">": return GT;
+            default: return GE;
+            }
+        }
+
+        boolean test(int cmp) {
+            switch (this) {
+            case EQ: return cmp == 0;
+            case NE: return cmp != 0;
+            case LT: return cmp < 0;
+            case LE: return cmp <= 0;
+            case GT: return cmp > 0;
+            default: return cmp >= 0;
+            }
+        }
+    }
+
+    private static class Condition {
+        final String m_column;
+        final Op m_op;
+        final String m_value;   // null for NULL
+        final boolean m_quoted;
+
+        // Bound to the current schema
+        int m_index;
+        long m_long;
+        double m_double;
+        byte[] m_bytes;
+        BigDecimal m_decimal;
+
+        Condition(String column, Op op, String value, boolean quoted) {
+            m_column = column;
+            m_op = op;
+            m_value = value;
+            m_quoted = quoted;
+        }
+
+        void bind(RawRowReader reader) {
+            m_index = reader.getColumnIndex(m_column);
+            if (m_index < 0) {
+                throw new IllegalArgumentException("Unknown column " + m_column + " in filter");
+            }
+            if (m_value == null) {
+                return;
+            }
+            switch (reader.getType(m_index)) {
+            case TINYINT:
+            case SMALLINT:
+            case INTEGER:
+            case BIGINT:
+                m_long = Long.parseLong(m_value);
+                break;
+            case TIMESTAMP:
+                m_long = m_quoted ? new TimestampType(m_value).getTime() : Long.parseLong(m_value);
+                break;
+            case FLOAT:
+                m_double = Double.parseDouble(m_value);
+                break;
+            case DECIMAL:
+                m_decimal = new BigDecimal(m_value);
+                break;
+            case STRING:
+                m_bytes = m_value.getBytes(StandardCharsets.UTF_8);
+                break;
+            default:
+                throw new IllegalArgumentException("Column " + m_column + " of type " + reader.getType(m_index)
+                        + " cannot be used in a filter");
+            }
+        }
+
+        boolean test(RawRowReader reader) {
+            boolean isNull = reader.offset(m_index) < 0;
+            if (m_value == null) {
+                return m_op == Op.EQ ? isNull : !isNull;
+            }
+            if (isNull) {
+                return false;
+            }
+            switch (reader.getType(m_index)) {
+            case FLOAT:
+                return m_op.test(Double.compare(reader.getDouble(m_index), m_double));
+            case DECIMAL:
+                return m_op.test(((BigDecimal) reader.decode(m_index)).compareTo(m_decimal));
+            case STRING:
+                return m_op.test(reader.compareBytes(m_index, m_bytes));
+            default:
+                return m_op.test(Long.compare(reader.getLong(m_index), m_long));
+            }
+        }
+    }
+
+    private final List<Condition> m_conditions = new ArrayList<>();
+    private RawRowReader m_reader;
+
+    /**
+     * @param filter the filter string
+     * @throws IllegalArgumentException if the filter cannot be parsed
+     */
+    public RowFilter(String filter) {
+        for (String cond : SEPARATOR.split(filter.trim())) {
+            Matcher m = CONDITION.matcher(cond);
+            if (!m.matches()) {
+                throw new IllegalArgumentException("Invalid filter condition: " + cond);
+            }
+            Op op = Op.parse(m.group(2));
+            String value = m.group(3);
+            boolean quoted = value.length() >= 2 && value.startsWith("'") && value.endsWith("'");
+            if (quoted) {
+                value = value.substring(1, value.length() - 1);
+            }
+            else if ("NULL".equalsIgnoreCase(value)) {
+                if (op != Op.EQ && op != Op.NE) {
+                    throw new IllegalArgumentException("Only = and != apply to NULL: " + cond);
+                }
+                value = null;
+            }
+            m_conditions.add(new Condition(m.group(1), op, value, quoted));
+        }
+    }
+
+    /**
+     * Evaluate the filter on an encoded row
+     *
+     * @param schema    the schema of the row
+     * @param buf       the buffer holding the row
+     * @param rowStart  the offset of the row, following its length
+     * @return true if the row satisfies all the conditions
+     */
+    public boolean accept(ExportRow schema, ByteBuffer buf, int rowStart) {
+        if (m_reader == null || m_reader.getSchema() != schema) {
+            m_reader = new RawRowReader(schema);
+            for (Condition c : m_conditions) {
+                c.bind(m_reader);
+            }
+        }
+        m_reader.reset(buf, rowStart);
+        for (Condition c : m_conditions) {
+            if (!c.test(m_reader)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,120 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2022 VoltDB Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with VoltDB.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.voltdb.utils.voltexport;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.lang3.StringUtils;
+import org.voltdb.VoltType;
+import org.voltdb.exportclient.ExportRow;
+
+/**
+ * Decodes only a subset of the columns of the encoded rows into an {@link ExportRow}.
+ * <p>
+ * The projected rows keep the internal columns, which the export clients may skip
+ * (e.g. skipinternals), followed by the selected columns in the requested order. The
+ * other columns are skipped by their encoded length, and are neither materialized
+ * nor written by the export client.
+ * <p>
+ * The columns are resolved on each schema the first time a row of that schema is
+ * decoded. A projection instance is not thread-safe.
+ */
+public class RowProjection {
+    private final List<String> m_columns = new ArrayList<>();
+
+    // Bound to the current schema
+    private RawRowReader m_reader;
+    private int[] m_indexes;
+    private List<String> m_names;
+    private List<VoltType> m_types;
+    private List<Integer> m_lengths;
+
+    /**
+     * @param columns comma-separated list of column names
+     * @throws IllegalArgumentException if no columns are listed
+     */
+    public RowProjection(String columns) {
+        for (String col : columns.split(",")) {
+            if (!StringUtils.isBlank(col)) {
+                m_columns.add(col.trim());
+            }
+        }
+        if (m_columns.isEmpty()) {
+            throw new IllegalArgumentException("No columns in projection " + columns);
+        }
+    }
+
+    private void bind(ExportRow schema) {
+        m_reader = new RawRowReader(schema);
+        m_indexes = new int[ExportRow.INTERNAL_FIELD_COUNT + m_columns.size()];
+        for (int i = 0; i < ExportRow.INTERNAL_FIELD_COUNT; i++) {
+            m_indexes[i] = i;
+        }
+        for (int i = 0; i < m_columns.size(); i++) {
+            int index = m_reader.getColumnIndex(m_columns.get(i));
+            if (index < 0) {
+                throw new IllegalArgumentException("Unknown column " + m_columns.get(i) + " in projection");
+            }
+            if (index < ExportRow.INTERNAL_FIELD_COUNT) {
+                throw new IllegalArgumentException("Column " + m_columns.get(i) + " is a VoltDB metadata column:"
+                        + " the metadata columns are always kept, remove it from the columns and set skipinternals=false"
+                        + " in the export properties to write them");
+            }
+            m_indexes[ExportRow.INTERNAL_FIELD_COUNT + i] = index;
+        }
+
+        m_names = new ArrayList<>(m_indexes.length);
+        m_types = new ArrayList<>(m_indexes.length);
+        m_lengths = new ArrayList<>(m_indexes.length);
+        for (int index : m_indexes) {
+            m_names.add(schema.names.get(index));
+            m_types.add(schema.types.get(index));
+            m_lengths.add(schema.lengths.get(index));
+        }
+    }
+
+    /**
+     * Decode the projection of an encoded row
+     *
+     * @param schema    the schema of the row
+     * @param partition the partition of the row
+     * @param buf       the buffer holding the row
+     * @param rowStart  the offset of the row, following its length
+     * @return the projected row
+     */
+    public ExportRow decodeRow(ExportRow schema, int partition, ByteBuffer buf, int rowStart) {
+        if (m_reader == null || m_reader.getSchema() != schema) {
+            bind(schema);
+        }
+        m_reader.reset(buf, rowStart);
+
+        int partitionColIndex = buf.getInt(rowStart);
+        int projectedColIndex = -1;
+        Object[] values = new Object[m_indexes.length];
+        for (int i = 0; i < m_indexes.length; i++) {
+            values[i] = m_reader.decode(m_indexes[i]);
+            if (m_indexes[i] == partitionColIndex) {
+                projectedColIndex = i;
+            }
+        }
+        Object pval = projectedColIndex >= 0 && values[projectedColIndex] != null ? values[projectedColIndex] : partition;
+        return new ExportRow(schema.tableName, m_names, m_types, m_lengths, values, pval, projectedColIndex,
+                partition, schema.generation);
+    }
+}
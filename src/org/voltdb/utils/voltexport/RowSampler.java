@@ -0,0 +1,160 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2022 VoltDB Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with VoltDB.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.voltdb.utils.voltexport;
+
+/**
+ * Selects a sample of the rows of a stream/partition, for a quick look at the data.
+ * <p>
+ * The sample is parsed from one of:
+ * <ul>
+ * <li>{@code blocks:N}: all the rows of every Nth block, starting with the first block of the range</li>
+ * <li>{@code segment:N}: the first N rows of the range in each PBD segment</li>
+ * <li>{@code fraction:F[:SEED]}: each row with a probability F, e.g. 0.01 for about 1% of the rows</li>
+ * </ul>
+ * The blocks without rows in the sample are skipped without being decoded. The rows of a fraction are
+ * selected by hashing their sequence number with the seed (default 0), so that a sample is the same on
+ * each run, and when a block is restarted. The time window and the filter still apply to the rows of
+ * the sample.
+ * <p>
+ * A sampler is used by one runner, and is not thread-safe.
+ */
+public class RowSampler {
+    enum Mode {
+        BLOCKS, SEGMENT, FRACTION
+    }
+
+    private final Mode m_mode;
+    private final long m_count;
+    private final double m_fraction;
+    private final long m_seed;
+    private final long m_seedHash;
+
+    // The count of blocks offered
+    private long m_blocks = 0;
+    // The first sequence number of the range in the current segment
+    private long m_segmentFirst = Long.MIN_VALUE;
+
+    public RowSampler(String sample) {
+        String[] parts = sample.trim().split(":");
+        try {
+            m_mode = Mode.valueOf(parts[0].trim().toUpperCase());
+        }
+        catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid sample " + sample + ", must be blocks:N, segment:N or fraction:F[:SEED]");
+        }
+        if (m_mode == Mode.FRACTION) {
+            if (parts.length < 2 || parts.length > 3) {
+                throw new IllegalArgumentException("Invalid sample " + sample + ", must be fraction:F[:SEED]");
+            }
+            m_count = 0;
+            m_fraction = Double.parseDouble(parts[1].trim());
+            if (!(m_fraction > 0 && m_fraction <= 1)) {
+                throw new IllegalArgumentException("Invalid sample " + sample + ", the fraction must be in ]0, 1]");
+            }
+            m_seed = parts.length == 3 ? Long.parseLong(parts[2].trim()) : 0L;
+        }
+        else {
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Invalid sample " + sample + ", must be " + parts[0] + ":N");
+            }
+            m_count = Long.parseLong(parts[1].trim());
+            if (m_count <= 0) {
+                throw new IllegalArgumentException("Invalid sample " + sample + ", N must be > 0");
+            }
+            m_fraction = 1;
+            m_seed = 0;
+        }
+        m_seedHash = mix(m_seed);
+    }
+
+    /**
+     * Offer each block polled, in PBD order, even if it is not in the range
+     *
+     * @param start         the first sequence number of the block
+     * @param last          the last sequence number of the block
+     * @param startOfSegment true if the block is the first of its segment
+     * @param rangeFirst    the first sequence number of the range
+     * @return false if the block has no rows in the sample and can be skipped
+     */
+    public boolean acceptBlock(long start, long last, boolean startOfSegment, long rangeFirst) {
+        if (startOfSegment || m_segmentFirst == Long.MIN_VALUE) {
+            m_segmentFirst = Long.MAX_VALUE;
+        }
+        if (last < rangeFirst) {
+            return false;
+        }
+        if (m_segmentFirst == Long.MAX_VALUE) {
+            m_segmentFirst = Math.max(start, rangeFirst);
+        }
+        switch (m_mode) {
+        case BLOCKS:
+            return m_blocks++ % m_count == 0;
+        case SEGMENT:
+            return start - m_segmentFirst < m_count;
+        default:
+            return true;
+        }
+    }
+
+    /**
+     * @param seqNo the sequence number of a row of an accepted block
+     * @return true if the row is in the sample
+     */
+    public boolean acceptRow(long seqNo) {
+        switch (m_mode) {
+        case SEGMENT:
+            return seqNo - m_segmentFirst < m_count;
+        case FRACTION:
+            return (mix(seqNo * 0x9e3779b97f4a7c15L + m_seedHash) >>> 11) * 0x1.0p-53 < m_fraction;
+        default:
+            return true;
+        }
+    }
+
+    // The finalizer of SplitMix64, spreading consecutive sequence numbers over the longs
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * @return a label of the sample, used in the output nonces
+     */
+    public String getLabel() {
+        switch (m_mode) {
+        case BLOCKS:
+            return "sample_blocks" + m_count;
+        case SEGMENT:
+            return "sample_segment" + m_count;
+        default:
+            return "sample_fraction" + m_fraction + "_seed" + m_seed;
+        }
+    }
+
+    @Override
+    public String toString() {
+        switch (m_mode) {
+        case BLOCKS:
+            return "every " + m_count + " blocks";
+        case SEGMENT:
+            return "first " + m_count + " rows of each segment";
+        default:
+            return "fraction " + m_fraction + " of rows, seed " + m_seed;
+        }
+    }
+}
@@ -20,7 +20,10 @@ import static org.voltdb.utils.voltexport.VoltExport.LOG;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Properties;
+import java.util.TreeMap;
 import java.util.concurrent.Callable;
 
 import org.voltdb.catalog.Database;
@@ -48,17 +51,23 @@ public class SegmentsRunner implements Callable<Integer> {
     private final String m_outDir;
     private final String m_name;
     private final int m_partition;
+    private final String m_columns;
     private final ExportSequenceNumberTracker m_segments;
     private final Properties m_props;
     private final Database m_db;
 
-    public SegmentsRunner(int hostId, String inDir, String outDir, String name, int partition,
+    // The rows exported by range start, and the schemas exported, read by the stitch finalize step
+    private final Map<Long, Long> m_rowCounts = new TreeMap<>();
+    private final Map<Long, String> m_schemas = new HashMap<>();
+
+    public SegmentsRunner(int hostId, String inDir, String outDir, String name, int partition, String columns,
             ExportSequenceNumberTracker segments, Properties props, Database db) {
         m_hostId = hostId;
         m_inDir = inDir;
         m_outDir = outDir;
         m_name = name;
         m_partition = partition;
+        m_columns = columns;
         m_segments = segments;
         m_props = props;
         m_db = db;
@@ -78,6 +87,7 @@ public class SegmentsRunner implements Callable<Integer> {
             cfgTemplate.indir = m_inDir;
             cfgTemplate.stream_name = m_name;
             cfgTemplate.partition = m_partition;
+            cfgTemplate.columns = m_columns;
             cfgTemplate.onlyscan = false;
 
             for (Range<Long> range : m_segments.getRanges()) {
@@ -96,6 +106,8 @@ public class SegmentsRunner implements Callable<Integer> {
                 if (!res.success) {
                     errors += 1;
                 }
+                m_rowCounts.put(startSeq, runner.getRowCount());
+                m_schemas.putAll(runner.getSchemas());
             }
         }
         catch (Exception e) {
@@ -116,6 +128,20 @@ public class SegmentsRunner implements Callable<Integer> {
         return errors;
     }
 
+    /**
+     * @return the map of range start -> count of rows exported, once the call returned
+     */
+    public Map<Long, Long> getRowCounts() {
+        return m_rowCounts;
+    }
+
+    /**
+     * @return the map of generation -> column names and types of the exported rows, once the call returned
+     */
+    public Map<Long, String> getSchemas() {
+        return m_schemas;
+    }
+
     private ExportClientBase createExportClient(long startSeq, long endSeq)
             throws ClassNotFoundException, Exception {
         ExportClientBase client = new ExportToFileClient();
@@ -0,0 +1,224 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2022 VoltDB Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with VoltDB.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.voltdb.utils.voltexport;
+
+import java.util.Arrays;
+
+import org.voltcore.utils.Pair;
+import org.voltdb.export.ExportSequenceNumberTracker;
+
+import com.google_voltpatches.common.collect.Range;
+
+/**
+ * A set of sequence number ranges kept in 2 sorted {@code long} arrays, used instead of an
+ * {@link ExportSequenceNumberTracker} by the scans and the stitch planning.
+ * <p>
+ * The ranges are inclusive, disjoint and not adjacent: adding a range merges it with the ranges it
+ * overlaps or touches. Adding ranges in order, as the PBD scans do, only appends to the arrays or
+ * extends the last range, and the queries are binary searches.
+ */
+public class SeqNoRangeSet {
+    private int m_size = 0;
+    private long[] m_starts;
+    private long[] m_ends;
+
+    public SeqNoRangeSet() {
+        this(16);
+    }
+
+    public SeqNoRangeSet(int capacity) {
+        m_starts = new long[Math.max(capacity, 1)];
+        m_ends = new long[Math.max(capacity, 1)];
+    }
+
+    /**
+     * @return a range set holding the ranges of a tracker
+     */
+    public static SeqNoRangeSet of(ExportSequenceNumberTracker tracker) {
+        SeqNoRangeSet set = new SeqNoRangeSet(tracker.getRanges().size());
+        for (Range<Long> r : tracker.getRanges()) {
+            set.add(ExportSequenceNumberTracker.start(r), ExportSequenceNumberTracker.end(r));
+        }
+        return set;
+    }
+
+    /**
+     * @return a tracker holding the ranges of this set
+     */
+    public ExportSequenceNumberTracker toTracker() {
+        ExportSequenceNumberTracker tracker = new ExportSequenceNumberTracker();
+        for (int i = 0; i < m_size; i++) {
+            tracker.addRange(m_starts[i], m_ends[i]);
+        }
+        return tracker;
+    }
+
+    /**
+     * Add a range, merging it with the ranges it overlaps or touches
+     *
+     * @param start the first sequence number
+     * @param end   the last sequence number
+     */
+    public void add(long start, long end) {
+        assert start <= end : "Invalid range [" + start + ", " + end + "]";
+
+        // Fast paths: append, or extend the last range
+        if (m_size == 0 || start > m_ends[m_size - 1] + 1) {
+            ensureCapacity(m_size + 1);
+            m_starts[m_size] = start;
+            m_ends[m_size] = end;
+            m_size++;
+            return;
+        }
+        if (start >= m_starts[m_size - 1]) {
+            m_ends[m_size - 1] = Math.max(m_ends[m_size - 1], end);
+            return;
+        }
+
+        // The first range ending at or after start - 1, and the first range starting after end + 1
+        int first = ceilingIndex(start == Long.MIN_VALUE ? start : start - 1);
+        int last = first;
+        while (last < m_size && m_starts[last] <= (end == Long.MAX_VALUE ? end : end + 1)) {
+            last++;
+        }
+        if (first == last) {
+            // Insert before first
+            ensureCapacity(m_size + 1);
+            System.arraycopy(m_starts, first, m_starts, first + 1, m_size - first);
+            System.arraycopy(m_ends, first, m_ends, first + 1, m_size - first);
+            m_starts[first] = start;
+            m_ends[first] = end;
+            m_size++;
+            return;
+        }
+        // Merge the ranges [first, last) into first
+        m_starts[first] = Math.min(m_starts[first], start);
+        m_ends[first] = Math.max(m_ends[last - 1], end);
+        int removed = last - first - 1;
+        if (removed > 0) {
+            System.arraycopy(m_starts, last, m_starts, first + 1, m_size - last);
+            System.arraycopy(m_ends, last, m_ends, first + 1, m_size - last);
+            m_size -= removed;
+        }
+    }
+
+    public int size() {
+        return m_size;
+    }
+
+    public boolean isEmpty() {
+        return m_size == 0;
+    }
+
+    public long getStart(int idx) {
+        return m_starts[idx];
+    }
+
+    public long getEnd(int idx) {
+        return m_ends[idx];
+    }
+
+    /**
+     * @return the first sequence number, or -1 if empty
+     */
+    public long getFirstSeqNo() {
+        return m_size == 0 ? -1L : m_starts[0];
+    }
+
+    /**
+     * @return the last sequence number, or -1 if empty
+     */
+    public long getLastSeqNo() {
+        return m_size == 0 ? -1L : m_ends[m_size - 1];
+    }
+
+    /**
+     * @return the count of sequence numbers in the set
+     */
+    public long sizeInSequence() {
+        long count = 0;
+        for (int i = 0; i < m_size; i++) {
+            count += m_ends[i] - m_starts[i] + 1;
+        }
+        return count;
+    }
+
+    /**
+     * @return the index of the first range ending at or after seqNo, or size() if none
+     */
+    public int ceilingIndex(long seqNo) {
+        int idx = Arrays.binarySearch(m_ends, 0, m_size, seqNo);
+        return idx < 0 ? -idx - 1 : idx;
+    }
+
+    /**
+     * @return the index of the range containing seqNo, or -1 if none
+     */
+    public int indexOf(long seqNo) {
+        int idx = ceilingIndex(seqNo);
+        return idx < m_size && m_starts[idx] <= seqNo ? idx : -1;
+    }
+
+    public boolean contains(long seqNo) {
+        return indexOf(seqNo) >= 0;
+    }
+
+    /**
+     * Return the first gap covering or following a sequence number: the sequence numbers from seqNo
+     * to the first range if seqNo precedes it, or the first gap between 2 ranges ending at or after
+     * seqNo. The sequence numbers following the last range are not a gap.
+     *
+     * @param seqNo the sequence number
+     * @return the first and last sequence numbers of the gap, or null if none
+     */
+    public Pair<Long, Long> getFirstGap(long seqNo) {
+        int idx = ceilingIndex(seqNo);
+        if (idx >= m_size) {
+            return null;
+        }
+        if (seqNo < m_starts[idx]) {
+            // In the gap before range idx
+            long gapStart = idx == 0 ? seqNo : m_ends[idx - 1] + 1;
+            return new Pair<Long, Long>(gapStart, m_starts[idx] - 1);
+        }
+        // In range idx: the gap following it, if any
+        if (idx + 1 >= m_size) {
+            return null;
+        }
+        return new Pair<Long, Long>(m_ends[idx] + 1, m_starts[idx + 1] - 1);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > m_starts.length) {
+            int newCapacity = Math.max(capacity, m_starts.length * 2);
+            m_starts = Arrays.copyOf(m_starts, newCapacity);
+            m_ends = Arrays.copyOf(m_ends, newCapacity);
+        }
+    }
+
+    @Override
+    public String toString() {
+        if (m_size == 0) {
+            return "[]";
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < m_size; i++) {
+            sb.append(i == 0 ? "" : " ").append('[').append(m_starts[i]).append(", ").append(m_ends[i]).append(']');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,106 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2022 VoltDB Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with VoltDB.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.voltdb.utils.voltexport;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.voltcore.utils.CoreUtils;
+
+/**
+ * A single watchdog detecting {@link ExportRunner} instances stalled on a block.
+ * <p>
+ * Instead of scheduling a timeout per block, the watchdog periodically samples the heartbeat
+ * of each registered runner (the block id and the count of rows read, exported or filtered out).
+ * A runner processing a block whose heartbeat did not change for longer than the timeout is notified via
+ * {@link ExportRunner#onStall(int)}, which resets its decoder.
+ * <p>
+ * The sampling task only runs while runners are registered.
+ */
+public class StallWatchdog {
+    private static final ScheduledThreadPoolExecutor s_executor =
+            CoreUtils.getScheduledThreadPoolExecutor("Stall Watchdog", 1, CoreUtils.MEDIUM_STACK_SIZE);
+
+    private static final long MIN_PERIOD_MS = 100;
+    private static final long MAX_PERIOD_MS = 5_000;
+
+    private final long m_timeoutMs;
+    private final long m_periodMs;
+    private final Map<ExportRunner, Heartbeat> m_runners = new ConcurrentHashMap<>();
+    private ScheduledFuture<?> m_task;
+
+    private static class Heartbeat {
+        int m_blockId;
+        long m_rows;
+        long m_sinceMs;
+
+        Heartbeat(int blockId, long rows, long nowMs) {
+            update(blockId, rows, nowMs);
+        }
+
+        void update(int blockId, long rows, long nowMs) {
+            m_blockId = blockId;
+            m_rows = rows;
+            m_sinceMs = nowMs;
+        }
+    }
+
+    public StallWatchdog(long timeoutMs) {
+        m_timeoutMs = timeoutMs;
+        m_periodMs = Math.max(MIN_PERIOD_MS, Math.min(timeoutMs / 4, MAX_PERIOD_MS));
+    }
+
+    public synchronized void register(ExportRunner runner) {
+        m_runners.put(runner, new Heartbeat(runner.getBlockId(), runner.getProcessedCount(), now()));
+        if (m_task == null) {
+            m_task = s_executor.scheduleAtFixedRate(this::check, m_periodMs, m_periodMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public synchronized void unregister(ExportRunner runner) {
+        m_runners.remove(runner);
+        if (m_runners.isEmpty() && m_task != null) {
+            m_task.cancel(false);
+            m_task = null;
+        }
+    }
+
+    private void check() {
+        long now = now();
+        for (Map.Entry<ExportRunner, Heartbeat> e : m_runners.entrySet()) {
+            ExportRunner runner = e.getKey();
+            Heartbeat hb = e.getValue();
+
+            int blockId = runner.getBlockId();
+            long rows = runner.getProcessedCount();
+            if (!runner.isProcessingBlock() || blockId != hb.m_blockId || rows != hb.m_rows) {
+                hb.update(blockId, rows, now);
+            }
+            else if (now - hb.m_sinceMs > m_timeoutMs) {
+                runner.onStall(blockId);
+                hb.update(blockId, rows, now);
+            }
+        }
+    }
+
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+}
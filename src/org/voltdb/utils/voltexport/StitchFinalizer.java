@@ -0,0 +1,229 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2022 VoltDB Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with VoltDB.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.voltdb.utils.voltexport;
+
+import static org.voltdb.utils.voltexport.VoltExport.LOG;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.voltdb.export.ExportSequenceNumberTracker;
+
+import com.google_voltpatches.common.collect.Range;
+
+/**
+ * Concatenates the files of a stitch into one file per schema, in sequence number order.
+ * <p>
+ * The stitched files are named {@code STREAM_P_start_end-generation-...} by the {@link SegmentsRunner}
+ * nonces, and are ordered by the numeric values of start and generation. The files a range rolled into
+ * share these values, and are ordered by name: their names end with the roll time, in the sortable
+ * default {@code dateformat} of the file target. Before concatenating, the ranges of the master trackers
+ * must be contiguous, and the count of rows exported for each range must match its size. This exact
+ * check holds for rolled files: the count is that of the rows processed by the runner of the range,
+ * whatever the files they were written to, and a master range has no gaps, so each of its sequence
+ * numbers is one row exported once. A new output file is started when the schema of the rows changes, since the rows of
+ * the file target have no header line describing their columns.
+ * <p>
+ * The files are concatenated with {@link FileChannel#transferTo}, so that the rows are not copied
+ * through the heap. The output file is written under a temporary name, forced to disk and renamed,
+ * and the stitched files are then deleted.
+ */
+public class StitchFinalizer {
+    private final String m_outdir;
+    private final String m_name;
+    private final int m_partition;
+    private final Map<Integer, ExportSequenceNumberTracker> m_masters;
+    private final Map<Long, Long> m_rowCounts;
+    private final Map<Long, String> m_schemas;
+
+    // A stitched file
+    private static class StitchedFile {
+        final Path m_path;
+        final long m_start;
+        final long m_end;
+        final long m_generation;
+        final String m_extension;
+
+        StitchedFile(Path path, long start, long end, long generation, String extension) {
+            m_path = path;
+            m_start = start;
+            m_end = end;
+            m_generation = generation;
+            m_extension = extension;
+        }
+    }
+
+    /**
+     * @param masters   the map of hostId -> master trackers of the stitch
+     * @param rowCounts the map of range start -> count of rows exported, for all the hosts
+     * @param schemas   the map of generation -> column names and types of the exported rows
+     */
+    public StitchFinalizer(String outdir, String name, int partition, Map<Integer, ExportSequenceNumberTracker> masters,
+            Map<Long, Long> rowCounts, Map<Long, String> schemas) {
+        m_outdir = outdir;
+        m_name = name;
+        m_partition = partition;
+        m_masters = masters;
+        m_rowCounts = rowCounts;
+        m_schemas = schemas;
+    }
+
+    /**
+     * Check and concatenate the stitched files
+     *
+     * @return true if successful, false if the checks failed or the concatenation failed: the stitched
+     *         files are then left unchanged
+     */
+    public boolean run() {
+        try {
+            if (!checkRows()) {
+                return false;
+            }
+            List<StitchedFile> files = listFiles();
+            if (files == null) {
+                return false;
+            }
+            if (files.isEmpty()) {
+                LOG.infoFmt("No stitched files of %s:%d to finalize", m_name, m_partition);
+                return true;
+            }
+
+            // Split the files at the schema changes
+            List<List<StitchedFile>> parts = new ArrayList<>();
+            String lastSchema = null;
+            for (StitchedFile f : files) {
+                String schema = m_schemas.getOrDefault(f.m_generation, "generation " + f.m_generation);
+                if (!schema.equals(lastSchema)) {
+                    parts.add(new ArrayList<>());
+                    lastSchema = schema;
+                }
+                parts.get(parts.size() - 1).add(f);
+            }
+
+            long first = files.get(0).m_start;
+            long last = files.get(files.size() - 1).m_end;
+            List<Path> outputs = new ArrayList<>();
+            for (int i = 0; i < parts.size(); i++) {
+                String suffix = parts.size() == 1 ? "" : "-part" + (i + 1);
+                Path output = Paths.get(m_outdir, String.format("%s_%d_%d_%d%s.%s",
+                        m_name, m_partition, first, last, suffix, files.get(0).m_extension));
+                concatenate(parts.get(i), output);
+                outputs.add(output);
+            }
+
+            for (StitchedFile f : files) {
+                Files.delete(f.m_path);
+            }
+            for (Path output : outputs) {
+                LOG.infoFmt("Finalized %s:%d into %s", m_name, m_partition, output);
+            }
+            return true;
+        }
+        catch (Exception e) {
+            LOG.errorFmt("Failed finalizing %s:%d, the stitched files are left in %s", m_name, m_partition, m_outdir);
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    // Check that the master ranges are contiguous and that all their rows were exported
+    private boolean checkRows() {
+        SeqNoRangeSet ranges = new SeqNoRangeSet();
+        boolean success = true;
+        for (ExportSequenceNumberTracker trk : m_masters.values()) {
+            for (Range<Long> r : trk.getRanges()) {
+                long start = ExportSequenceNumberTracker.start(r);
+                long end = ExportSequenceNumberTracker.end(r);
+                ranges.add(start, end);
+                Long rows = m_rowCounts.get(start);
+                if (rows == null || rows.longValue() != end - start + 1) {
+                    LOG.errorFmt("Range [%d, %d] of %s:%d exported %d rows, expected %d",
+                            start, end, m_name, m_partition, rows == null ? 0 : rows.longValue(), end - start + 1);
+                    success = false;
+                }
+            }
+        }
+        for (int i = 1; i < ranges.size(); i++) {
+            LOG.errorFmt("Rows [%d, %d] of %s:%d are missing from all the hosts",
+                    ranges.getEnd(i - 1) + 1, ranges.getStart(i) - 1, m_name, m_partition);
+            success = false;
+        }
+        if (!success) {
+            LOG.errorFmt("Not finalizing %s:%d, the stitched files are left in %s", m_name, m_partition, m_outdir);
+        }
+        return success;
+    }
+
+    // List the stitched files in sequence order, or return null if a file doesn't match the master ranges
+    private List<StitchedFile> listFiles() throws IOException {
+        Pattern pattern = Pattern.compile(Pattern.quote(m_name + "_" + m_partition + "_")
+                + "(\\d+)_(\\d+)-(\\d+)-.*\\.(csv|tsv)");
+        List<StitchedFile> files = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(Paths.get(m_outdir))) {
+            for (Path path : ds) {
+                Matcher m = pattern.matcher(path.getFileName().toString());
+                if (!m.matches() || !Files.isRegularFile(path)) {
+                    continue;
+                }
+                StitchedFile f = new StitchedFile(path, Long.parseLong(m.group(1)), Long.parseLong(m.group(2)),
+                        Long.parseLong(m.group(3)), m.group(4));
+                if (!m_rowCounts.containsKey(f.m_start)) {
+                    LOG.errorFmt("File %s is not a range of this stitch, not finalizing %s:%d",
+                            path, m_name, m_partition);
+                    return null;
+                }
+                files.add(f);
+            }
+        }
+        files.sort(Comparator.comparingLong((StitchedFile f) -> f.m_start).thenComparingLong(f -> f.m_generation)
+                .thenComparing(f -> f.m_path.getFileName().toString()));
+        return files;
+    }
+
+    private static void concatenate(List<StitchedFile> files, Path output) throws IOException {
+        Path tmp = output.resolveSibling(output.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            for (StitchedFile f : files) {
+                try (FileChannel in = FileChannel.open(f.m_path, StandardOpenOption.READ)) {
+                    long size = in.size();
+                    long position = 0;
+                    while (position < size) {
+                        position += in.transferTo(position, size - position, out);
+                    }
+                }
+            }
+            out.force(true);
+        }
+        catch (IOException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        Files.move(tmp, output, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
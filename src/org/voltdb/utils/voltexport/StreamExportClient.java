@@ -0,0 +1,241 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2022 VoltDB Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with VoltDB.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.voltdb.utils.voltexport;
+
+import static org.voltdb.utils.voltexport.VoltExport.LOG;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.voltdb.export.AdvertisedDataSource;
+import org.voltdb.exportclient.ExportClientBase;
+import org.voltdb.exportclient.ExportDecoderBase;
+import org.voltdb.exportclient.ExportRow;
+
+/**
+ * An export client streaming the rows as CSV to the standard output, or to a file or named pipe.
+ * <p>
+ * The clients of all the streams/partitions exported to the same path share one output, with a
+ * large write buffer. Each decoder encodes the rows of a block in its own buffer, and writes them
+ * as one chunk when the block completes, so the rows of different streams/partitions are never
+ * interleaved within a chunk. With framing, each chunk is preceded by a header line:
+ * <pre>
+ * #VOLTEXPORT STREAM=name PARTITION=p ROWS=n BYTES=m
+ * </pre>
+ * followed by exactly {@code m} bytes of CSV lines.
+ * <p>
+ * Properties:
+ * <ul>
+ * <li>{@code path}: the output file or named pipe, or {@code -} for the standard output (default)</li>
+ * <li>{@code buffersize}: the size in bytes of the output buffer (default 1048576)</li>
+ * <li>{@code framing}: precede the chunks with a header line (default true)</li>
+ * <li>{@code skipinternals}: do not write the VoltDB metadata columns (default false)</li>
+ * </ul>
+ */
+public class StreamExportClient extends ExportClientBase implements Flushable {
+    public static final String STDOUT = "-";
+
+    // The outputs shared by the clients, by path
+    private static final Map<String, Output> s_outputs = new HashMap<>();
+
+    private Output m_output;
+    private boolean m_framing;
+    private boolean m_skipInternals;
+
+    /**
+     * An output shared by the clients using the same path, closed when the last client shuts down
+     */
+    private static class Output {
+        final String m_path;
+        final OutputStream m_out;
+        int m_refs;
+        IOException m_failure;
+
+        Output(String path, int bufferSize) throws IOException {
+            m_path = path;
+            OutputStream os = STDOUT.equals(path) ? new FileOutputStream(FileDescriptor.out) : new FileOutputStream(path);
+            m_out = new BufferedOutputStream(os, bufferSize);
+        }
+
+        synchronized void write(byte[] header, ByteArrayOutputStream chunk) throws IOException {
+            if (m_failure != null) {
+                throw new IOException("Output " + m_path + " failed previously", m_failure);
+            }
+            try {
+                if (header != null) {
+                    m_out.write(header);
+                }
+                chunk.writeTo(m_out);
+            }
+            catch (IOException e) {
+                m_failure = e;
+                throw e;
+            }
+        }
+
+        synchronized void flush() throws IOException {
+            if (m_failure != null) {
+                throw new IOException("Output " + m_path + " failed previously", m_failure);
+            }
+            try {
+                m_out.flush();
+            }
+            catch (IOException e) {
+                m_failure = e;
+                throw e;
+            }
+        }
+
+        // Close the output, flushing the rows buffered
+        synchronized void close() {
+            try {
+                m_out.close();
+            }
+            catch (IOException e) {
+                LOG.errorFmt("Failed closing output %s", m_path);
+                e.printStackTrace();
+                if (m_failure == null) {
+                    m_failure = e;
+                }
+            }
+        }
+
+        synchronized IOException getFailure() {
+            return m_failure;
+        }
+    }
+
+    @Override
+    public void configure(Properties config) throws Exception {
+        String path = config.getProperty("path", STDOUT).trim();
+        int bufferSize = Integer.parseInt(config.getProperty("buffersize", "1048576").trim());
+        m_framing = Boolean.parseBoolean(config.getProperty("framing", "true").trim());
+        m_skipInternals = Boolean.parseBoolean(config.getProperty("skipinternals", "false").trim());
+
+        synchronized (s_outputs) {
+            Output output = s_outputs.get(path);
+            if (output == null) {
+                output = new Output(path, bufferSize);
+                s_outputs.put(path, output);
+            }
+            output.m_refs++;
+            m_output = output;
+        }
+    }
+
+    /**
+     * Flush the rows buffered in the shared output, e.g. before the follower advances the watermarks
+     */
+    @Override
+    public void flush() throws IOException {
+        if (m_output != null) {
+            m_output.flush();
+        }
+    }
+
+    /**
+     * Release the output, closing it if last: a failure writing or closing the shared output fails
+     * the shutdown, since the rows buffered for the client may be lost
+     */
+    @Override
+    public void shutdown() {
+        if (m_output == null) {
+            return;
+        }
+        Output output = m_output;
+        m_output = null;
+        synchronized (s_outputs) {
+            if (--output.m_refs == 0) {
+                s_outputs.remove(output.m_path);
+                output.close();
+            }
+        }
+        IOException failure = output.getFailure();
+        if (failure != null) {
+            throw new RuntimeException("Failed streaming to " + output.m_path, failure);
+        }
+    }
+
+    @Override
+    public ExportDecoderBase constructExportDecoder(AdvertisedDataSource source) {
+        return new StreamDecoder(source);
+    }
+
+    class StreamDecoder extends ExportDecoderBase {
+        private final String m_name;
+        private final int m_partition;
+        private final CsvRowEncoder m_encoder = new CsvRowEncoder(m_skipInternals);
+        private final ByteArrayOutputStream m_chunk = new ByteArrayOutputStream(64 * 1024);
+        private long m_rows;
+
+        StreamDecoder(AdvertisedDataSource source) {
+            super(source);
+            m_name = source.tableName;
+            m_partition = source.partitionId;
+        }
+
+        @Override
+        public void onBlockStart(ExportRow row) throws RestartBlockException {
+            // A restarted block is written again from its start
+            m_chunk.reset();
+            m_rows = 0;
+        }
+
+        @Override
+        public boolean processRow(ExportRow row) throws RestartBlockException {
+            byte[] line = m_encoder.encode(row);
+            m_chunk.write(line, 0, line.length);
+            m_rows++;
+            return true;
+        }
+
+        @Override
+        public void onBlockCompletion(ExportRow row) throws RestartBlockException {
+            if (m_rows == 0) {
+                return;
+            }
+            byte[] header = null;
+            if (m_framing) {
+                header = String.format("#VOLTEXPORT STREAM=%s PARTITION=%d ROWS=%d BYTES=%d\n",
+                        m_name, m_partition, m_rows, m_chunk.size()).getBytes(StandardCharsets.UTF_8);
+            }
+            try {
+                m_output.write(header, m_chunk);
+            }
+            catch (IOException e) {
+                throw new RuntimeException("Failed streaming " + m_name + ":" + m_partition, e);
+            }
+            finally {
+                m_chunk.reset();
+                m_rows = 0;
+            }
+        }
+
+        @Override
+        public void sourceNoLongerAdvertised(AdvertisedDataSource source) {
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2022 VoltDB Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with VoltDB.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.voltdb.utils.voltexport;
+
+import static org.voltdb.utils.voltexport.VoltExport.LOG;
+
+/**
+ * Tunes the count of export runners processing blocks at the same time, for {@code --threads=auto}.
+ * <p>
+ * The runners are executed by a pool of the maximum count of threads, and the tuner limits how many of
+ * them process a block at the same time with the {@link ConcurrencyGate}. Starting from 2 active runners,
+ * it measures the bytes of the blocks polled through the gate per second over an interval (the scans for
+ * gaps and the replica verifications are not gated, and not counted), and doubles the active runners as long as the
+ * throughput improves by more than 5%. It then bisects between the best count and the first count that
+ * did not improve, and also tries one runner less than the best count, before settling on the best count.
+ * The chosen count is logged, to be passed as {@code --threads} to later runs on the same host.
+ */
+public class ThreadTuner implements Runnable {
+    // The measurement interval of each count of active runners
+    private static final long AUTOTUNE_INTERVAL_MS = Integer.getInteger("AUTOTUNE_INTERVAL_MS", 10_000);
+    private static final double MIN_GAIN = 1.05;
+    private static final int MB = 1024 * 1024;
+
+    private final int m_max;
+    private final Thread m_thread;
+    private volatile boolean m_stop = false;
+
+    private int m_best;
+    private double m_bestRate = -1;
+    private double m_bestRows;
+
+    private ThreadTuner(int max) {
+        m_max = max;
+        m_thread = new Thread(this, "VoltExport thread tuner");
+        m_thread.setDaemon(true);
+    }
+
+    /**
+     * Start tuning the active runners
+     *
+     * @param max   the maximum count of active runners
+     * @return the tuner, to stop at the end of the run
+     */
+    public static ThreadTuner start(int max) {
+        ThreadTuner tuner = new ThreadTuner(max);
+        tuner.m_best = Math.min(2, max);
+        ConcurrencyGate.GLOBAL.setLimit(tuner.m_best);
+        LOG.infoFmt("Autotuning the active export runners between 1 and %d, every %d ms", max, AUTOTUNE_INTERVAL_MS);
+        tuner.m_thread.start();
+        return tuner;
+    }
+
+    /**
+     * Stop tuning, remove the limit of active runners, and log the best count found
+     */
+    public void stop() {
+        m_stop = true;
+        m_thread.interrupt();
+        try {
+            m_thread.join();
+        }
+        catch (InterruptedException ignore) {}
+        ConcurrencyGate.GLOBAL.setLimit(0);
+        if (m_bestRate >= 0) {
+            LOG.infoFmt("Autotune: best throughput with %d active runners (%.1f MB/s, %.0f rows/s), "
+                    + "use --threads=%d for later runs", m_best, m_bestRate / MB, m_bestRows, m_best);
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            // Grow: double the active runners while the throughput improves
+            measure(m_best);
+            int tried = m_best;
+            while (m_best < m_max) {
+                tried = Math.min(m_max, m_best * 2);
+                if (!measure(tried)) {
+                    break;
+                }
+            }
+
+            // Bisect between the best count and the first count that did not improve
+            int hi = tried;
+            while (hi - m_best > 1) {
+                int mid = (m_best + hi) / 2;
+                if (!measure(mid)) {
+                    hi = mid;
+                }
+            }
+
+            // One runner less may do as well with less contention
+            if (m_best > 1) {
+                int best = m_best;
+                double bestRate = m_bestRate;
+                setLimit(best - 1);
+                double[] rates = sample();
+                if (rates[0] * MIN_GAIN >= bestRate) {
+                    m_best = best - 1;
+                    m_bestRate = rates[0];
+                    m_bestRows = rates[1];
+                }
+            }
+
+            setLimit(m_best);
+            LOG.infoFmt("Autotune: settled on %d active runners (%.1f MB/s, %.0f rows/s)",
+                    m_best, m_bestRate / MB, m_bestRows);
+        }
+        catch (InterruptedException e) {
+            // Stopped at the end of the run
+            if (!m_stop) {
+                LOG.warn("Autotune interrupted");
+            }
+        }
+    }
+
+    // Measure a count of active runners, return true if it improved on the best count and became the best
+    private boolean measure(int count) throws InterruptedException {
+        setLimit(count);
+        double[] rates = sample();
+        if (m_bestRate < 0 || rates[0] > m_bestRate * MIN_GAIN) {
+            m_best = count;
+            m_bestRate = rates[0];
+            m_bestRows = rates[1];
+            return true;
+        }
+        return false;
+    }
+
+    private void setLimit(int count) {
+        ConcurrencyGate.GLOBAL.setLimit(count);
+        LOG.infoFmt("Autotune: trying %d active runners", count);
+    }
+
+    // Return the bytes polled through the gate and the rows exported per second over an interval
+    private double[] sample() throws InterruptedException {
+        long bytes = ConcurrencyGate.GLOBAL.getPolledBytes();
+        long rows = IoThrottle.GLOBAL.getExportedRows();
+        long start = System.nanoTime();
+        Thread.sleep(AUTOTUNE_INTERVAL_MS);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        double[] rates = new double[] {
+                (ConcurrencyGate.GLOBAL.getPolledBytes() - bytes) / seconds,
+                (IoThrottle.GLOBAL.getExportedRows() - rows) / seconds };
+        LOG.infoFmt("Autotune: %d active runners: %.1f MB/s, %.0f rows/s",
+                ConcurrencyGate.GLOBAL.getLimit(), rates[0] / MB, rates[1]);
+        return rates;
+    }
+}
@@ -18,6 +18,7 @@ package org.voltdb.utils.voltexport;
 
 import static org.voltdb.utils.voltexport.VoltExport.LOG;
 
+import java.util.Arrays;
 import java.util.Map;
 import java.util.TreeMap;
 
@@ -44,6 +45,9 @@ public class TrackerCoordinator {
     // The map of hostId -> original trackers
     private final ImmutableMap<Integer, ExportSequenceNumberTracker> m_trackers;
 
+    // The map of hostId -> ranges of the original trackers, queried by the planning
+    private final ImmutableMap<Integer, SeqNoRangeSet> m_ranges;
+
     private static final int NO_HOST_ID =  -1;
 
     public TrackerCoordinator(boolean debug, Map<Integer, ExportSequenceNumberTracker> trackers) {
@@ -52,6 +56,10 @@ public class TrackerCoordinator {
         ImmutableMap.Builder<Integer, ExportSequenceNumberTracker> b =
                 new ImmutableMap.Builder<Integer, ExportSequenceNumberTracker>().putAll(trackers);
         m_trackers = b.build();
+
+        ImmutableMap.Builder<Integer, SeqNoRangeSet> rb = new ImmutableMap.Builder<Integer, SeqNoRangeSet>();
+        m_trackers.forEach((k, v) -> rb.put(k, SeqNoRangeSet.of(v)));
+        m_ranges = rb.build();
     }
 
     /**
@@ -84,34 +92,191 @@ public class TrackerCoordinator {
             }
 
             // Get the master tracker for this host
-            Pair<Long, ExportSequenceNumberTracker> trk = new Pair<>(0L, new ExportSequenceNumberTracker());
-            while(trk.getFirst() != ExportSequenceNumberTracker.INFINITE_SEQNO) {
-                trk = buildMasterTracker(leaderId, hostId, trk.getFirst(), trk.getSecond());
+            SeqNoRangeSet master = new SeqNoRangeSet();
+            long safePoint = 0L;
+            while(safePoint != ExportSequenceNumberTracker.INFINITE_SEQNO) {
+                safePoint = buildMasterTracker(leaderId, hostId, safePoint, master);
             }
-            masters.put(hostId,  trk.getSecond());
+            masters.put(hostId, master.toTracker());
         }
         return masters;
     }
 
+    /**
+     * Return a map of hostId -> master trackers balancing the rows exported by each host
+     * <p>
+     * Unlike {@link #getMasterTrackers()}, which makes the lowest hostId the master of all its rows,
+     * the sequence numbers held by several hosts are split between these hosts, so that each host
+     * exports about the same count of rows, while each sequence number is still exported once. The
+     * sequence numbers held by one host only are exported by that host.
+     * <p>
+     * The sequence numbers are cut in pieces at the boundaries of the ranges and of the blocks of all
+     * the hosts, and the pieces are assigned in order: a host keeps the pieces it holds until it reaches
+     * its share of the rows, so that each host exports a few long ranges, and the hand-overs happen at
+     * block boundaries.
+     *
+     * @param blocks    the map of hostId -> blocks scanned in its PBD, or null to only cut the sequence
+     *                  numbers at the boundaries of the ranges
+     * @return the map of hostId -> master trackers
+     */
+    public Map<Integer, ExportSequenceNumberTracker> getBalancedTrackers(Map<Integer, BlockIndex> blocks) {
+        int hostCount = m_ranges.size();
+        int[] hostIds = new int[hostCount];
+        SeqNoRangeSet[] ranges = new SeqNoRangeSet[hostCount];
+
+        // Collect the ranges of each host, and the cut points of all hosts
+        long[] cuts = new long[1024];
+        int cutCount = 0;
+        int h = 0;
+        for (Map.Entry<Integer, SeqNoRangeSet> e : m_ranges.entrySet()) {
+            hostIds[h] = e.getKey().intValue();
+            ranges[h] = e.getValue();
+            BlockIndex index = blocks == null ? null : blocks.get(e.getKey());
+            int added = 2 * ranges[h].size() + (index == null ? 0 : 2 * index.size());
+            if (cutCount + added > cuts.length) {
+                cuts = Arrays.copyOf(cuts, Math.max(2 * cuts.length, cutCount + added));
+            }
+            for (int r = 0; r < ranges[h].size(); r++) {
+                cuts[cutCount++] = ranges[h].getStart(r);
+                cuts[cutCount++] = ranges[h].getEnd(r) + 1;
+            }
+            if (index != null) {
+                for (int i = 0; i < index.size(); i++) {
+                    cuts[cutCount++] = index.getStart(i);
+                    cuts[cutCount++] = index.getEnd(i) + 1;
+                }
+            }
+            h++;
+        }
+        Arrays.sort(cuts, 0, cutCount);
+        int n = 0;
+        for (int i = 0; i < cutCount; i++) {
+            if (n == 0 || cuts[i] != cuts[n - 1]) {
+                cuts[n++] = cuts[i];
+            }
+        }
+        cutCount = n;
+
+        // First pass: count the rows, and the rows held by one host only
+        long total = 0;
+        long[] forced = new long[hostCount];
+        int[] ptrs = new int[hostCount];
+        boolean[] holds = new boolean[hostCount];
+        for (int i = 0; i + 1 < cutCount; i++) {
+            int holders = getHolders(cuts[i], ranges, ptrs, holds);
+            long rows = cuts[i + 1] - cuts[i];
+            if (holders > 0) {
+                total += rows;
+            }
+            if (holders == 1) {
+                forced[indexOf(holds)] += rows;
+            }
+        }
+        long share = (total + hostCount - 1) / hostCount;
+
+        // Second pass: assign the pieces in order
+        SeqNoRangeSet[] masters = new SeqNoRangeSet[hostCount];
+        for (int j = 0; j < hostCount; j++) {
+            masters[j] = new SeqNoRangeSet();
+        }
+        long[] load = new long[hostCount];
+        Arrays.fill(ptrs, 0);
+        int current = -1;
+        long runStart = 0, runEnd = -1;
+        for (int i = 0; i + 1 < cutCount; i++) {
+            int holders = getHolders(cuts[i], ranges, ptrs, holds);
+            long rows = cuts[i + 1] - cuts[i];
+            int chosen = -1;
+            if (holders == 1) {
+                chosen = indexOf(holds);
+                forced[chosen] -= rows;
+            }
+            else if (holders > 1) {
+                if (current >= 0 && holds[current] && load[current] + forced[current] < share) {
+                    chosen = current;
+                }
+                else {
+                    // The holder with the most room left for its share
+                    for (int j = 0; j < hostCount; j++) {
+                        if (holds[j] && (chosen < 0 || load[j] + forced[j] < load[chosen] + forced[chosen])) {
+                            chosen = j;
+                        }
+                    }
+                }
+            }
+
+            if (chosen != current || cuts[i] != runEnd + 1) {
+                if (current >= 0) {
+                    masters[current].add(runStart, runEnd);
+                }
+                runStart = cuts[i];
+            }
+            current = chosen;
+            runEnd = cuts[i + 1] - 1;
+            if (chosen >= 0) {
+                load[chosen] += rows;
+            }
+        }
+        if (current >= 0) {
+            masters[current].add(runStart, runEnd);
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (int j = 0; j < hostCount; j++) {
+            sb.append(j == 0 ? "" : ", ").append("host ").append(hostIds[j]).append(": ").append(load[j]);
+        }
+        LOG.infoFmt("Balanced %d rows over %d hosts: %s rows", total, hostCount, sb);
+
+        Map<Integer, ExportSequenceNumberTracker> trackers = new TreeMap<>();
+        for (int j = 0; j < hostCount; j++) {
+            if (!masters[j].isEmpty()) {
+                trackers.put(hostIds[j], masters[j].toTracker());
+            }
+        }
+        return trackers;
+    }
+
+    // Set the hosts holding a sequence number, advancing their range pointers, return the count of holders
+    private static int getHolders(long seqNo, SeqNoRangeSet[] ranges, int[] ptrs, boolean[] holds) {
+        int holders = 0;
+        for (int j = 0; j < ranges.length; j++) {
+            while (ptrs[j] < ranges[j].size() && ranges[j].getEnd(ptrs[j]) < seqNo) {
+                ptrs[j]++;
+            }
+            holds[j] = ptrs[j] < ranges[j].size() && ranges[j].getStart(ptrs[j]) <= seqNo;
+            if (holds[j]) {
+                holders++;
+            }
+        }
+        return holders;
+    }
+
+    private static int indexOf(boolean[] holds) {
+        for (int j = 0; j < holds.length; j++) {
+            if (holds[j]) {
+                return j;
+            }
+        }
+        return -1;
+    }
+
     /**
      * Build a 'master' tracker for a host, that fills gaps of a leader host
      * <p>
-     * The tracker is built recursively until we find no more segments to add to the master tracker.
+     * The tracker is built by calling this method until we find no more segments to add to the master tracker.
      *
      * @param leaderId      the hostId of the leader
      * @param myId          the hostId of the host we're building the tracker for
      * @param safePoint     the current safe point being evaluated
-     * @param masterTracker the tracker being built, recursively
-     * @return  <safePoint, masterTracker>,
-     *          with safePoint == next safePpoint to evaluate,
+     * @param masterTracker the ranges of the tracker being built
+     * @return  the next safePoint to evaluate,
      *          or {@link ExportSequenceNumberTracker.INFINITE_SEQNO} indicating we are done.
      */
-    private Pair<Long, ExportSequenceNumberTracker> buildMasterTracker(int leaderId, int myId, long safePoint,
-            ExportSequenceNumberTracker masterTracker) {
+    private long buildMasterTracker(int leaderId, int myId, long safePoint, SeqNoRangeSet masterTracker) {
 
         assert leaderId != myId : "Don't build master tracker for leader";
         long exportSeqNo = safePoint + 1;
-        ExportSequenceNumberTracker leaderTracker = m_trackers.get(leaderId);
+        SeqNoRangeSet leaderTracker = m_ranges.get(leaderId);
         assert leaderTracker != null : "No leader tracker";
 
         // Get the first gap on the leader covering or following this sequence number
@@ -127,7 +292,7 @@ public class TrackerCoordinator {
             }
 
             if (m_debug) LOG.debugFmt("Leader %d is master until safe point %d", leaderId, safePoint);
-            return new Pair<Long, ExportSequenceNumberTracker>(safePoint, masterTracker);
+            return safePoint;
         }
 
         // Find the lowest hostId that can fill the gap: run this exact sequence for every 'myId',
@@ -140,12 +305,12 @@ public class TrackerCoordinator {
         long leaderNextSafePoint = gap.getSecond();
         long  replicaSafePoint = 0L;
 
-        for (Integer hostId : m_trackers.keySet()) {
+        for (Integer hostId : m_ranges.keySet()) {
 
             if (leaderId == hostId.intValue()) {
                 continue;
             }
-            Pair<Long, Long> rgap = m_trackers.get(hostId).getFirstGap(exportSeqNo);
+            Pair<Long, Long> rgap = m_ranges.get(hostId).getFirstGap(exportSeqNo);
             if (m_debug) LOG.debugFmt("Evaluating Replica %d,  gap %s, for seqNo %d" + exportSeqNo, hostId, rgap, exportSeqNo);
             if (rgap != null) {
                 assert (exportSeqNo <= rgap.getSecond());
@@ -181,22 +346,18 @@ public class TrackerCoordinator {
                     replicaId, localHost, gap.getFirst(), gap.getSecond(), safePoint);
 
             if (isMasterMe) {
-                masterTracker.addRange(exportSeqNo, safePoint);
+                masterTracker.add(exportSeqNo, safePoint);
             }
-            return new Pair<Long, ExportSequenceNumberTracker>(safePoint, masterTracker);
+            return safePoint;
         }
 
         // If no replicas were found, the leader is Export Master and the gap will not be filled.
         // Continue building tracker past the gap, if we're not at the infinite seqNo.
         safePoint = replicaSafePoint != 0 ? Math.min(leaderNextSafePoint, replicaSafePoint) : leaderNextSafePoint;
-        if (safePoint == ExportSequenceNumberTracker.INFINITE_SEQNO) {
-            // Done
-            return new Pair<Long, ExportSequenceNumberTracker>(safePoint, masterTracker);
-        }
-
-        if (m_debug) LOG.debugFmt("Leader %d is master for %d, blocked at safe point %d; resume evaluation at %d",
+        if (m_debug && safePoint != ExportSequenceNumberTracker.INFINITE_SEQNO) {
+            LOG.debugFmt("Leader %d is master for %d, blocked at safe point %d; resume evaluation at %d",
                 leaderId, exportSeqNo, gap.getFirst(), safePoint);
-
-        return buildMasterTracker(leaderId, myId, safePoint, masterTracker);
+        }
+        return safePoint;
     }
 }
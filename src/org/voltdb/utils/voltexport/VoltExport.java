@@ -18,23 +18,35 @@ package org.voltdb.utils.voltexport;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 import java.util.function.Supplier;
 
 import org.apache.commons.lang3.StringUtils;
 import org.voltcore.logging.VoltLogger;
 import org.voltcore.utils.DBBPool.BBContainer;
-import org.voltcore.utils.Pair;
 import org.voltdb.CLIConfig;
 import org.voltdb.CatalogContext;
 import org.voltdb.ClientInterface;
@@ -51,10 +63,8 @@ import org.voltdb.export.Generation;
 import org.voltdb.export.StreamControlOperation;
 import org.voltdb.exportclient.ExportClientBase;
 import org.voltdb.exportclient.ExportToFileClient;
-import org.voltdb.exportclient.JDBCExportClient;
-import org.voltdb.utils.CatalogUtil;
-import org.voltdb.utils.InMemoryJarfile;
 import org.voltdb.utils.StringInputStream;
+import org.voltdb.utils.voltexport.ExportFileVisitor.StreamPartition;
 
 public class VoltExport {
     public static final MyLogger LOG = new MyLogger();
@@ -65,18 +75,21 @@ public class VoltExport {
      */
     public static class VoltExportConfig extends CLIConfig implements Cloneable {
 
-        @Option(desc = "input directory, either export_overflow, or location of saved export files")
+        @Option(desc = "input directory, either export_overflow, or location of saved export files, or a comma-separated list of them")
         String indir = "";
 
         @Option(desc = "output directory for file export (may be omitted if onlyscan = true or exportall is false")
         String outdir = "";
 
-        @Option(desc = "catalog file - must be provided")
+        @Option(desc = "catalog file - optional, the schemas persisted in the PBD files are used if omitted")
         String catalog = "";
 
         @Option(desc = "Properties file or a string which can be parsed as a properties file, for export target configuration")
         String properties = "";
 
+        @Option(desc = "export target, FILE, JDBC, STREAM or BUCKET (default FILE)")
+        String target = "FILE";
+
         @Option(desc = "export all streams/partitions in indir (default false)")
         boolean exportall = false;
 
@@ -89,27 +102,226 @@ public class VoltExport {
         @Option(desc = "Pair of sequence numbers specifying the range of rows to export (default 1,Long.MAX_VALUE), inclusive range")
         String range = "";
 
+        @Option(desc = "export the rows at or after this time, e.g. '2022-10-20 02:10:00' (default none)")
+        String from_time = "";
+
+        @Option(desc = "export the rows at or before this time, e.g. '2022-10-20 02:40:00' (default none)")
+        String to_time = "";
+
+        @Option(desc = "filter on column values, e.g. TENANT=42,REGION='EU' (default none = export all the rows)")
+        String where = "";
+
+        @Option(desc = "comma-separated list of the columns to export (default none = all the columns)")
+        String columns = "";
+
+        @Option(desc = "only export a sample of the rows: blocks:N (every Nth block), segment:N (first N rows of each segment) or fraction:F[:SEED] (default none)")
+        String sample = "";
+
+        @Option(desc = "only print aggregates of the rows, e.g. COUNT(*),MIN(EVENT_TS),SUM(AMOUNT), do not export (default none)")
+        String query = "";
+
+        @Option(desc = "comma-separated list of 1 or 2 columns grouping the aggregates of the query (default none)")
+        String group_by = "";
+
+        @Option(desc = "the file to print the query results or the rows looked up to, instead of the standard output (default none)")
+        String results_file = "";
+
+        @Option(desc = "the key column of the key index, built with onlyscan and used to look up a key (default none)")
+        String index_key = "";
+
+        @Option(desc = "only print the rows with this value of the index_key column, do not export (default none)")
+        String key = "";
+
+        @Option(desc = "the directory of the key indexes (default <outdir>/.keyindex)")
+        String index_dir = "";
+
         @Option(desc = "only scan for gaps, default false (range is ignored)")
         boolean onlyscan = false;
 
-        @Option(desc = "the count of exporting threads to use (default 20)")
-        int threads = 20;
+        @Option(desc = "only estimate the rows, output size and time of the export, do not export (default false)")
+        boolean dryrun = false;
+
+        @Option(desc = "only export the rows above the watermarks of the previous incremental runs, and advance them (default false)")
+        boolean incremental = false;
+
+        @Option(desc = "the file of the watermarks of the incremental runs (default <outdir>/voltexport.watermarks)")
+        String watermarks = "";
+
+        @Option(desc = "follow the input directory, exporting the rows appended to it until stopped (default false)")
+        boolean follow = false;
+
+        @Option(desc = "the seconds between the checks for new rows when following (default 10)")
+        int follow_interval = 10;
+
+        @Option(desc = "the staging directory of the segments copied when following (default <outdir>/.follow)")
+        String staging = "";
+
+        @Option(desc = "the count of exporting threads to use, or auto to tune the active threads up to max_threads (default 20)")
+        String threads = "20";
+
+        @Option(desc = "the maximum count of exporting threads with threads=auto (default 32)")
+        int max_threads = 32;
 
         @Option(desc = "do not print usage on error (default = false), used for bash encapsulation")
         boolean nousage = false;
 
+        @Option(desc = "limit in MB of direct memory used by the export runners to poll blocks (default 0 = unlimited)")
+        int direct_memory_mb = 0;
+
+        @Option(desc = "limit in MB/s of the PBD bytes read by all the export runners (default 0 = unlimited)")
+        int read_mb_per_sec = 0;
+
+        @Option(desc = "limit in MB/s of the row bytes exported by all the export runners (default 0 = unlimited)")
+        int write_mb_per_sec = 0;
+
+        @Option(desc = "limit of the rows per second exported by all the export runners (default 0 = unlimited)")
+        int rows_per_sec = 0;
+
+        @Option(desc = "properties file of the read_mb_per_sec, write_mb_per_sec and rows_per_sec limits, reloaded when modified")
+        String throttle_file = "";
+
+        // Exit on configuration errors, or throw an IllegalArgumentException (daemon jobs)
+        boolean m_exitOnError = true;
+
        @Override
         public void validate() {
             if (StringUtils.isBlank(indir)) exitWithMessage("Need full path to export_overflow or files to parse");
-            if (StringUtils.isBlank(catalog)) exitWithMessage("Need full path to catalog file");
+            List<String> indirs = getInputDirs();
+            if (indirs.size() > 1) {
+                if (StringUtils.isBlank(outdir) && !onlyscan && !dryrun && StringUtils.isBlank(query) && StringUtils.isBlank(key)) {
+                    exitWithMessage("Need an outdir to export several input directories");
+                }
+                if (!StringUtils.isBlank(watermarks)) {
+                    exitWithMessage("watermarks cannot be used with several input directories, they are kept in the output directory of each one");
+                }
+            }
+            if (!StringUtils.isBlank(sample)) {
+                if (dryrun || incremental || follow) exitWithMessage("sample cannot be used with dryrun, incremental or follow");
+                try {
+                    new RowSampler(sample);
+                }
+                catch (IllegalArgumentException e) {
+                    exitWithMessage(e.getMessage());
+                }
+            }
+            if (!StringUtils.isBlank(query)) {
+                if (onlyscan || dryrun || incremental || follow) {
+                    exitWithMessage("query cannot be used with onlyscan, dryrun, incremental or follow");
+                }
+                try {
+                    new AggregateQuery(query, group_by);
+                }
+                catch (IllegalArgumentException e) {
+                    exitWithMessage(e.getMessage());
+                }
+            }
+            else if (!StringUtils.isBlank(group_by)) {
+                exitWithMessage("group_by needs a query");
+            }
+            if (!StringUtils.isBlank(results_file) && StringUtils.isBlank(query) && StringUtils.isBlank(key)) {
+                exitWithMessage("results_file needs a query or a key");
+            }
+            if (!StringUtils.isBlank(index_key)) {
+                if (!onlyscan && StringUtils.isBlank(key)) exitWithMessage("index_key needs onlyscan to build the index, or a key to look up");
+                if (StringUtils.isBlank(index_dir) && StringUtils.isBlank(outdir)) {
+                    exitWithMessage("index_key needs an index_dir or an outdir outside of the input directory");
+                }
+                for (String dir : indirs) {
+                    if (isInside(getIndexDir(), dir)) {
+                        exitWithMessage("The index directory must be outside of the input directory");
+                    }
+                }
+            }
+            if (!StringUtils.isBlank(key)) {
+                if (StringUtils.isBlank(index_key)) exitWithMessage("key needs the index_key column");
+                if (onlyscan || dryrun || incremental || follow || !StringUtils.isBlank(query)) {
+                    exitWithMessage("key cannot be used with onlyscan, dryrun, incremental, follow or query");
+                }
+            }
+            if (follow) {
+                if (onlyscan || dryrun) exitWithMessage("follow cannot be used with onlyscan or dryrun");
+                if (follow_interval <= 0) exitWithMessage("follow_interval must be > 0");
+                if (StringUtils.isBlank(outdir)) exitWithMessage("follow needs an outdir outside of the input directory");
+            }
             if (StringUtils.isBlank(outdir)) {
-                if (!onlyscan) LOG.info("Exporting to same input directory ...");
+                if (!onlyscan && !dryrun && StringUtils.isBlank(query) && StringUtils.isBlank(key)) {
+                    LOG.info("Exporting to same input directory ...");
+                }
                 outdir = indir;
             }
+            if (follow) {
+                for (String dir : indirs) {
+                    if (isInside(ExportFollower.getStagingDir(this), dir)) {
+                        exitWithMessage("The staging directory must be outside of the input directory");
+                    }
+                }
+            }
             if (!exportall) {
                 if (StringUtils.isBlank(stream_name)) exitWithMessage("Need stream_name for files to parse");
             }
-            if (threads <= 0) exitWithMessage("threads must be > 0");
+            if (isAutoThreads()) {
+                if (max_threads <= 0) exitWithMessage("max_threads must be > 0");
+            }
+            else if (!StringUtils.isNumeric(threads.trim()) || getThreads() <= 0) {
+                exitWithMessage("threads must be auto or > 0");
+            }
+            if (direct_memory_mb < 0) exitWithMessage("direct_memory_mb must be >= 0");
+            if (read_mb_per_sec < 0 || write_mb_per_sec < 0 || rows_per_sec < 0) {
+                exitWithMessage("read_mb_per_sec, write_mb_per_sec and rows_per_sec must be >= 0");
+            }
+            try {
+                getTarget();
+            }
+            catch (IllegalArgumentException e) {
+                exitWithMessage("Invalid target " + target + ", must be FILE, JDBC, STREAM or BUCKET");
+            }
+        }
+
+        /**
+         * @return the input directories, in the order given
+         */
+        List<String> getInputDirs() {
+            Set<String> dirs = new LinkedHashSet<>();
+            for (String dir : indir.split(",")) {
+                if (!StringUtils.isBlank(dir) && !dirs.add(dir.trim())) {
+                    LOG.warnFmt("Directory %s specified more than once in inputs", dir.trim());
+                }
+            }
+            return new ArrayList<>(dirs);
+        }
+
+        private static boolean isInside(String dir, String parent) {
+            Path p = Paths.get(parent).toAbsolutePath().normalize();
+            return Paths.get(dir).toAbsolutePath().normalize().startsWith(p);
+        }
+
+        Target getTarget() {
+            return Target.valueOf(target.trim().toUpperCase());
+        }
+
+        /**
+         * @return the directory of the key indexes
+         */
+        String getIndexDir() {
+            return StringUtils.isBlank(index_dir) ? Paths.get(outdir, ".keyindex").toString() : index_dir.trim();
+        }
+
+        /**
+         * @return false if the rows are only read, by a query or a key lookup: no export client is needed
+         */
+        boolean exportsRows() {
+            return StringUtils.isBlank(query) && StringUtils.isBlank(key);
+        }
+
+        boolean isAutoThreads() {
+            return "auto".equalsIgnoreCase(threads.trim());
+        }
+
+        /**
+         * @return the count of exporting threads, the maximum count if autotuned
+         */
+        int getThreads() {
+            return isAutoThreads() ? max_threads : Integer.parseInt(threads.trim());
         }
 
         @Override
@@ -119,7 +331,15 @@ public class VoltExport {
             return c;
         }
 
+        @Override
+        public void exitWithMessageAndUsage(String msg) {
+            exitWithMessage(msg);
+        }
+
         public void exitWithMessage(String msg) {
+            if (!m_exitOnError) {
+                throw new IllegalArgumentException(msg);
+            }
             System.err.println(msg);
             if (!nousage) {
                 printUsage();
@@ -129,11 +349,18 @@ public class VoltExport {
     }
 
     private static VoltExportConfig s_cfg = new VoltExportConfig();
+    private static boolean s_voltdbReady = false;
+
+    private final VoltExportConfig m_cfg;
+    private final ExecutorService m_executor;
+    private WatermarkStore m_watermarks;
 
-    // FIXME: may support different export targets in the future, only FILE is supported for now
+    // The export targets supported by recover and recoverall, stitch only supports FILE
     static enum Target {
         FILE(ExportToFileClient::new),
-        JDBC(JDBCExportClient::new);
+        JDBC(BatchJDBCExportClient::new),
+        STREAM(StreamExportClient::new),
+        BUCKET(BucketExportClient::new);
 
         private final Supplier<ExportClientBase> m_factory;
 
@@ -149,84 +376,194 @@ public class VoltExport {
 
     public static void main(String[] args) throws IOException {
         s_cfg.parse(VoltExport.class.getName(), args);
+        if (s_cfg.getTarget() == Target.STREAM) {
+            // Keep the standard output for the exported rows
+            LOG.setOutput(System.err);
+        }
+        DirectMemoryBudget.GLOBAL.setLimitMb(s_cfg.direct_memory_mb);
+        IoThrottle.GLOBAL.setLimits(s_cfg.read_mb_per_sec, s_cfg.write_mb_per_sec, s_cfg.rows_per_sec);
+        IoThrottle.GLOBAL.setFile(s_cfg.throttle_file);
+
+        ThreadTuner tuner = s_cfg.isAutoThreads() && !s_cfg.onlyscan && !s_cfg.dryrun
+                ? ThreadTuner.start(s_cfg.max_threads) : null;
+        VoltExport ve = new VoltExport(s_cfg, null);
+        boolean success = ve.run();
+        if (tuner != null) {
+            tuner.stop();
+        }
+        if (!success) {
+            System.exit(-1);
+        }
+    }
 
-        VoltExport ve = new VoltExport();
-        ve.run();
+    /**
+     * @param cfg       the configuration
+     * @param executor  the executor running the export runners, or null to use a pool of cfg.threads
+     */
+    public VoltExport(VoltExportConfig cfg, ExecutorService executor) {
+        m_cfg = cfg;
+        m_executor = executor;
     }
 
-    void run() throws IOException {
+    /**
+     * Set up the VoltDB singletons, once per JVM since runs may be concurrent in the daemon
+     */
+    static synchronized void setupVoltDB() {
+        if (s_voltdbReady) {
+            return;
+        }
+        // Set up dummy ExportManager to enable E3 behavior
+        VoltDB.resetSingletonsForTest();
+        VoltDB.setExportManagerInstance(new DummyManager());
+
+        // Set the root directory of the FILE export client
+        ExportToFileClient.TEST_VOLTDB_ROOT = System.getProperty("user.dir");
+        s_voltdbReady = true;
+    }
+
+    /**
+     * @return true if successful
+     */
+    boolean run() throws IOException {
+        List<String> indirs = m_cfg.getInputDirs();
+        if (indirs.size() > 1) {
+            return runAll(indirs);
+        }
+
         ArrayList<ExportClientBase> exportClients = new ArrayList<>();
+        List<VoltExportResult> completed = new ArrayList<>();
+        int shutdownFailures = 0;
+        boolean success = true;
         try {
-            // Set up dummy ExportManager to enable E3 behavior
-            VoltDB.resetSingletonsForTest();
-            VoltDB.setExportManagerInstance(new DummyManager());
-
-            // Set the root directory of the FILE export client
-            ExportToFileClient.TEST_VOLTDB_ROOT = System.getProperty("user.dir");
+            setupVoltDB();
 
             // Check directories
-            File indir = new File(s_cfg.indir);
+            File indir = new File(m_cfg.indir);
             if (!indir.canRead()) {
-                s_cfg.exitWithMessage("Cannot read input directory " + indir.getAbsolutePath());
+                LOG.errorFmt("Cannot read input directory %s", indir.getAbsolutePath());
+                return false;
             }
 
-            // Get database from catalog
-            Database db = getDatabase();
-            if (db == null) {
-                s_cfg.exitWithMessage("No database in catalog " + s_cfg.catalog);
+            // Get database from catalog, or rely on the schemas persisted in the PBD files
+            Database db = null;
+            if (StringUtils.isBlank(m_cfg.catalog)) {
+                LOG.info("No catalog, using the schemas persisted in the PBD files");
+            }
+            else {
+                db = CatalogCache.getDatabase(m_cfg.catalog);
+                if (db == null) {
+                    LOG.errorFmt("No database in catalog %s", m_cfg.catalog);
+                    return false;
+                }
+            }
+
+            // Load the watermarks of the previous runs
+            if (m_cfg.incremental) {
+                m_watermarks = new WatermarkStore(getWatermarksPath());
+                LOG.infoFmt("Incremental export above the %d watermarks of %s", m_watermarks.size(), m_watermarks);
             }
 
-            // Parse input directory to identify streams and partitions
-            Set<Pair<String, Integer>> streamSet = new ExportFileVisitor(s_cfg.indir, db).visit();
+            // Follow the input directory until stopped
+            if (m_cfg.follow) {
+                return follow(db);
+            }
 
             // Run exports
-            if (!s_cfg.exportall) {
-                if (!streamSet.contains(Pair.of(s_cfg.stream_name, s_cfg.partition))) {
+            ExportFileVisitor visitor = new ExportFileVisitor(m_cfg.indir, db);
+            if (!m_cfg.exportall) {
+                StreamPartition sp = visitor.discover(m_cfg.stream_name, m_cfg.partition);
+                if (sp == null) {
                     LOG.errorFmt("No PBD files found for stream %s, partition %d in directory %s",
-                            s_cfg.stream_name, s_cfg.partition, s_cfg.indir);
-                    System.exit(-1);
+                            m_cfg.stream_name, m_cfg.partition, m_cfg.indir);
+                    return false;
+                }
+                LOG.infoFmt("Found %s", sp);
+                VoltExportConfig cfg = (VoltExportConfig)m_cfg.clone();
+                cfg.range = getRange(cfg.stream_name, cfg.partition);
+                if (cfg.range == null) {
+                    return true;
                 }
 
                 // Run an ExportRunner synchronously
-                ExportClientBase exportClient = createExportClient(DEFAULT_TARGET, s_cfg.stream_name, s_cfg.partition);
-                exportClients.add(exportClient);
-                ExportRunner runner = new ExportRunner(s_cfg, exportClient, db);
-                runner.call();
+                ExportClientBase exportClient = null;
+                if (m_cfg.exportsRows()) {
+                    exportClient = createExportClient(m_cfg.getTarget(), m_cfg.stream_name, m_cfg.partition);
+                    exportClients.add(exportClient);
+                }
+                ExportRunner runner = new ExportRunner(cfg, exportClient, db);
+                VoltExportResult res = runner.call();
+                success = res.success;
+                completed.add(res);
+                if (m_cfg.dryrun && res.estimate != null) {
+                    DryRunEstimate.logSummary(Collections.singletonList(res.estimate), 1, m_cfg.outdir);
+                }
             }
             else {
-                if (streamSet.isEmpty()) {
-                    LOG.errorFmt("No PBD files found for any stream in directory %s", s_cfg.indir);
-                    System.exit(-1);
+                // Run ExportRunners in threadpool, each one submitted as soon as its stream/partition is discovered
+                ExecutorService executor = m_executor != null ? m_executor : Executors.newFixedThreadPool(m_cfg.getThreads());
+                List<Future<VoltExportResult>> results = Collections.synchronizedList(new ArrayList<>());
+                AtomicInteger clientFailures = new AtomicInteger();
+                AtomicLong totalBytes = new AtomicLong();
+
+                LOG.infoFmt("Discovering streams in directory %s ...", m_cfg.indir);
+                Database catalogDb = db;
+                int found = visitor.discover(sp -> {
+                    totalBytes.addAndGet(sp.m_bytes);
+                    try {
+                        VoltExportConfig cfg = (VoltExportConfig)m_cfg.clone();
+                        cfg.exportall = false;
+                        cfg.stream_name = sp.m_stream;
+                        cfg.partition = sp.m_partition;
+                        cfg.range = getRange(cfg.stream_name, cfg.partition);
+                        if (cfg.range == null) {
+                            return;
+                        }
+                        ExportClientBase exportClient = null;
+                        if (m_cfg.exportsRows()) {
+                            exportClient = createExportClient(m_cfg.getTarget(), cfg.stream_name, cfg.partition);
+                            synchronized (exportClients) {
+                                exportClients.add(exportClient);
+                            }
+                        }
+                        results.add(executor.submit(new ExportRunner(cfg, exportClient, catalogDb)));
+                        LOG.infoFmt("Started export runner for %s", sp);
+                    }
+                    catch (Exception e) {
+                        LOG.errorFmt("Failed creating export client for %s", sp);
+                        e.printStackTrace();
+                        clientFailures.incrementAndGet();
+                    }
+                });
+                if (found == 0) {
+                    LOG.errorFmt("No PBD files found for any stream in directory %s", m_cfg.indir);
+                    return false;
                 }
-
-                // Run ExportRunners in threadpool
-                ExecutorService executor = Executors.newFixedThreadPool(s_cfg.threads);
-                ArrayList<ExportRunner> tasks = new ArrayList<>();
-
-                for (Pair<String, Integer> topicPartition : streamSet) {
-                    VoltExportConfig cfg = (VoltExportConfig)s_cfg.clone();
-                    cfg.exportall = false;
-                    cfg.stream_name = topicPartition.getFirst();
-                    cfg.partition = topicPartition.getSecond().intValue();
-                    ExportClientBase exportClient = createExportClient(DEFAULT_TARGET, cfg.stream_name, cfg.partition);
-                    exportClients.add(exportClient);
-                    tasks.add(new ExportRunner(cfg, exportClient, db));
+                LOG.infoFmt("Discovered %d stream/partitions, %s of PBD files", found,
+                        DryRunEstimate.formatBytes(totalBytes.get()));
+                if (clientFailures.get() > 0) {
+                    success = false;
                 }
 
-                LOG.infoFmt("Starting %d export runners ...", tasks.size());
-                List<Future<VoltExportResult>> results = executor.invokeAll(tasks);
-
-                LOG.infoFmt("Waiting for %d export runner completions ...", results.size());
-                executor.shutdown();
-                int minutes = 0;
-                while (!executor.awaitTermination(60, TimeUnit.SECONDS)) {
-                    LOG.infoFmt("... still waiting for %d export completions after %d minutes", results.size(), ++minutes);
+                if (m_executor == null) {
+                    LOG.infoFmt("Waiting for %d export runner completions ...", results.size());
+                    executor.shutdown();
+                    int minutes = 0;
+                    while (!executor.awaitTermination(60, TimeUnit.SECONDS)) {
+                        LOG.infoFmt("... still waiting for %d export completions after %d minutes, direct memory: %s, I/O: %s",
+                                results.size(), ++minutes, DirectMemoryBudget.GLOBAL, IoThrottle.GLOBAL);
+                    }
                 }
 
                 int exceptions = 0;
+                List<DryRunEstimate> estimates = new ArrayList<>();
                 for (Future<VoltExportResult> fut : results) {
                     try {
-                        fut.get();
+                        VoltExportResult res = fut.get();
+                        success &= res.success;
+                        completed.add(res);
+                        if (res.estimate != null) {
+                            estimates.add(res.estimate);
+                        }
                     }
                     catch (Exception e) {
                         exceptions++;
@@ -234,12 +571,17 @@ public class VoltExport {
                 }
                 if (exceptions > 0) {
                     LOG.errorFmt("%d export runners encountered exceptions", exceptions);
+                    success = false;
+                }
+                if (m_cfg.dryrun) {
+                    DryRunEstimate.logSummary(estimates, m_cfg.getThreads(), m_cfg.outdir);
                 }
             }
         }
         catch (Exception e) {
             LOG.error("Failed exporting");
             e.printStackTrace();
+            success = false;
         }
         finally {
             for (ExportClientBase exportClient : exportClients) {
@@ -249,35 +591,254 @@ public class VoltExport {
                 catch(Exception e) {
                     LOG.error("Failed shutting down export client");
                     e.printStackTrace();
+                    shutdownFailures++;
                 }
             }
         }
-        if (s_cfg.exportall) {
-            LOG.infoFmt("Finished exporting all streams in directory %s", s_cfg.indir);
+
+        // The output of a client failing to shut down may be incomplete
+        if (shutdownFailures > 0) {
+            success = false;
+        }
+
+        // Advance the watermarks once the outputs are committed by the shut down of the export clients
+        if (m_watermarks != null && !m_cfg.onlyscan && !m_cfg.dryrun) {
+            if (shutdownFailures > 0) {
+                LOG.errorFmt("Not advancing the watermarks of %s after %d export client failures", m_watermarks, shutdownFailures);
+            }
+            else if (!saveWatermarks(completed)) {
+                success = false;
+            }
+        }
+        if (!StringUtils.isBlank(m_cfg.query) && !printResults("query results", out -> AggregateQuery.printResults(completed, out))) {
+            success = false;
+        }
+        else if (!StringUtils.isBlank(m_cfg.key) && !printResults("rows looked up", out -> printLookups(completed, out))) {
+            success = false;
+        }
+        if (m_cfg.exportall) {
+            LOG.infoFmt("Finished exporting all streams in directory %s", m_cfg.indir);
         }
         else {
             LOG.infoFmt("Finished exporting stream %s, partition %d in directory %s",
-                    s_cfg.stream_name, s_cfg.partition, s_cfg.indir);
+                    m_cfg.stream_name, m_cfg.partition, m_cfg.indir);
         }
+        LOG.infoFmt("Direct memory: %s", DirectMemoryBudget.GLOBAL);
+        LOG.infoFmt("I/O: %s", IoThrottle.GLOBAL);
+        return success;
     }
 
-    public static Database getDatabase() throws IOException {
-        InMemoryJarfile imjf = new InMemoryJarfile(s_cfg.catalog);
-        return CatalogUtil.getDatabaseFrom(imjf);
+    /**
+     * Export several input directories, each one into its own sub-directory of the output directory.
+     * The export runners of all the directories share the same executor.
+     *
+     * @return true if successful
+     */
+    private boolean runAll(List<String> indirs) {
+        ExecutorService executor = m_executor != null ? m_executor : Executors.newFixedThreadPool(m_cfg.getThreads());
+        ExecutorService sources = Executors.newFixedThreadPool(indirs.size());
+        boolean success = true;
+        try {
+            List<String> names = getSourceNames(indirs);
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int i = 0; i < indirs.size(); i++) {
+                VoltExportConfig cfg = (VoltExportConfig)m_cfg.clone();
+                cfg.indir = indirs.get(i);
+                if (m_cfg.outdir.equals(m_cfg.indir)) {
+                    // Scan or dry run without outdir
+                    cfg.outdir = cfg.indir;
+                }
+                else {
+                    cfg.outdir = Paths.get(m_cfg.outdir, names.get(i)).toString();
+                    if (!m_cfg.onlyscan && !m_cfg.dryrun) {
+                        Files.createDirectories(Paths.get(cfg.outdir));
+                    }
+                }
+                if (!StringUtils.isBlank(m_cfg.staging)) {
+                    cfg.staging = Paths.get(m_cfg.staging, names.get(i)).toString();
+                }
+                if (!StringUtils.isBlank(m_cfg.index_dir)) {
+                    cfg.index_dir = Paths.get(m_cfg.index_dir, names.get(i)).toString();
+                }
+                if (!StringUtils.isBlank(m_cfg.results_file)) {
+                    cfg.results_file = m_cfg.results_file + "-" + names.get(i);
+                }
+                LOG.infoFmt("Exporting %s into %s", cfg.indir, cfg.outdir);
+                results.add(sources.submit(() -> new VoltExport(cfg, executor).run()));
+            }
+
+            for (int i = 0; i < results.size(); i++) {
+                try {
+                    if (!results.get(i).get().booleanValue()) {
+                        LOG.errorFmt("Failed exporting %s", indirs.get(i));
+                        success = false;
+                    }
+                }
+                catch (ExecutionException e) {
+                    LOG.errorFmt("Failed exporting %s", indirs.get(i));
+                    e.getCause().printStackTrace();
+                    success = false;
+                }
+            }
+        }
+        catch (Exception e) {
+            LOG.error("Failed exporting");
+            e.printStackTrace();
+            success = false;
+        }
+        finally {
+            sources.shutdown();
+            if (m_executor == null) {
+                executor.shutdown();
+            }
+        }
+        LOG.infoFmt("Finished exporting %d input directories", indirs.size());
+        return success;
+    }
+
+    /**
+     * Name the output sub-directory of each input directory with the shortest tail of its path
+     * that is unique, e.g. node0_voltdbroot_export_overflow and node1_voltdbroot_export_overflow.
+     * A root directory has no names in its path, and is named root.
+     */
+    static List<String> getSourceNames(List<String> indirs) {
+        List<Path> paths = new ArrayList<>();
+        int maxCount = 0;
+        for (String dir : indirs) {
+            Path p = Paths.get(dir).toAbsolutePath().normalize();
+            paths.add(p);
+            maxCount = Math.max(maxCount, p.getNameCount());
+        }
+        List<String> names = new ArrayList<>();
+        for (int k = 1; k <= Math.max(1, maxCount); k++) {
+            names.clear();
+            for (Path p : paths) {
+                int count = p.getNameCount();
+                if (count == 0) {
+                    names.add("root");
+                    continue;
+                }
+                Path tail = p.subpath(Math.max(0, count - k), count);
+                names.add(tail.toString().replace(File.separatorChar, '_'));
+            }
+            if (new HashSet<>(names).size() == names.size()) {
+                return names;
+            }
+        }
+        throw new IllegalArgumentException("Input directories are not distinct: " + indirs);
+    }
+
+    // Return the range to export for a stream/partition, or null if all its rows were exported by previous runs
+    private String getRange(String stream, int partition) {
+        if (m_watermarks == null) {
+            return m_cfg.range;
+        }
+        long watermark = m_watermarks.get(stream, partition);
+        if (watermark < 0) {
+            return m_cfg.range;
+        }
+        String range = WatermarkStore.applyTo(m_cfg.range, watermark);
+        if (range == null) {
+            LOG.infoFmt("%s:%d was exported up to %d by previous runs", stream, partition, watermark);
+        }
+        else {
+            LOG.infoFmt("%s:%d exporting range [%s] above watermark %d", stream, partition, range, watermark);
+        }
+        return range;
+    }
+
+    // Print the query results or the rows looked up to the results file, or the standard output, return true if successful
+    private boolean printResults(String what, Consumer<PrintStream> printer) {
+        if (StringUtils.isBlank(m_cfg.results_file)) {
+            printer.accept(System.out);
+            return true;
+        }
+        try (PrintStream out = new PrintStream(new FileOutputStream(m_cfg.results_file), false, "UTF-8")) {
+            printer.accept(out);
+            if (out.checkError()) {
+                throw new IOException("Failed writing " + m_cfg.results_file);
+            }
+        }
+        catch (IOException e) {
+            LOG.errorFmt("Failed printing the %s to %s", what, m_cfg.results_file);
+            e.printStackTrace();
+            return false;
+        }
+        LOG.infoFmt("Printed the %s to %s", what, m_cfg.results_file);
+        return true;
+    }
+
+    // Print the rows found by the lookups, by stream and partition, in sequence number order
+    private static void printLookups(List<VoltExportResult> results, PrintStream out) {
+        List<VoltExportResult> found = new ArrayList<>();
+        for (VoltExportResult res : results) {
+            if (res.lookups != null) {
+                found.add(res);
+            }
+        }
+        found.sort(Comparator.comparing((VoltExportResult res) -> res.stream_name).thenComparingInt(res -> res.partition));
+        for (VoltExportResult res : found) {
+            for (String row : res.lookups) {
+                out.println(row);
+            }
+        }
+    }
+
+    private String getWatermarksPath() {
+        return StringUtils.isBlank(m_cfg.watermarks) ? Paths.get(m_cfg.outdir, "voltexport.watermarks").toString()
+                : m_cfg.watermarks;
+    }
+
+    // Advance and save the watermarks of the successful exports, return true if successful
+    private boolean saveWatermarks(List<VoltExportResult> results) {
+        int advanced = 0;
+        for (VoltExportResult res : results) {
+            if (res.success && res.lastSeqNo >= 0) {
+                m_watermarks.advance(res.stream_name, res.partition, res.lastSeqNo);
+                advanced++;
+            }
+        }
+        try {
+            m_watermarks.save();
+            LOG.infoFmt("Saved the watermarks of %d stream/partitions in %s", advanced, m_watermarks);
+            return true;
+        }
+        catch (IOException e) {
+            LOG.errorFmt("Failed saving the watermarks in %s", m_watermarks);
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    private boolean follow(Database db) throws InterruptedException {
+        ExecutorService executor = m_executor != null ? m_executor : Executors.newFixedThreadPool(m_cfg.getThreads());
+        ExportFollower follower = new ExportFollower(this, m_cfg, db, executor, m_watermarks);
+        Thread hook = new Thread(() -> {
+            LOG.info("Stopping, waiting for the current exports to complete ...");
+            follower.stop();
+        }, "VoltExport follow shutdown");
+        Runtime.getRuntime().addShutdownHook(hook);
+
+        boolean success = follower.run();
+        if (m_executor == null) {
+            executor.shutdown();
+            executor.awaitTermination(60, TimeUnit.SECONDS);
+        }
+        return success;
     }
 
     private Properties getProperties(Target target, String name, int partition) throws IOException {
         Properties properties = new Properties();
-        if (StringUtils.isBlank(s_cfg.properties)) {
+        if (StringUtils.isBlank(m_cfg.properties)) {
             LOG.infoFmt("No properties specifed for target %s", target);
         } else {
             final InputStream in;
 
-            File propFile = new File(s_cfg.properties);
+            File propFile = new File(m_cfg.properties);
             if (propFile.exists()) {
                 in = new FileInputStream(propFile);
             } else {
-                in = new StringInputStream(s_cfg.properties);
+                in = new StringInputStream(m_cfg.properties);
             }
             try (InputStream i = in) {
                 properties.load(i);
@@ -285,20 +846,23 @@ public class VoltExport {
         }
 
         // Do some property checks and adjustments
-        if (target == Target.FILE) {
-            // File export, set the nonce to stream_partition
+        if (target == Target.FILE || target == Target.BUCKET) {
+            // File export, set the nonce to stream_partition, labelled with the sample if any
             String nonce = name + "_" + partition;
+            if (!StringUtils.isBlank(m_cfg.sample)) {
+                nonce += "_" + new RowSampler(m_cfg.sample).getLabel();
+            }
             properties.put("nonce", nonce);
-            properties.put("outdir", s_cfg.outdir);
+            properties.put("outdir", m_cfg.outdir);
         }
         return properties;
     }
 
-    private ExportClientBase createExportClient(Target target, String name, int partition)
+    ExportClientBase createExportClient(Target target, String name, int partition)
             throws ClassNotFoundException, Exception {
         ExportClientBase client = target.create();
         client.configure(getProperties(target, name, partition));
-        client.setTargetName(s_cfg.stream_name);
+        client.setTargetName(m_cfg.stream_name);
         return client;
     }
 
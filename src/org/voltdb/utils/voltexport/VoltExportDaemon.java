@@ -0,0 +1,512 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2022 VoltDB Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with VoltDB.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.voltdb.utils.voltexport;
+
+import static org.voltdb.utils.voltexport.VoltExport.LOG;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang3.StringUtils;
+import org.voltdb.CLIConfig;
+import org.voltdb.utils.voltexport.VoltExport.Target;
+import org.voltdb.utils.voltexport.VoltExport.VoltExportConfig;
+import org.voltdb.utils.voltexport.VoltStitchExport.VoltStitchExportConfig;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A long-running process executing scan, recover and stitch jobs submitted over a local HTTP API.
+ * <p>
+ * The daemon keeps the JVM, the VoltDB singletons, the loaded catalogs and the thread pools across
+ * jobs. The jobs are executed by a pool of {@code jobs} threads, and their export runners by one
+ * shared pool of {@code threads} threads: the {@code threads}, {@code direct_memory_mb} and throttling
+ * options of the jobs are ignored. The API is only bound to the loopback interface:
+ * <ul>
+ * <li>{@code POST /jobs/<tool>}: submit a job, where the tool is scan, scanall, recover, recoverall
+ * or stitch, and the body holds the command-line options of the tool, one per line, with the same
+ * defaults as the bash wrappers</li>
+ * <li>{@code GET /jobs}, {@code GET /jobs/<id>}: the status of the jobs, or of one job</li>
+ * <li>{@code DELETE /jobs/<id>}: cancel a queued job</li>
+ * <li>{@code GET /metrics}: the daemon metrics</li>
+ * <li>{@code GET /throttle}: the I/O limits and rates, {@code POST /throttle?read_mb_per_sec=r&write_mb_per_sec=w&rows_per_sec=n}:
+ * change some of the limits</li>
+ * <li>{@code POST /shutdown}: stop accepting jobs, and exit when the submitted jobs complete</li>
+ * </ul>
+ * The responses are JSON documents.
+ */
+public class VoltExportDaemon {
+
+    /**
+     * Configuration options
+     */
+    public static class VoltExportDaemonConfig extends CLIConfig {
+
+        @Option(desc = "the port of the HTTP API, bound to the loopback interface (default 8089)")
+        int port = 8089;
+
+        @Option(desc = "the count of jobs executed concurrently (default 4)")
+        int jobs = 4;
+
+        @Option(desc = "the count of exporting threads shared by the jobs (default 20)")
+        int threads = 20;
+
+        @Option(desc = "limit in MB of direct memory used by the export runners to poll blocks (default 0 = unlimited)")
+        int direct_memory_mb = 0;
+
+        @Option(desc = "limit in MB/s of the PBD bytes read by all the export runners (default 0 = unlimited)")
+        int read_mb_per_sec = 0;
+
+        @Option(desc = "limit in MB/s of the row bytes exported by all the export runners (default 0 = unlimited)")
+        int write_mb_per_sec = 0;
+
+        @Option(desc = "limit of the rows per second exported by all the export runners (default 0 = unlimited)")
+        int rows_per_sec = 0;
+
+        @Option(desc = "properties file of the read_mb_per_sec, write_mb_per_sec and rows_per_sec limits, reloaded when modified")
+        String throttle_file = "";
+
+        @Option(desc = "the count of completed jobs kept for status (default 1000)")
+        int history = 1000;
+
+        @Override
+        public void validate() {
+            if (port <= 0 || port > 65535) exitWithMessageAndUsage("port must be in [1, 65535]");
+            if (jobs <= 0) exitWithMessageAndUsage("jobs must be > 0");
+            if (threads <= 0) exitWithMessageAndUsage("threads must be > 0");
+            if (direct_memory_mb < 0) exitWithMessageAndUsage("direct_memory_mb must be >= 0");
+            if (read_mb_per_sec < 0 || write_mb_per_sec < 0 || rows_per_sec < 0) {
+                exitWithMessageAndUsage("read_mb_per_sec, write_mb_per_sec and rows_per_sec must be >= 0");
+            }
+            if (history < 0) exitWithMessageAndUsage("history must be >= 0");
+        }
+    }
+
+    enum State {
+        QUEUED, RUNNING, SUCCEEDED, FAILED, CANCELLED;
+
+        boolean isDone() {
+            return this != QUEUED && this != RUNNING;
+        }
+    }
+
+    /**
+     * A submitted job
+     */
+    static class Job implements Runnable {
+        final long m_id;
+        final String m_tool;
+        final CLIConfig m_cfg;
+        final long m_submitted = System.currentTimeMillis();
+        volatile State m_state = State.QUEUED;
+        volatile long m_started;
+        volatile long m_ended;
+        volatile String m_error;
+        Future<?> m_future;
+
+        Job(long id, String tool, CLIConfig cfg) {
+            m_id = id;
+            m_tool = tool;
+            m_cfg = cfg;
+        }
+
+        @Override
+        public void run() {
+            m_started = System.currentTimeMillis();
+            m_state = State.RUNNING;
+            LOG.infoFmt("Job %d: starting %s", m_id, m_tool);
+            boolean success = false;
+            try {
+                if (m_cfg instanceof VoltStitchExportConfig) {
+                    success = new VoltStitchExport((VoltStitchExportConfig) m_cfg, s_runners).run();
+                }
+                else {
+                    success = new VoltExport((VoltExportConfig) m_cfg, s_runners).run();
+                }
+            }
+            catch (Throwable t) {
+                m_error = t.toString();
+                t.printStackTrace();
+            }
+            m_ended = System.currentTimeMillis();
+            m_state = success ? State.SUCCEEDED : State.FAILED;
+            LOG.infoFmt("Job %d: %s %s in %d ms", m_id, m_tool, m_state, m_ended - m_started);
+        }
+
+        String toJson() {
+            StringBuilder sb = new StringBuilder("{");
+            sb.append("\"id\":").append(m_id);
+            sb.append(",\"tool\":").append(quote(m_tool));
+            sb.append(",\"state\":").append(quote(m_state.name()));
+            sb.append(",\"submitted\":").append(m_submitted);
+            sb.append(",\"started\":").append(m_started);
+            sb.append(",\"ended\":").append(m_ended);
+            if (m_started > 0) {
+                long end = m_ended > 0 ? m_ended : System.currentTimeMillis();
+                sb.append(",\"elapsedMs\":").append(end - m_started);
+            }
+            if (m_error != null) {
+                sb.append(",\"error\":").append(quote(m_error));
+            }
+            return sb.append('}').toString();
+        }
+    }
+
+    private static ThreadPoolExecutor s_runners;
+
+    private final VoltExportDaemonConfig m_cfg;
+    private final long m_startTime = System.currentTimeMillis();
+    private final AtomicLong m_nextId = new AtomicLong(1);
+    private final Map<Long, Job> m_jobs = new ConcurrentSkipListMap<>();
+    private ThreadPoolExecutor m_jobExecutor;
+    private HttpServer m_server;
+    private volatile boolean m_shutdown = false;
+
+    public static void main(String[] args) throws IOException {
+        VoltExportDaemonConfig cfg = new VoltExportDaemonConfig();
+        cfg.parse(VoltExportDaemon.class.getName(), args);
+        DirectMemoryBudget.GLOBAL.setLimitMb(cfg.direct_memory_mb);
+        IoThrottle.GLOBAL.setLimits(cfg.read_mb_per_sec, cfg.write_mb_per_sec, cfg.rows_per_sec);
+        IoThrottle.GLOBAL.setFile(cfg.throttle_file);
+
+        new VoltExportDaemon(cfg).start();
+    }
+
+    public VoltExportDaemon(VoltExportDaemonConfig cfg) {
+        m_cfg = cfg;
+    }
+
+    void start() throws IOException {
+        VoltExport.setupVoltDB();
+        s_runners = (ThreadPoolExecutor) Executors.newFixedThreadPool(m_cfg.threads);
+        m_jobExecutor = (ThreadPoolExecutor) Executors.newFixedThreadPool(m_cfg.jobs);
+
+        m_server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), m_cfg.port), 0);
+        m_server.createContext("/jobs", this::handleJobs);
+        m_server.createContext("/metrics", this::handleMetrics);
+        m_server.createContext("/throttle", this::handleThrottle);
+        m_server.createContext("/shutdown", this::handleShutdown);
+        m_server.setExecutor(Executors.newFixedThreadPool(2));
+        m_server.start();
+        LOG.infoFmt("VoltExport daemon listening on %s, %d concurrent jobs, %d exporting threads",
+                m_server.getAddress(), m_cfg.jobs, m_cfg.threads);
+    }
+
+    private void handleJobs(HttpExchange exchange) throws IOException {
+        try {
+            String[] path = exchange.getRequestURI().getPath().split("/");
+            // path[0] is empty, path[1] is "jobs"
+            String method = exchange.getRequestMethod();
+            if ("POST".equals(method) && path.length == 3) {
+                submit(exchange, path[2]);
+            }
+            else if ("GET".equals(method) && path.length == 2) {
+                List<String> jobs = new ArrayList<>();
+                m_jobs.values().forEach(j -> jobs.add(j.toJson()));
+                respond(exchange, 200, "[" + String.join(",", jobs) + "]");
+            }
+            else if (path.length == 3 && ("GET".equals(method) || "DELETE".equals(method))) {
+                Job job = m_jobs.get(parseId(path[2]));
+                if (job == null) {
+                    respond(exchange, 404, error("No job " + path[2]));
+                }
+                else if ("DELETE".equals(method)) {
+                    cancel(exchange, job);
+                }
+                else {
+                    respond(exchange, 200, job.toJson());
+                }
+            }
+            else {
+                respond(exchange, 405, error("Unsupported request " + method + " " + exchange.getRequestURI()));
+            }
+        }
+        catch (Exception e) {
+            respond(exchange, 500, error(e.toString()));
+        }
+    }
+
+    private void submit(HttpExchange exchange, String tool) throws IOException {
+        if (m_shutdown) {
+            respond(exchange, 503, error("Shutting down"));
+            return;
+        }
+        // Same defaults as the bash wrappers, overridden by the options of the request
+        List<String> args = new ArrayList<>();
+        args.add("stitch".equals(tool) ? "--properties=FILE.internal.properties" : "--properties=FILE.properties");
+        switch (tool) {
+        case "scan":
+            args.add("--onlyscan=true");
+            break;
+        case "scanall":
+            args.add("--exportall=true");
+            args.add("--onlyscan=true");
+            break;
+        case "recover":
+        case "stitch":
+            break;
+        case "recoverall":
+            args.add("--exportall=true");
+            break;
+        default:
+            respond(exchange, 404, error("Unknown tool " + tool));
+            return;
+        }
+        args.add("--nousage=true");
+        for (String line : readBody(exchange).split("\\r?\\n")) {
+            line = line.trim();
+            if (!line.isEmpty() && !line.startsWith("#")) {
+                args.add(line);
+            }
+        }
+
+        CLIConfig cfg;
+        try {
+            if ("stitch".equals(tool)) {
+                VoltStitchExportConfig stitchCfg = new VoltStitchExportConfig();
+                stitchCfg.m_exitOnError = false;
+                stitchCfg.parse(VoltStitchExport.class.getName(), args.toArray(new String[args.size()]));
+                cfg = stitchCfg;
+            }
+            else {
+                VoltExportConfig exportCfg = new VoltExportConfig();
+                exportCfg.m_exitOnError = false;
+                exportCfg.parse(VoltExport.class.getName(), args.toArray(new String[args.size()]));
+                if (exportCfg.follow) {
+                    throw new IllegalArgumentException("follow is not supported by daemon jobs");
+                }
+                if (exportCfg.getTarget() == Target.STREAM) {
+                    // The jobs would share the standard output or write the same named pipe
+                    throw new IllegalArgumentException("target STREAM is not supported by daemon jobs");
+                }
+                if (!exportCfg.exportsRows() && StringUtils.isBlank(exportCfg.results_file)) {
+                    // The daemon output only holds the logs of the jobs
+                    throw new IllegalArgumentException("query or key needs a results_file in daemon jobs");
+                }
+                cfg = exportCfg;
+            }
+        }
+        catch (IllegalArgumentException e) {
+            respond(exchange, 400, error(e.getMessage()));
+            return;
+        }
+
+        Job job = new Job(m_nextId.getAndIncrement(), tool, cfg);
+        synchronized (job) {
+            m_jobs.put(job.m_id, job);
+            job.m_future = m_jobExecutor.submit(job);
+        }
+        trimHistory();
+        respond(exchange, 202, job.toJson());
+    }
+
+    private void cancel(HttpExchange exchange, Job job) throws IOException {
+        synchronized (job) {
+            if (job.m_state == State.QUEUED && job.m_future.cancel(false)) {
+                job.m_state = State.CANCELLED;
+                job.m_ended = System.currentTimeMillis();
+                respond(exchange, 200, job.toJson());
+            }
+            else {
+                respond(exchange, 409, error("Job " + job.m_id + " is " + job.m_state + ", only queued jobs can be cancelled"));
+            }
+        }
+    }
+
+    // Forget the oldest completed jobs beyond the history size
+    private void trimHistory() {
+        long done = m_jobs.values().stream().filter(j -> j.m_state.isDone()).count();
+        Iterator<Job> it = m_jobs.values().iterator();
+        while (done > m_cfg.history && it.hasNext()) {
+            if (it.next().m_state.isDone()) {
+                it.remove();
+                done--;
+            }
+        }
+    }
+
+    private void handleMetrics(HttpExchange exchange) throws IOException {
+        int[] counts = new int[State.values().length];
+        m_jobs.values().forEach(j -> counts[j.m_state.ordinal()]++);
+        Runtime rt = Runtime.getRuntime();
+
+        StringBuilder sb = new StringBuilder("{");
+        sb.append("\"uptimeMs\":").append(System.currentTimeMillis() - m_startTime);
+        sb.append(",\"jobsSubmitted\":").append(m_nextId.get() - 1);
+        for (State s : State.values()) {
+            sb.append(",\"jobs").append(s.name()).append("\":").append(counts[s.ordinal()]);
+        }
+        sb.append(",\"runnerThreads\":").append(m_cfg.threads);
+        sb.append(",\"runnersActive\":").append(s_runners.getActiveCount());
+        sb.append(",\"runnersQueued\":").append(s_runners.getQueue().size());
+        sb.append(",\"catalogsCached\":").append(CatalogCache.size());
+        sb.append(",\"directMemoryUsed\":").append(DirectMemoryBudget.GLOBAL.getUsed());
+        sb.append(",\"directMemoryPeak\":").append(DirectMemoryBudget.GLOBAL.getPeak());
+        sb.append(",\"io\":").append(IoThrottle.GLOBAL.toJson());
+        sb.append(",\"heapUsed\":").append(rt.totalMemory() - rt.freeMemory());
+        sb.append(",\"shuttingDown\":").append(m_shutdown);
+        respond(exchange, 200, sb.append('}').toString());
+    }
+
+    private void handleThrottle(HttpExchange exchange) throws IOException {
+        String method = exchange.getRequestMethod();
+        if ("POST".equals(method)) {
+            IoThrottle throttle = IoThrottle.GLOBAL;
+            long read = throttle.getReadLimitMb();
+            long write = throttle.getWriteLimitMb();
+            long rows = throttle.getRowsLimit();
+            String query = exchange.getRequestURI().getQuery();
+            try {
+                for (String param : query == null ? new String[0] : query.split("&")) {
+                    String[] kv = param.split("=", 2);
+                    long value = kv.length == 2 ? Long.parseLong(kv[1].trim()) : -1;
+                    switch (kv[0]) {
+                    case "read_mb_per_sec":
+                        read = value;
+                        break;
+                    case "write_mb_per_sec":
+                        write = value;
+                        break;
+                    case "rows_per_sec":
+                        rows = value;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown limit " + kv[0]);
+                    }
+                }
+                throttle.setLimits(read, write, rows);
+            }
+            catch (IllegalArgumentException e) {
+                respond(exchange, 400, error(e.getMessage()));
+                return;
+            }
+            LOG.infoFmt("Throttle limits changed: %s", throttle);
+        }
+        else if (!"GET".equals(method)) {
+            respond(exchange, 405, error("Use GET or POST /throttle"));
+            return;
+        }
+        respond(exchange, 200, IoThrottle.GLOBAL.toJson());
+    }
+
+    private void handleShutdown(HttpExchange exchange) throws IOException {
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            respond(exchange, 405, error("Use POST /shutdown"));
+            return;
+        }
+        m_shutdown = true;
+        respond(exchange, 202, "{\"state\":\"SHUTTING_DOWN\"}");
+
+        Thread t = new Thread(() -> {
+            LOG.info("VoltExport daemon shutting down after the submitted jobs complete ...");
+            m_jobExecutor.shutdown();
+            try {
+                while (!m_jobExecutor.awaitTermination(60, TimeUnit.SECONDS)) {
+                    LOG.infoFmt("... still waiting for %d jobs", m_jobExecutor.getActiveCount() + m_jobExecutor.getQueue().size());
+                }
+            }
+            catch (InterruptedException ignore) {}
+            s_runners.shutdown();
+            m_server.stop(0);
+            LOG.info("VoltExport daemon stopped");
+            System.exit(0);
+        }, "VoltExport daemon shutdown");
+        t.start();
+    }
+
+    private static long parseId(String id) {
+        try {
+            return Long.parseLong(id);
+        }
+        catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static String readBody(HttpExchange exchange) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (InputStream in = exchange.getRequestBody()) {
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                bos.write(buf, 0, n);
+            }
+        }
+        return new String(bos.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] bytes = (json + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+
+    private static String error(String msg) {
+        return "{\"error\":" + quote(msg) + "}";
+    }
+
+    static String quote(String s) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+            case '"':
+                sb.append("\\\"");
+                break;
+            case '\\':
+                sb.append("\\\\");
+                break;
+            case '\n':
+                sb.append("\\n");
+                break;
+            case '\r':
+                sb.append("\\r");
+                break;
+            case '\t':
+                sb.append("\\t");
+                break;
+            default:
+                if (c < 0x20) {
+                    sb.append(String.format("\\u%04x", (int) c));
+                }
+                else {
+                    sb.append(c);
+                }
+            }
+        }
+        return sb.append('"').toString();
+    }
+}
@@ -16,6 +16,8 @@
  */
 package org.voltdb.utils.voltexport;
 
+import java.util.List;
+
 import org.voltdb.export.ExportSequenceNumberTracker;
 
 /**
@@ -26,11 +28,58 @@ public class VoltExportResult {
     public final ExportSequenceNumberTracker tracker;
     public final String stream_name;
     public final int partition;
+    public final DryRunEstimate estimate;
+    // The last sequence number handled by a successful export: the rows up to it were exported or
+    // filtered out, or -1 if unknown
+    public final long lastSeqNo;
+    // The aggregates of a query, or null
+    public final AggregateQuery aggregates;
+    // The rows found by a key lookup, or null
+    public final List<String> lookups;
 
     public VoltExportResult(boolean success, ExportSequenceNumberTracker tracker, String stream_name, int partition) {
+        this(success, tracker, stream_name, partition, null, -1L);
+    }
+
+    public VoltExportResult(boolean success, ExportSequenceNumberTracker tracker, String stream_name, int partition,
+            DryRunEstimate estimate) {
+        this(success, tracker, stream_name, partition, estimate, -1L);
+    }
+
+    public VoltExportResult(boolean success, ExportSequenceNumberTracker tracker, String stream_name, int partition,
+            long lastSeqNo) {
+        this(success, tracker, stream_name, partition, null, lastSeqNo);
+    }
+
+    public VoltExportResult(boolean success, ExportSequenceNumberTracker tracker, String stream_name, int partition,
+            AggregateQuery aggregates) {
+        this(success, tracker, stream_name, partition, null, -1L, aggregates);
+    }
+
+    public VoltExportResult(boolean success, ExportSequenceNumberTracker tracker, String stream_name, int partition,
+            long lastSeqNo, List<String> lookups) {
+        this(success, tracker, stream_name, partition, null, lastSeqNo, null, lookups);
+    }
+
+    public VoltExportResult(boolean success, ExportSequenceNumberTracker tracker, String stream_name, int partition,
+            DryRunEstimate estimate, long lastSeqNo) {
+        this(success, tracker, stream_name, partition, estimate, lastSeqNo, null);
+    }
+
+    public VoltExportResult(boolean success, ExportSequenceNumberTracker tracker, String stream_name, int partition,
+            DryRunEstimate estimate, long lastSeqNo, AggregateQuery aggregates) {
+        this(success, tracker, stream_name, partition, estimate, lastSeqNo, aggregates, null);
+    }
+
+    public VoltExportResult(boolean success, ExportSequenceNumberTracker tracker, String stream_name, int partition,
+            DryRunEstimate estimate, long lastSeqNo, AggregateQuery aggregates, List<String> lookups) {
         this.success = success;
         this.tracker = tracker;
         this.stream_name = stream_name;
         this.partition = partition;
+        this.estimate = estimate;
+        this.lastSeqNo = lastSeqNo;
+        this.aggregates = aggregates;
+        this.lookups = lookups;
     }
 }
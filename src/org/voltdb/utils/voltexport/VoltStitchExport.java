@@ -36,15 +36,11 @@ import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.lang3.StringUtils;
 import org.voltdb.CLIConfig;
-import org.voltdb.VoltDB;
 import org.voltdb.catalog.Database;
 import org.voltdb.export.ExportSequenceNumberTracker;
 import org.voltdb.exportclient.ExportClientBase;
 import org.voltdb.exportclient.ExportToFileClient;
-import org.voltdb.utils.CatalogUtil;
-import org.voltdb.utils.InMemoryJarfile;
 import org.voltdb.utils.StringInputStream;
-import org.voltdb.utils.voltexport.VoltExport.DummyManager;
 import org.voltdb.utils.voltexport.VoltExport.VoltExportConfig;
 
 /**
@@ -62,10 +58,10 @@ public class VoltStitchExport {
         @Option(desc = "input directory list - required")
         String indirs = "";
 
-        @Option(desc = "output directory for file export - required")
+        @Option(desc = "output directory for file export - required unless verify")
         String outdir = "";
 
-        @Option(desc = "catalog file - must be provided")
+        @Option(desc = "catalog file - optional, the schemas persisted in the PBD files are used if omitted")
         String catalog = "";
 
         @Option(desc = "Properties file or a string which can be parsed as a properties file, for export target configuration")
@@ -83,16 +79,79 @@ public class VoltStitchExport {
         @Option(desc = "print debug usage on error (default = false), used for bash encapsulation")
         boolean debug = false;
 
-        @Option(desc = "the count of exporting threads to use (default 20)")
-        int threads = 20;
+        @Option(desc = "the count of exporting threads to use, or auto to tune the active threads up to max_threads (default 20)")
+        String threads = "20";
+
+        @Option(desc = "the maximum count of exporting threads with threads=auto (default 32)")
+        int max_threads = 32;
+
+        @Option(desc = "limit in MB of direct memory used by the export runners to poll blocks (default 0 = unlimited)")
+        int direct_memory_mb = 0;
+
+        @Option(desc = "limit in MB/s of the PBD bytes read by all the export runners (default 0 = unlimited)")
+        int read_mb_per_sec = 0;
+
+        @Option(desc = "limit in MB/s of the row bytes exported by all the export runners (default 0 = unlimited)")
+        int write_mb_per_sec = 0;
+
+        @Option(desc = "limit of the rows per second exported by all the export runners (default 0 = unlimited)")
+        int rows_per_sec = 0;
+
+        @Option(desc = "properties file of the read_mb_per_sec, write_mb_per_sec and rows_per_sec limits, reloaded when modified")
+        String throttle_file = "";
+
+        @Option(desc = "comma-separated list of the columns to export (default none = all the columns)")
+        String columns = "";
+
+        @Option(desc = "only verify that the hosts holding the same rows agree, do not export (default false)")
+        boolean verify = false;
+
+        @Option(desc = "the count of rows per range compared by verify (default 100000)")
+        int verify_chunk = 100_000;
+
+        @Option(desc = "only estimate the rows, output size and time of the stitch per host, do not export (default false)")
+        boolean dryrun = false;
+
+        @Option(desc = "split the rows held by several hosts between these hosts, balancing the rows exported by each host (default false)")
+        boolean balance = false;
+
+        @Option(desc = "concatenate the stitched files in sequence order into one file per schema (default false)")
+        boolean finalize = false;
+
+        // Exit on configuration errors, or throw an IllegalArgumentException (daemon jobs)
+        boolean m_exitOnError = true;
 
        @Override
         public void validate() {
             if (StringUtils.isBlank(indirs)) exitWithMessage("Need list of export overflow directories");
-            if (StringUtils.isBlank(outdir)) exitWithMessage("Need output directory");
-            if (StringUtils.isBlank(catalog)) exitWithMessage("Need full path to catalog file");
+            if (StringUtils.isBlank(outdir)) {
+                if (!verify && !dryrun) exitWithMessage("Need output directory");
+                // Nothing is written when verifying
+                outdir = System.getProperty("user.dir");
+            }
             if (StringUtils.isBlank(stream_name)) exitWithMessage("Need stream_name for files to parse");
-            if (threads <= 0) exitWithMessage("threads must be > 0");
+            if (isAutoThreads()) {
+                if (max_threads <= 0) exitWithMessage("max_threads must be > 0");
+            }
+            else if (!StringUtils.isNumeric(threads.trim()) || getThreads() <= 0) {
+                exitWithMessage("threads must be auto or > 0");
+            }
+            if (direct_memory_mb < 0) exitWithMessage("direct_memory_mb must be >= 0");
+            if (read_mb_per_sec < 0 || write_mb_per_sec < 0 || rows_per_sec < 0) {
+                exitWithMessage("read_mb_per_sec, write_mb_per_sec and rows_per_sec must be >= 0");
+            }
+            if (verify_chunk <= 0) exitWithMessage("verify_chunk must be > 0");
+        }
+
+        boolean isAutoThreads() {
+            return "auto".equalsIgnoreCase(threads.trim());
+        }
+
+        /**
+         * @return the count of exporting threads, the maximum count if autotuned
+         */
+        int getThreads() {
+            return isAutoThreads() ? max_threads : Integer.parseInt(threads.trim());
         }
 
         @Override
@@ -102,7 +161,15 @@ public class VoltStitchExport {
             return c;
         }
 
+        @Override
+        public void exitWithMessageAndUsage(String msg) {
+            exitWithMessage(msg);
+        }
+
         public void exitWithMessage(String msg) {
+            if (!m_exitOnError) {
+                throw new IllegalArgumentException(msg);
+            }
             System.err.println(msg);
             if (!nousage) {
                 printUsage();
@@ -113,32 +180,82 @@ public class VoltStitchExport {
 
     private static VoltStitchExportConfig s_cfg = new VoltStitchExportConfig();
 
+    private final VoltStitchExportConfig m_cfg;
+    private final ExecutorService m_executor;
+
+    // The runners having scanned each host's PBD, filled by getTrackers for a dry run
+    private final Map<Integer, ExportRunner> m_runners = new HashMap<>();
+    // The blocks of each host's PBD, filled by getTrackers
+    private final Map<Integer, BlockIndex> m_blocks = new HashMap<>();
+
     public static void main(String[] args) throws IOException {
         s_cfg.parse(VoltStitchExport.class.getName(), args);
+        DirectMemoryBudget.GLOBAL.setLimitMb(s_cfg.direct_memory_mb);
+        IoThrottle.GLOBAL.setLimits(s_cfg.read_mb_per_sec, s_cfg.write_mb_per_sec, s_cfg.rows_per_sec);
+        IoThrottle.GLOBAL.setFile(s_cfg.throttle_file);
+
+        ThreadTuner tuner = s_cfg.isAutoThreads() && !s_cfg.verify && !s_cfg.dryrun
+                ? ThreadTuner.start(s_cfg.max_threads) : null;
+        VoltStitchExport vse = new VoltStitchExport(s_cfg, null);
+        boolean success = vse.run();
+        if (tuner != null) {
+            tuner.stop();
+        }
+        if (!success) {
+            System.exit(-1);
+        }
+    }
 
-        VoltStitchExport vse = new VoltStitchExport();
-        vse.run();
+    /**
+     * @param cfg       the configuration
+     * @param executor  the executor running the segments runners, or null to use a pool of cfg.threads
+     */
+    public VoltStitchExport(VoltStitchExportConfig cfg, ExecutorService executor) {
+        m_cfg = cfg;
+        m_executor = executor;
     }
 
-    void run() throws IOException {
+    /**
+     * @return true if successful
+     */
+    boolean run() throws IOException {
+        boolean success = false;
         try {
             // Get array of input directories, index in array becomes hostId
-            ArrayList<String> indirs = getInputDirs(s_cfg.indirs);
+            ArrayList<String> indirs = getInputDirs(m_cfg.indirs);
             for (int hostId = 0; hostId < indirs.size(); hostId++) {
                 LOG.infoFmt("Host %d: %s", hostId, indirs.get(hostId));
             }
 
-            // Set up dummy ExportManager to enable E3 behavior
-            VoltDB.resetSingletonsForTest();
-            VoltDB.setExportManagerInstance(new DummyManager());
+            VoltExport.setupVoltDB();
 
-            // Set the root directory of the FILE export client
-            ExportToFileClient.TEST_VOLTDB_ROOT = System.getProperty("user.dir");
+            // Get database from catalog, or rely on the schemas persisted in the PBD files
+            Database db = null;
+            if (StringUtils.isBlank(m_cfg.catalog)) {
+                LOG.info("No catalog, using the schemas persisted in the PBD files");
+            }
+            else {
+                db = CatalogCache.getDatabase(m_cfg.catalog);
+                if (db == null) {
+                    LOG.errorFmt("No database in catalog %s", m_cfg.catalog);
+                    return false;
+                }
+            }
 
-            // Get database from catalog
-            Database db = getDatabase();
-            if (db == null) {
-                s_cfg.exitWithMessage("No database in catalog " + s_cfg.catalog);
+            if (m_cfg.verify) {
+                // Scan and hash the rows of all hosts in parallel, in a single pass over each PBD, no export
+                ExecutorService executor = m_executor != null ? m_executor
+                        : Executors.newFixedThreadPool(Math.min(m_cfg.getThreads(), indirs.size()));
+                try {
+                    ReplicaVerifier verifier = new ReplicaVerifier(indirs, db,
+                            m_cfg.stream_name, m_cfg.partition, m_cfg.verify_chunk);
+                    return verifier.verify(executor) == 0;
+                }
+                finally {
+                    if (m_executor == null) {
+                        executor.shutdown();
+                    }
+                }
             }
 
             // Get original trackers for all hosts. Note, some host may have no trackers
@@ -146,7 +263,7 @@ public class VoltStitchExport {
             Map<Integer, ExportSequenceNumberTracker> trackers = getTrackers(indirs, db);
             if (trackers.isEmpty()) {
                 LOG.errorFmt("No PBD files found in directories %s", indirs);
-                return;
+                return false;
             }
             for (int hostId = 0; hostId < indirs.size(); hostId++) {
                 LOG.infoFmt("Host %d: %s", hostId, trackers.get(hostId));
@@ -154,14 +271,20 @@ public class VoltStitchExport {
 
             // Compute master trackers per host - since we have non-empty trackers as input,
             // the resulting masters shouldn't be empty either
-            TrackerCoordinator tc = new TrackerCoordinator(s_cfg.debug, trackers);
-            Map<Integer, ExportSequenceNumberTracker> masters = tc.getMasterTrackers();
+            TrackerCoordinator tc = new TrackerCoordinator(m_cfg.debug, trackers);
+            Map<Integer, ExportSequenceNumberTracker> masters = m_cfg.balance
+                    ? tc.getBalancedTrackers(m_blocks) : tc.getMasterTrackers();
 
             assert !masters.isEmpty() : "No master trackers";
             masters.forEach((k, v) -> LOG.infoFmt("Host %d mastership: %s", k, v));
 
+            if (m_cfg.dryrun) {
+                logDryRun(masters);
+                return true;
+            }
+
             // Run SegmentsRunner instances in threadpool: export all hosts in parallel
-            ExecutorService executor = Executors.newFixedThreadPool(s_cfg.threads);
+            ExecutorService executor = m_executor != null ? m_executor : Executors.newFixedThreadPool(m_cfg.getThreads());
             Properties props = loadProperties();
             ArrayList<SegmentsRunner> tasks = new ArrayList<>();
             long totalRows = 0;
@@ -172,18 +295,21 @@ public class VoltStitchExport {
 
                 assert !trk.isEmpty() : "Empty master tracker for " + hostId;
                 totalRows += trk.sizeInSequence();
-                tasks.add(new SegmentsRunner(hostId, indirs.get(hostId), s_cfg.outdir,
-                        s_cfg.stream_name, s_cfg.partition, trk, props, db));
+                tasks.add(new SegmentsRunner(hostId, indirs.get(hostId), m_cfg.outdir,
+                        m_cfg.stream_name, m_cfg.partition, m_cfg.columns, trk, props, db));
             }
 
             LOG.infoFmt("Starting %d segments runners for a total of %d rows to export ...", tasks.size(), totalRows);
             List<Future<Integer>> results = executor.invokeAll(tasks);
 
-            LOG.infoFmt("Waiting for %d segments runner completions ...", results.size());
-            executor.shutdown();
-            int minutes = 0;
-            while (!executor.awaitTermination(60, TimeUnit.SECONDS)) {
-                LOG.infoFmt("... still waiting for %d segments completions after %d minutes", results.size(), ++minutes);
+            if (m_executor == null) {
+                LOG.infoFmt("Waiting for %d segments runner completions ...", results.size());
+                executor.shutdown();
+                int minutes = 0;
+                while (!executor.awaitTermination(60, TimeUnit.SECONDS)) {
+                    LOG.infoFmt("... still waiting for %d segments completions after %d minutes, direct memory: %s, I/O: %s",
+                            results.size(), ++minutes, DirectMemoryBudget.GLOBAL, IoThrottle.GLOBAL);
+                }
             }
 
             int errors = 0;
@@ -200,13 +326,27 @@ public class VoltStitchExport {
                 LOG.errorFmt("Segment runners encountered %d errors", errors);
             }
             else {
-                LOG.infoFmt("Success: stitching %d rows of %s:%d COMPLETE", totalRows, s_cfg.stream_name, s_cfg.partition);
+                LOG.infoFmt("Success: stitching %d rows of %s:%d COMPLETE", totalRows, m_cfg.stream_name, m_cfg.partition);
+                success = true;
+                if (m_cfg.finalize) {
+                    Map<Long, Long> rowCounts = new HashMap<>();
+                    Map<Long, String> schemas = new HashMap<>();
+                    for (SegmentsRunner task : tasks) {
+                        rowCounts.putAll(task.getRowCounts());
+                        schemas.putAll(task.getSchemas());
+                    }
+                    success = new StitchFinalizer(m_cfg.outdir, m_cfg.stream_name, m_cfg.partition,
+                            masters, rowCounts, schemas).run();
+                }
             }
         }
         catch (Exception e) {
-            LOG.errorFmt("Failed stitching %s, partition %d", s_cfg.stream_name, s_cfg.partition);
+            LOG.errorFmt("Failed stitching %s, partition %d", m_cfg.stream_name, m_cfg.partition);
             e.printStackTrace();
         }
+        LOG.infoFmt("Direct memory: %s", DirectMemoryBudget.GLOBAL);
+        LOG.infoFmt("I/O: %s", IoThrottle.GLOBAL);
+        return success;
     }
 
     private ArrayList<String> getInputDirs(String dirList) {
@@ -239,14 +379,19 @@ public class VoltStitchExport {
             for (int hostId = 0; hostId < indirs.size(); hostId++) {
                 VoltExportConfig cfg = new VoltExportConfig();
                 cfg.indir = indirs.get(hostId);
-                cfg.stream_name = s_cfg.stream_name;
-                cfg.partition = s_cfg.partition;
+                cfg.stream_name = m_cfg.stream_name;
+                cfg.partition = m_cfg.partition;
+                cfg.columns = m_cfg.columns;
                 cfg.onlyscan = true;
 
                 ExportRunner runner = new ExportRunner(cfg, exportClients.get(hostId), db);
                 VoltExportResult res = runner.call();
                 if (res.success && !res.tracker.isEmpty()) {
                     trackers.put(hostId, res.tracker);
+                    m_blocks.put(hostId, runner.getBlocks());
+                    if (m_cfg.dryrun) {
+                        m_runners.put(hostId, runner);
+                    }
                 }
             }
         }
@@ -265,41 +410,55 @@ public class VoltStitchExport {
         return trackers;
     }
 
-    public static Database getDatabase() throws IOException {
-        InMemoryJarfile imjf = new InMemoryJarfile(s_cfg.catalog);
-        return CatalogUtil.getDatabaseFrom(imjf);
+    /**
+     * Log the estimated cost of exporting the mastership of each host. Each host exports its segments
+     * sequentially, scanning its PBD once per segment, and the hosts export in parallel. The rows of
+     * each host's segments are sampled from the PBD scanned by getTrackers.
+     */
+    private void logDryRun(Map<Integer, ExportSequenceNumberTracker> masters) throws Exception {
+        List<DryRunEstimate> estimates = new ArrayList<>();
+        for (Map.Entry<Integer, ExportSequenceNumberTracker> e : masters.entrySet()) {
+            ExportRunner runner = m_runners.get(e.getKey());
+            if (runner == null) {
+                continue;
+            }
+            DryRunEstimate est = runner.estimate(e.getValue());
+            LOG.infoFmt("Host %d dry run: %d segments, %s", e.getKey(), e.getValue().getRanges().size(), est);
+            estimates.add(est);
+        }
+        DryRunEstimate.logSummary(estimates, m_cfg.getThreads(), m_cfg.outdir);
     }
 
     private ExportClientBase createExportClient(long startSeq, long endSeq)
             throws ClassNotFoundException, Exception {
         ExportClientBase client = new ExportToFileClient();
         client.configure(getProperties(startSeq, endSeq));
-        client.setTargetName(s_cfg.stream_name);
+        client.setTargetName(m_cfg.stream_name);
         return client;
     }
 
     private Properties getProperties(long startSeq, long endSeq) throws IOException {
         Properties properties = loadProperties();
         // Set the nonce to stream_partition_startSeq_endSeq
-        String nonce = SegmentsRunner.getNonce(s_cfg.stream_name, s_cfg.partition, startSeq, endSeq);
+        String nonce = SegmentsRunner.getNonce(m_cfg.stream_name, m_cfg.partition, startSeq, endSeq);
         properties.put("nonce", nonce);
-        properties.put("outdir", s_cfg.outdir);
+        properties.put("outdir", m_cfg.outdir);
 
         return properties;
     }
 
     private Properties loadProperties() throws IOException {
         Properties properties = new Properties();
-        if (StringUtils.isBlank(s_cfg.properties)) {
+        if (StringUtils.isBlank(m_cfg.properties)) {
             LOG.info("No properties specified ...");
         } else {
             final InputStream in;
 
-            File propFile = new File(s_cfg.properties);
+            File propFile = new File(m_cfg.properties);
             if (propFile.exists()) {
                 in = new FileInputStream(propFile);
             } else {
-                in = new StringInputStream(s_cfg.properties);
+                in = new StringInputStream(m_cfg.properties);
             }
             try (InputStream i = in) {
                 properties.load(i);
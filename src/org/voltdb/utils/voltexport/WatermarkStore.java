@@ -0,0 +1,119 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2022 VoltDB Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with VoltDB.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.voltdb.utils.voltexport;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * A persistent store of the last sequence number exported for each stream/partition, used by the
+ * incremental exports to only export the rows above it.
+ * <p>
+ * The store is a properties file with one {@code STREAM.partition=seqNo} line per stream/partition.
+ * It is saved by writing a temporary file in the same directory and renaming it over the store, so
+ * that a failed run leaves the previous watermarks.
+ */
+public class WatermarkStore {
+    private final Path m_path;
+    private final Properties m_watermarks = new Properties();
+
+    /**
+     * Load a store, or create an empty one if the file doesn't exist
+     *
+     * @param path the path of the store file
+     * @throws IOException
+     */
+    public WatermarkStore(String path) throws IOException {
+        m_path = Paths.get(path).toAbsolutePath();
+        if (Files.exists(m_path)) {
+            try (InputStream in = Files.newInputStream(m_path)) {
+                m_watermarks.load(in);
+            }
+        }
+    }
+
+    /**
+     * @return the last sequence number exported for a stream/partition, or -1 if none
+     */
+    public synchronized long get(String stream, int partition) {
+        String value = m_watermarks.getProperty(key(stream, partition));
+        return value == null ? -1L : Long.parseLong(value.trim());
+    }
+
+    /**
+     * Advance the watermark of a stream/partition, a lower sequence number is ignored
+     */
+    public synchronized void advance(String stream, int partition, long seqNo) {
+        if (seqNo > get(stream, partition)) {
+            m_watermarks.setProperty(key(stream, partition), Long.toString(seqNo));
+        }
+    }
+
+    /**
+     * Save the store atomically
+     *
+     * @throws IOException
+     */
+    public synchronized void save() throws IOException {
+        Path tmp = m_path.resolveSibling(m_path.getFileName() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp.toFile())) {
+            m_watermarks.store(out, "voltexport watermarks: last sequence number exported by stream.partition");
+            out.getFD().sync();
+        }
+        Files.move(tmp, m_path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public synchronized int size() {
+        return m_watermarks.size();
+    }
+
+    @Override
+    public String toString() {
+        return m_path.toString();
+    }
+
+    /**
+     * Restrict a range to the rows above a watermark
+     *
+     * @param range     a range of sequence numbers, or blank for all the rows
+     * @param watermark the last sequence number exported, or -1 if none
+     * @return the range above the watermark, or null if the range is below the watermark
+     */
+    public static String applyTo(String range, long watermark) {
+        long start = 0L;
+        long end = Long.MAX_VALUE;
+        if (!StringUtils.isBlank(range)) {
+            String[] numbers = range.split(",");
+            start = Long.parseLong(numbers[0].trim());
+            end = Long.parseLong(numbers[1].trim());
+        }
+        start = Math.max(start, watermark + 1);
+        return start > end ? null : start + "," + end;
+    }
+
+    private static String key(String stream, int partition) {
+        return stream.toUpperCase() + "." + partition;
+    }
+}
@@ -0,0 +1,244 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2022 VoltDB Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with VoltDB.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.voltdb.utils.voltexport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.voltdb.VoltType;
+import org.voltdb.export.AdvertisedDataSource;
+import org.voltdb.exportclient.ExportDecoderBase;
+import org.voltdb.exportclient.ExportDecoderBase.RestartBlockException;
+import org.voltdb.exportclient.ExportRow;
+
+/**
+ * Exports rows into an in-memory H2 database, driving the decoder like an {@link ExportRunner}:
+ * rows, block completions and the final close.
+ */
+public class TestBatchJDBCExportClient {
+    private static final String STREAM = "SOURCE003";
+    private static final int PARTITION = 3;
+    private static final int BLOCK_ROWS = 25;
+
+    private static final List<String> NAMES = Arrays.asList(
+            "VOLT_TRANSACTION_ID", "VOLT_EXPORT_TIMESTAMP", "VOLT_EXPORT_SEQUENCE_NUMBER",
+            "VOLT_PARTITION_ID", "VOLT_SITE_ID", "VOLT_EXPORT_OPERATION", "ID", "NAME");
+    private static final List<VoltType> TYPES = Arrays.asList(
+            VoltType.BIGINT, VoltType.BIGINT, VoltType.BIGINT, VoltType.BIGINT, VoltType.BIGINT,
+            VoltType.TINYINT, VoltType.BIGINT, VoltType.STRING);
+    private static final List<Integer> LENGTHS = Arrays.asList(8, 8, 8, 8, 8, 1, 8, 64);
+
+    private static int s_dbCount = 0;
+
+    private String m_url;
+    private Connection m_conn;
+
+    @Before
+    public void setUp() throws SQLException {
+        // Keep the database open across the connections of the writers
+        m_url = "jdbc:h2:mem:jdbcexport" + (s_dbCount++) + ";DB_CLOSE_DELAY=-1";
+        m_conn = DriverManager.getConnection(m_url);
+        try (Statement stmt = m_conn.createStatement()) {
+            stmt.execute("CREATE TABLE " + STREAM + " (ID BIGINT PRIMARY KEY, NAME VARCHAR(64))");
+        }
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        try (Statement stmt = m_conn.createStatement()) {
+            stmt.execute("SHUTDOWN");
+        }
+        m_conn.close();
+    }
+
+    @Test
+    public void testBatchesPerBlock() throws Exception {
+        // Batches smaller than a block and not dividing it, committed at the end of each block
+        ExportDecoderBase decoder = createDecoder(7, 3, 0);
+        for (long id = 1; id <= 100; id++) {
+            decoder.processRow(row(id));
+            if (id % BLOCK_ROWS == 0) {
+                decoder.onBlockCompletion(row(id));
+                // The rows of a completed block are committed before it is released
+                assertEquals(id, count());
+            }
+        }
+        decoder.sourceNoLongerAdvertised(null);
+
+        assertEquals(100, count());
+        assertEquals(100 * 101 / 2, sumIds());
+    }
+
+    @Test
+    public void testCommitInterval() throws Exception {
+        // The rows are committed every 20 rows per connection, and all of them on close
+        ExportDecoderBase decoder = createDecoder(5, 2, 20);
+        export(decoder, 1, 103);
+        decoder.sourceNoLongerAdvertised(null);
+
+        assertEquals(103, count());
+        assertEquals(103 * 104 / 2, sumIds());
+    }
+
+    @Test
+    public void testFailedInsertFailsBlock() throws Exception {
+        ExportDecoderBase decoder = createDecoder(10, 2, 0);
+        insert(15);
+        try {
+            export(decoder, 1, BLOCK_ROWS);
+            fail("Block completed despite a duplicate key");
+        }
+        catch (RuntimeException expected) {
+        }
+        assertCloseFails(decoder);
+
+        // The failed batch is rolled back
+        assertEquals(1, count(11, 20));
+    }
+
+    @Test
+    public void testFailedInsertFailsClose() throws Exception {
+        // With a commit interval the blocks complete without waiting for the batches: the failure
+        // may only be seen by the close, which must report it
+        ExportDecoderBase decoder = createDecoder(10, 1, 1000);
+        insert(40);
+        try {
+            export(decoder, 1, 50);
+        }
+        catch (RuntimeException ignore) {
+        }
+        assertCloseFails(decoder);
+
+        // Nothing was committed but the row inserted by the test
+        assertEquals(1, count());
+    }
+
+    @Test
+    public void testRestartedBlock() throws Exception {
+        // A block timeout closes the decoder in the middle of the second block, with batches executed
+        ExportDecoderBase decoder = createDecoder(7, 3, 0);
+        export(decoder, 1, BLOCK_ROWS);
+        for (long id = BLOCK_ROWS + 1; id <= BLOCK_ROWS + 15; id++) {
+            decoder.processRow(row(id));
+        }
+        decoder.sourceNoLongerAdvertised(null);
+        try {
+            decoder.processRow(row(BLOCK_ROWS + 16));
+            fail("Closed decoder processed a row");
+        }
+        catch (RestartBlockException expected) {
+        }
+        // The block in progress is rolled back
+        assertEquals(BLOCK_ROWS, count());
+
+        // The block restarts from its first row on a new decoder, without duplicating rows
+        decoder = createDecoder(7, 3, 0);
+        export(decoder, BLOCK_ROWS + 1, 2 * BLOCK_ROWS);
+        decoder.sourceNoLongerAdvertised(null);
+
+        assertEquals(2 * BLOCK_ROWS, count());
+        assertEquals(2 * BLOCK_ROWS * (2 * BLOCK_ROWS + 1) / 2, sumIds());
+    }
+
+    @Test
+    public void testRestartedBlockFailsCommitInterval() throws Exception {
+        // With a commit interval, the rows of a block in progress may already be committed
+        ExportDecoderBase decoder = createDecoder(5, 2, 1000);
+        export(decoder, 1, BLOCK_ROWS);
+        for (long id = BLOCK_ROWS + 1; id <= BLOCK_ROWS + 10; id++) {
+            decoder.processRow(row(id));
+        }
+        assertCloseFails(decoder);
+
+        // The uncommitted rows are rolled back
+        assertEquals(0, count());
+    }
+
+    // Process the rows in blocks of BLOCK_ROWS
+    private static void export(ExportDecoderBase decoder, long fromId, long toId) throws Exception {
+        for (long id = fromId; id <= toId; id++) {
+            decoder.processRow(row(id));
+            if (id % BLOCK_ROWS == 0 || id == toId) {
+                decoder.onBlockCompletion(row(id));
+            }
+        }
+    }
+
+    private static void assertCloseFails(ExportDecoderBase decoder) {
+        try {
+            decoder.sourceNoLongerAdvertised(null);
+            fail("Decoder closed despite a failed insert");
+        }
+        catch (RuntimeException expected) {
+        }
+    }
+
+    private ExportDecoderBase createDecoder(int batchSize, int connections, int commitInterval) throws Exception {
+        Properties props = new Properties();
+        props.setProperty("jdbcurl", m_url);
+        props.setProperty("batchsize", Integer.toString(batchSize));
+        props.setProperty("connections", Integer.toString(connections));
+        props.setProperty("commitinterval", Integer.toString(commitInterval));
+        props.setProperty("skipinternals", "true");
+
+        BatchJDBCExportClient client = new BatchJDBCExportClient();
+        client.configure(props);
+        return client.constructExportDecoder(new AdvertisedDataSource(PARTITION, STREAM));
+    }
+
+    private static ExportRow row(long id) {
+        Object[] values = new Object[] { id, 1_666_000_000_000L, id, (long) PARTITION, 0L, (byte) 1, id, "row " + id };
+        return new ExportRow(STREAM, NAMES, TYPES, LENGTHS, values, null, -1, PARTITION, 0L);
+    }
+
+    private void insert(long id) throws SQLException {
+        try (Statement stmt = m_conn.createStatement()) {
+            stmt.execute("INSERT INTO " + STREAM + " VALUES (" + id + ", 'existing')");
+        }
+    }
+
+    private long count() throws SQLException {
+        return queryLong("SELECT COUNT(*) FROM " + STREAM);
+    }
+
+    private long count(long fromId, long toId) throws SQLException {
+        return queryLong("SELECT COUNT(*) FROM " + STREAM + " WHERE ID BETWEEN " + fromId + " AND " + toId);
+    }
+
+    private long sumIds() throws SQLException {
+        return queryLong("SELECT SUM(ID) FROM " + STREAM);
+    }
+
+    private long queryLong(String sql) throws SQLException {
+        try (Statement stmt = m_conn.createStatement(); ResultSet rs = stmt.executeQuery(sql)) {
+            rs.next();
+            return rs.getLong(1);
+        }
+    }
+}
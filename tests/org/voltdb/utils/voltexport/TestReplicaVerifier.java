@@ -0,0 +1,202 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2022 VoltDB Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with VoltDB.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.voltdb.utils.voltexport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.voltcore.utils.DBBPool;
+import org.voltdb.export.StreamBlock;
+import org.voltdb.exportclient.PersistedMetadata;
+import org.voltdb.utils.BinaryDeque;
+
+/**
+ * Verifies replicas written as PBDs of raw export blocks: the verifier only reads the block
+ * headers and the internal columns, so no schema is persisted.
+ */
+public class TestReplicaVerifier {
+    private static final String STREAM = "SOURCE003";
+    private static final int PARTITION = 3;
+    private static final int BLOCK_ROWS = 50;
+
+    // Partition column index, column count, null flags, 5 longs and a tinyint (internal columns), a bigint
+    private static final int COLUMNS = 7;
+    private static final int ROW_SIZE = 2 * Integer.BYTES + 1 + 5 * Long.BYTES + 1 + Long.BYTES;
+
+    private File m_root;
+
+    @Before
+    public void setUp() throws IOException {
+        m_root = Files.createTempDirectory("verify").toFile();
+        VoltExport.setupVoltDB();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        delete(m_root);
+    }
+
+    @Test
+    public void testReplicasAgree() throws Exception {
+        // Host 1 misses the rows [121, 180], the site ids differ
+        List<String> indirs = Arrays.asList(
+                writePbd("node0", 0, -1, new long[] { 1, 300 }),
+                writePbd("node1", 1, -1, new long[] { 1, 120 }, new long[] { 181, 300 }));
+
+        assertEquals(0, verify(indirs, 100));
+        assertEquals(0, stitchVerify(indirs));
+    }
+
+    @Test
+    public void testReplicasDisagree() throws Exception {
+        // Host 1 holds a different value at seqNo 200, in a chunk held by both hosts
+        List<String> indirs = Arrays.asList(
+                writePbd("node0", 0, -1, new long[] { 1, 300 }),
+                writePbd("node1", 1, 200, new long[] { 1, 120 }, new long[] { 181, 300 }));
+
+        assertEquals(1, verify(indirs, 100));
+        assertNotEquals("stitch --verify exit status", 0, stitchVerify(indirs));
+    }
+
+    @Test
+    public void testRowCountsDisagree() throws Exception {
+        // Same sequence numbers, but host 1 has a truncated block
+        List<String> indirs = Arrays.asList(
+                writePbd("node0", 0, -1, new long[] { 1, 100 }),
+                writePbd("node1", 1, -1, new long[] { 1, 100 }));
+        truncateLastRow(new File(indirs.get(1)));
+
+        assertTrue(verify(indirs, 1000) > 0);
+    }
+
+    private int verify(List<String> indirs, long chunkRows) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(indirs.size());
+        try {
+            return new ReplicaVerifier(indirs, null, STREAM, PARTITION, chunkRows).verify(executor);
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    // Run stitch --verify in its own process, returning its exit status
+    private int stitchVerify(List<String> indirs) throws Exception {
+        List<String> cmd = new ArrayList<>();
+        cmd.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+        cmd.add("-classpath");
+        cmd.add(System.getProperty("java.class.path"));
+        if (System.getProperty("log4j.configuration") != null) {
+            cmd.add("-Dlog4j.configuration=" + System.getProperty("log4j.configuration"));
+        }
+        cmd.add(VoltStitchExport.class.getName());
+        cmd.add("--indirs=" + String.join(",", indirs));
+        cmd.add("--stream_name=" + STREAM);
+        cmd.add("--partition=" + PARTITION);
+        cmd.add("--verify=true");
+        cmd.add("--nousage=true");
+        return new ProcessBuilder(cmd).inheritIO().start().waitFor();
+    }
+
+    private String writePbd(String node, long siteId, long badSeqNo, long[]... ranges) throws IOException {
+        File indir = new File(m_root, node);
+        File dir = new File(ExportFileVisitor.getPathForExportStream(indir.getPath(), STREAM, PARTITION));
+        assertTrue(dir.mkdirs());
+
+        BinaryDeque<PersistedMetadata> pbd = ExportRunner.constructPBD(indir.getPath(), STREAM, PARTITION, null);
+        try {
+            for (long[] range : ranges) {
+                for (long start = range[0]; start <= range[1]; start += BLOCK_ROWS) {
+                    long end = Math.min(range[1], start + BLOCK_ROWS - 1);
+                    pbd.offer(DBBPool.wrapBB(encodeBlock(start, end, siteId, badSeqNo)), start, end,
+                            System.currentTimeMillis());
+                }
+            }
+        }
+        finally {
+            pbd.close();
+        }
+        return indir.getPath();
+    }
+
+    // Rewrite the last block of a PBD without its last row
+    private void truncateLastRow(File indir) throws IOException {
+        delete(indir);
+        File dir = new File(ExportFileVisitor.getPathForExportStream(indir.getPath(), STREAM, PARTITION));
+        assertTrue(dir.mkdirs());
+        BinaryDeque<PersistedMetadata> pbd = ExportRunner.constructPBD(indir.getPath(), STREAM, PARTITION, null);
+        try {
+            pbd.offer(DBBPool.wrapBB(encodeBlock(1, 50, 1, -1)), 1, 50, System.currentTimeMillis());
+            ByteBuffer last = encodeBlock(51, 100, 1, -1);
+            last.limit(last.limit() - Integer.BYTES - ROW_SIZE);
+            pbd.offer(DBBPool.wrapBB(last), 51, 100, System.currentTimeMillis());
+        }
+        finally {
+            pbd.close();
+        }
+    }
+
+    private static ByteBuffer encodeBlock(long start, long end, long siteId, long badSeqNo) {
+        int rows = (int) (end - start + 1);
+        ByteBuffer b = ByteBuffer.allocateDirect(StreamBlock.HEADER_SIZE + rows * (Integer.BYTES + ROW_SIZE));
+        b.order(ByteOrder.LITTLE_ENDIAN);
+        b.putLong(StreamBlock.SEQUENCE_NUMBER_OFFSET, start);
+        b.putLong(StreamBlock.COMMIT_SEQUENCE_NUMBER_OFFSET, end);
+        b.putInt(StreamBlock.ROW_NUMBER_OFFSET, rows);
+        b.putLong(StreamBlock.UNIQUE_ID_OFFSET, start);
+        b.position(StreamBlock.HEADER_SIZE);
+        for (long seqNo = start; seqNo <= end; seqNo++) {
+            b.putInt(ROW_SIZE);
+            b.putInt(0);
+            b.putInt(COLUMNS);
+            b.put((byte) 0);
+            b.putLong(seqNo);               // transaction id
+            b.putLong(1_666_000_000_000L);  // export timestamp
+            b.putLong(seqNo);               // sequence number
+            b.putLong(PARTITION);
+            b.putLong(siteId);
+            b.put((byte) 1);                // insert
+            b.putLong(seqNo == badSeqNo ? -seqNo : seqNo * 7);
+        }
+        b.flip();
+        return b;
+    }
+
+    private static void delete(File f) {
+        File[] files = f.listFiles();
+        if (files != null) {
+            for (File c : files) {
+                delete(c);
+            }
+        }
+        f.delete();
+    }
+}
@@ -0,0 +1,147 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2022 VoltDB Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with VoltDB.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.voltdb.utils.voltexport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+import org.voltcore.utils.Pair;
+import org.voltdb.export.ExportSequenceNumberTracker;
+
+/**
+ * Checks that {@link SeqNoRangeSet#getFirstGap} answers like {@link ExportSequenceNumberTracker#getFirstGap},
+ * which it replaces in the {@link TrackerCoordinator}.
+ */
+public class TestSeqNoRangeSet {
+
+    @Test
+    public void testBeforeFirstRange() {
+        SeqNoRangeSet set = rangeSet(10, 20, 30, 40);
+        assertGap(5, 9, set.getFirstGap(5));
+        assertGap(9, 9, set.getFirstGap(9));
+        assertSameGap(set, 5);
+        assertSameGap(set, 9);
+    }
+
+    @Test
+    public void testInsideGap() {
+        SeqNoRangeSet set = rangeSet(10, 20, 30, 40, 50, 60);
+        assertGap(21, 29, set.getFirstGap(21));
+        assertGap(21, 29, set.getFirstGap(25));
+        assertGap(21, 29, set.getFirstGap(29));
+        assertGap(41, 49, set.getFirstGap(45));
+        for (long seqNo : new long[] { 21, 25, 29, 45 }) {
+            assertSameGap(set, seqNo);
+        }
+    }
+
+    @Test
+    public void testInsideRange() {
+        SeqNoRangeSet set = rangeSet(10, 20, 30, 40);
+        assertGap(21, 29, set.getFirstGap(10));
+        assertGap(21, 29, set.getFirstGap(15));
+        assertNull(set.getFirstGap(35));
+        for (long seqNo : new long[] { 10, 15, 30, 35 }) {
+            assertSameGap(set, seqNo);
+        }
+    }
+
+    @Test
+    public void testAtRangeEnd() {
+        SeqNoRangeSet set = rangeSet(10, 20, 30, 40, 50, 60);
+        assertGap(21, 29, set.getFirstGap(20));
+        assertGap(41, 49, set.getFirstGap(40));
+        assertNull(set.getFirstGap(60));
+        for (long seqNo : new long[] { 20, 40, 60 }) {
+            assertSameGap(set, seqNo);
+        }
+    }
+
+    @Test
+    public void testPastLastRange() {
+        SeqNoRangeSet set = rangeSet(10, 20, 30, 40);
+        assertNull(set.getFirstGap(41));
+        assertNull(set.getFirstGap(Long.MAX_VALUE));
+        assertSameGap(set, 41);
+        assertSameGap(set, 1000);
+        assertNull(new SeqNoRangeSet().getFirstGap(1));
+        assertSameGap(new SeqNoRangeSet(), 1);
+    }
+
+    @Test
+    public void testRandomRanges() {
+        Random rand = new Random(0);
+        for (int iter = 0; iter < 200; iter++) {
+            // Ranges added out of order, overlapping or adjacent ones merged
+            SeqNoRangeSet set = new SeqNoRangeSet(2);
+            ExportSequenceNumberTracker tracker = new ExportSequenceNumberTracker();
+            int count = 1 + rand.nextInt(10);
+            for (int i = 0; i < count; i++) {
+                long start = 1 + rand.nextInt(200);
+                long end = start + rand.nextInt(20);
+                set.add(start, end);
+                tracker.addRange(start, end);
+            }
+            assertEquals(tracker.toString(), tracker.getRanges().size(), set.size());
+            assertEquals(tracker.toString(), tracker.sizeInSequence(), set.sizeInSequence());
+            for (long seqNo = 1; seqNo <= set.getLastSeqNo() + 2; seqNo++) {
+                assertSameGap(set, tracker, seqNo);
+            }
+        }
+    }
+
+    private static SeqNoRangeSet rangeSet(long... bounds) {
+        SeqNoRangeSet set = new SeqNoRangeSet();
+        for (int i = 0; i < bounds.length; i += 2) {
+            set.add(bounds[i], bounds[i + 1]);
+        }
+        return set;
+    }
+
+    private static void assertGap(long start, long end, Pair<Long, Long> gap) {
+        assertEquals("gap start", start, gap.getFirst().longValue());
+        assertEquals("gap end", end, gap.getSecond().longValue());
+    }
+
+    private static void assertSameGap(SeqNoRangeSet set, long seqNo) {
+        assertSameGap(set, set.toTracker(), seqNo);
+    }
+
+    // Compare the gaps as the TrackerCoordinator uses them: before the first range, it only relies
+    // on the gap covering the sequence number and on its end
+    private static void assertSameGap(SeqNoRangeSet set, ExportSequenceNumberTracker tracker, long seqNo) {
+        String msg = "seqNo " + seqNo + " in " + tracker;
+        Pair<Long, Long> expected = tracker.getFirstGap(seqNo);
+        Pair<Long, Long> actual = set.getFirstGap(seqNo);
+        if (expected == null) {
+            assertNull(msg, actual);
+            return;
+        }
+        assertTrue(msg + ": no gap", actual != null);
+        assertEquals(msg + ": gap end", expected.getSecond().longValue(), actual.getSecond().longValue());
+        if (set.isEmpty() || seqNo >= set.getFirstSeqNo()) {
+            assertEquals(msg + ": gap start", expected.getFirst().longValue(), actual.getFirst().longValue());
+        }
+        else {
+            assertTrue(msg + ": gap does not cover it", expected.getFirst() <= seqNo && actual.getFirst() <= seqNo);
+        }
+    }
+}